@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * JMH benchmarks for the refresh and resolve paths of {@link DataSourceMetadataResolver}, using an in-process
+ * HSQLDB seeded with the given number of services. Run with <code>mvn -Pbenchmark verify</code>, the results are
+ * written to <code>target/jmh-result.json</code>, including the allocated bytes per operation from the GC
+ * profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataSourceMetadataResolverBenchmark {
+    
+    /** The number of services in the database. */
+    @Param({"1000", "10000", "100000"})
+    public int services;
+    
+    /** Whether the entities are installed directly, without the serialize and parse round trip. */
+    @Param({"false", "true"})
+    public boolean directBuild;
+    
+    /** The data source seeded with the services. */
+    private JDBCDataSource dataSource;
+    
+    /** The resolver under benchmark. */
+    private DataSourceMetadataResolver resolver;
+    
+    /** The criteria for each of the seeded entity IDs. */
+    private CriteriaSet[] entityCriteria;
+    
+    /** The criteria for all the entities. */
+    private CriteriaSet allCriteria;
+    
+    /**
+     * Seeds the database and initializes the resolver.
+     * @throws Exception If the setup fails.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:benchmark" + services);
+        entityCriteria = new CriteriaSet[services];
+        try (final Connection connection = dataSource.getConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE mpass_services (id BIGINT IDENTITY NOT NULL PRIMARY KEY, "
+                    + "samlEntityId VARCHAR(255) NOT NULL, samlAcsUrl VARCHAR(255) NOT NULL, "
+                    + "startTime TIMESTAMP NOT NULL, endTime TIMESTAMP)");
+            connection.setAutoCommit(false);
+            try (final PreparedStatement insert = connection.prepareStatement("INSERT INTO mpass_services"
+                    + " (samlEntityId, samlAcsUrl, startTime) VALUES (?,?,?)")) {
+                final Timestamp startTime = new Timestamp(System.currentTimeMillis() - 60000);
+                for (int i = 0; i < services; i++) {
+                    final String entityId = "https://sp" + i + ".example.org/shibboleth";
+                    insert.setString(1, entityId);
+                    insert.setString(2, "https://sp" + i + ".example.org/Shibboleth.sso/SAML2/POST");
+                    insert.setTimestamp(3, startTime);
+                    insert.addBatch();
+                    entityCriteria[i] = new CriteriaSet(new EntityIdCriterion(entityId));
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+        allCriteria = new CriteriaSet();
+        final BasicParserPool parserPool = new BasicParserPool();
+        parserPool.initialize();
+        resolver = new DataSourceMetadataResolver(dataSource);
+        resolver.setId("benchmark");
+        resolver.setParserPool(parserPool);
+        resolver.setDirectBuild(directBuild);
+        resolver.initialize();
+    }
+    
+    /**
+     * Destroys the resolver and the database.
+     * @throws Exception If the tear down fails.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resolver.destroy();
+        try (final Connection connection = dataSource.getConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+    
+    /**
+     * The per-thread position in the seeded entity IDs.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        
+        /** The index of the next entity ID. */
+        private int next;
+        
+        /**
+         * Get the criteria for the next entity ID.
+         * @param benchmark The benchmark state.
+         * @return The criteria for the next entity ID.
+         */
+        CriteriaSet nextCriteria(final DataSourceMetadataResolverBenchmark benchmark) {
+            next = (next + 1) % benchmark.entityCriteria.length;
+            return benchmark.entityCriteria[next];
+        }
+    }
+    
+    /**
+     * Measures a full refresh from the database.
+     * @throws ResolverException If the refresh fails.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void refresh() throws ResolverException {
+        resolver.refresh();
+    }
+    
+    /**
+     * Measures the resolution of a single entity by its entity ID.
+     * @param reader The reader state.
+     * @return The resolved entity.
+     * @throws ResolverException If the resolution fails.
+     */
+    @Benchmark
+    public EntityDescriptor resolveByEntityId(final Reader reader) throws ResolverException {
+        return resolver.resolveSingle(reader.nextCriteria(this));
+    }
+    
+    /**
+     * Measures the resolution of all the entities.
+     * @return The resolved entities.
+     * @throws ResolverException If the resolution fails.
+     */
+    @Benchmark
+    public Iterable<EntityDescriptor> resolveAll() throws ResolverException {
+        return resolver.resolve(allCriteria);
+    }
+    
+    /**
+     * Measures the resolution of a single entity by its entity ID while {@link #refreshConcurrently()} runs.
+     * @param reader The reader state.
+     * @return The resolved entity.
+     * @throws ResolverException If the resolution fails.
+     */
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(3)
+    public EntityDescriptor resolveConcurrently(final Reader reader) throws ResolverException {
+        return resolver.resolveSingle(reader.nextCriteria(this));
+    }
+    
+    /**
+     * Refreshes the resolver continuously while {@link #resolveConcurrently(Reader)} runs.
+     * @throws ResolverException If the refresh fails.
+     */
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(1)
+    public void refreshConcurrently() throws ResolverException {
+        resolver.refresh();
+    }
+}
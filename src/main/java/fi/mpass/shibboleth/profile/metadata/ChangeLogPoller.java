@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_ID;
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_SERVICE_ID;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+
+/**
+ * Polls the change log table of a {@link DataSourceMetadataResolver} and refreshes the changed services once the
+ * changes have settled for the quiet period, or have been held back for ten times the quiet period. The applied
+ * rows are optionally deleted from the change log table.
+ */
+public class ChangeLogPoller {
+    
+    /** The factor for the maximum time the changes are held back, relative to the quiet period. */
+    private static final int MAX_DEBOUNCE_FACTOR = 10;
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ChangeLogPoller.class);
+    
+    /** The resolver whose services are refreshed. */
+    @Nonnull private final DataSourceMetadataResolver resolver;
+    
+    /** The table name for the change log of the services. */
+    @Nonnull private final String table;
+    
+    /** The interval for polling the change log table, in milliseconds. */
+    private final long pollInterval;
+    
+    /** The quiet period before refreshing the changed services, in milliseconds. */
+    private final long debounce;
+    
+    /** Whether the applied rows are deleted from the change log table. */
+    private final boolean purge;
+    
+    /** The executor polling the change log table, null if not started or stopped. */
+    @Nullable private ScheduledExecutorService executor;
+    
+    /** The greatest change log row identifier seen. Only accessed by the polling thread. */
+    private long cursor;
+    
+    /** The row identifiers of the changed services not yet refreshed. Only accessed by the polling thread. */
+    @Nonnull private final Set<Long> pendingChanges = new HashSet<>();
+    
+    /** The time when the first of the pending changes was seen. Only accessed by the polling thread. */
+    private long firstPendingChange;
+    
+    /** The time when the latest of the pending changes was seen. Only accessed by the polling thread. */
+    private long lastPendingChange;
+    
+    /**
+     * Constructor.
+     * 
+     * @param metadataResolver The resolver whose services are refreshed.
+     * @param changeLogTable The table name for the change log of the services.
+     * @param interval The interval for polling the change log table, in milliseconds.
+     * @param quietPeriod The quiet period before refreshing the changed services, in milliseconds.
+     * @param purgeApplied Whether the applied rows are deleted from the change log table.
+     */
+    public ChangeLogPoller(@Nonnull final DataSourceMetadataResolver metadataResolver,
+            @Nonnull final String changeLogTable, final long interval, final long quietPeriod,
+            final boolean purgeApplied) {
+        resolver = Constraint.isNotNull(metadataResolver, "The resolver cannot be null");
+        table = Constraint.isNotNull(changeLogTable, "The change log table cannot be null");
+        pollInterval = interval;
+        debounce = quietPeriod;
+        purge = purgeApplied;
+    }
+    
+    /**
+     * Starts polling the change log table from its current end.
+     * @param threadName The name of the polling thread.
+     * @throws ComponentInitializationException If the change log table cannot be read.
+     */
+    public synchronized void start(@Nonnull final String threadName) throws ComponentInitializationException {
+        if (executor != null) {
+            return;
+        }
+        try (final Connection connection = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = resolver.prepareStatement(connection, "SELECT MAX(" 
+                        + COLUMN_ID_ID + ") FROM " + table);
+                final ResultSet results = statement.executeQuery()) {
+            results.next();
+            final long max = results.getLong(1);
+            cursor = results.wasNull() ? Long.MIN_VALUE : max;
+        } catch (SQLException e) {
+            throw new ComponentInitializationException("Could not read the change log table " + table, e);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll(System.currentTimeMillis());
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops polling the change log table.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+    
+    /**
+     * Reads the change log rows added since the previous poll, and refreshes the changed services once the changes
+     * have settled.
+     * 
+     * @param now The current time in milliseconds.
+     */
+    protected void poll(final long now) {
+        try (final Connection connection = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = resolver.prepareStatement(connection, "SELECT " + COLUMN_ID_ID
+                        + ", " + COLUMN_ID_SERVICE_ID + " FROM " + table + " WHERE " + COLUMN_ID_ID + " > ? ORDER BY "
+                        + COLUMN_ID_ID)) {
+            statement.setLong(1, cursor);
+            try (final ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    cursor = Math.max(cursor, results.getLong(COLUMN_ID_ID));
+                    if (pendingChanges.isEmpty()) {
+                        firstPendingChange = now;
+                    }
+                    pendingChanges.add(results.getLong(COLUMN_ID_SERVICE_ID));
+                    lastPendingChange = now;
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Could not poll the change log table {}", table, e);
+        }
+        if (pendingChanges.isEmpty() || (now - lastPendingChange < debounce
+                && now - firstPendingChange < MAX_DEBOUNCE_FACTOR * debounce)) {
+            return;
+        }
+        final Set<Long> ids = new HashSet<>(pendingChanges);
+        final long applied = cursor;
+        pendingChanges.clear();
+        try {
+            resolver.refreshServices(ids);
+        } catch (ResolverException | RuntimeException e) {
+            log.error("Could not refresh the changed services, retrying on the next poll", e);
+            pendingChanges.addAll(ids);
+            return;
+        }
+        if (purge && (resolver.getSharedSnapshotTable() == null || resolver.isLeaseHeld())) {
+            purge(applied);
+        }
+    }
+    
+    /**
+     * Deletes the applied rows from the change log table.
+     * 
+     * @param applied The greatest change log row identifier whose service has been refreshed.
+     */
+    private void purge(final long applied) {
+        try (final Connection connection = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = resolver.prepareStatement(connection, "DELETE FROM " + table
+                        + " WHERE " + COLUMN_ID_ID + " <= ?")) {
+            statement.setLong(1, applied);
+            final int purged = statement.executeUpdate();
+            log.debug("Deleted {} applied rows from the change log table {}", purged, table);
+        } catch (SQLException e) {
+            log.warn("Could not delete the applied rows from the change log table {}", table, e);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.security.credential.UsageType;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A compact store for the services, keeping them as packed rows and building their entity descriptors lazily.
+ * 
+ * <p>The entity IDs and endpoint locations are split to their shared URL prefixes and the rest, and stored with
+ * the bindings and the base64 certificates in a {@link PackedStringTable}. The times, string references and
+ * endpoint and certificate attributes are kept in primitive arrays. The entity descriptors are built on the first
+ * resolve of each service and kept in a cache bounded by size, so that the heap used by the OpenSAML objects scales
+ * with the services actually in use rather than with all the registered services. The descriptors evicted from the
+ * cache are rebuilt when needed again.</p>
+ * 
+ * <p>The entity IDs are looked up from an open-addressing hash index over all the rows, so that a service ended
+ * and registered again in a later row with the same entity ID is found from its active row. The services active at
+ * a given time are selected when the store is created; {@link #withActivations(long)} creates a store for another
+ * time sharing the rows and the cache.</p>
+ * 
+ * <p>The criteria indexes are built from the packed rows, so that resolving by a role, protocol, binding or
+ * endpoint only builds the entities in the results. Enumerating all the active entities builds each of them and
+ * churns through the cache; the entities are not retained beyond it, so the same entity may be returned as
+ * different instances by different calls.</p>
+ */
+public class CompactServiceStore {
+    
+    /** The default maximum number of the cached entity descriptors. */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    
+    /** The stored endpoint index for the endpoints without one. */
+    private static final int NO_INDEX = Integer.MIN_VALUE;
+    
+    /** The stored default flag for the endpoints without one. */
+    private static final byte NO_DEFAULT = -1;
+    
+    /** The stored use for the certificates without one. */
+    private static final byte NO_USE = -1;
+    
+    /** The packed rows shared by the stores for different times. */
+    @Nonnull private final Rows rows;
+    
+    /** Whether each row is active. */
+    @Nonnull private final boolean[] active;
+    
+    /** The positions of the active rows. */
+    @Nonnull private final int[] activeRows;
+    
+    /** The lazily built view of the active entities. */
+    @Nonnull private final List<EntityDescriptor> descriptorsView;
+    
+    /** The criteria indexes over the active entities. */
+    @Nonnull private final EntityCriteriaIndex criteriaIndex;
+    
+    /**
+     * Constructor.
+     * 
+     * @param entries The services, including the inactive ones.
+     * @param cacheSize The maximum number of the cached entity descriptors.
+     * @param now The time for selecting the active services, in milliseconds.
+     */
+    public CompactServiceStore(@Nonnull final Collection<ServiceEntry> entries, final int cacheSize,
+            final long now) {
+        this(new Rows(entries, Constraint.isGreaterThan(0, cacheSize, "The cache size must be positive")), now);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param packedRows The packed rows.
+     * @param now The time for selecting the active services, in milliseconds.
+     */
+    private CompactServiceStore(@Nonnull final Rows packedRows, final long now) {
+        rows = packedRows;
+        active = new boolean[rows.size()];
+        int count = 0;
+        for (int row = 0; row < active.length; row++) {
+            active[row] = rows.startTimes[row] <= now && now < rows.endTimes[row];
+            if (active[row]) {
+                count++;
+            }
+        }
+        activeRows = new int[count];
+        count = 0;
+        for (int row = 0; row < active.length; row++) {
+            if (active[row]) {
+                activeRows[count++] = row;
+            }
+        }
+        descriptorsView = new DescriptorsView();
+        criteriaIndex = rows.buildCriteriaIndex(activeRows, descriptorsView);
+    }
+    
+    /**
+     * Creates a store for the services active at the given time, sharing the rows and the cache with this one.
+     * 
+     * @param now The time for selecting the active services, in milliseconds.
+     * @return The store for the given time.
+     */
+    @Nonnull public CompactServiceStore withActivations(final long now) {
+        return new CompactServiceStore(rows, now);
+    }
+    
+    /**
+     * Get the active entity with the given entity ID, building it if not cached.
+     * 
+     * @param entityId The entity ID.
+     * @return The entity, or null if no active service has the entity ID.
+     */
+    @Nullable public EntityDescriptor get(@Nonnull final String entityId) {
+        final int row = rows.find(entityId, active);
+        return row >= 0 ? rows.materialize(row) : null;
+    }
+    
+    /**
+     * Get the read-only view of the active entities, built on access. Iterating the view builds all the entities
+     * not cached, and the instances are only stable while they remain in the cache.
+     * 
+     * @return The view of the active entities.
+     */
+    @Nonnull public List<EntityDescriptor> getDescriptorsView() {
+        return descriptorsView;
+    }
+    
+    /**
+     * Get the criteria indexes over the active entities, built from the packed rows when the store is created,
+     * without building the entities.
+     * 
+     * @return The criteria indexes over the active entities.
+     */
+    @Nonnull public EntityCriteriaIndex getCriteriaIndex() {
+        return criteriaIndex;
+    }
+    
+    /**
+     * Get the number of the active services.
+     * @return The number of the active services.
+     */
+    public int size() {
+        return activeRows.length;
+    }
+    
+    /**
+     * Get the number of the entity descriptors currently cached.
+     * @return The number of the cached entity descriptors.
+     */
+    public long getCachedDescriptorCount() {
+        return rows.cache.size();
+    }
+    
+    /**
+     * Get the packed string table of the rows.
+     * @return The packed string table.
+     */
+    @Nonnull public PackedStringTable getStrings() {
+        return rows.strings;
+    }
+    
+    /**
+     * The view of the active entities, building them on access.
+     */
+    private final class DescriptorsView extends AbstractList<EntityDescriptor> implements RandomAccess {
+        
+        /** {@inheritDoc} */
+        @Override
+        public EntityDescriptor get(final int index) {
+            return rows.materialize(activeRows[index]);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int size() {
+            return activeRows.length;
+        }
+    }
+    
+    /**
+     * The packed rows of the services, with the hash index of their entity IDs and the cache of their entities.
+     */
+    private static final class Rows {
+        
+        /** The packed strings. */
+        @Nonnull private final PackedStringTable strings;
+        
+        /** The start times of the services. */
+        @Nonnull private final long[] startTimes;
+        
+        /** The end times of the services. */
+        @Nonnull private final long[] endTimes;
+        
+        /** The references to the shared prefixes of the entity IDs. */
+        @Nonnull private final int[] entityIdPrefixes;
+        
+        /** The references to the rest of the entity IDs. */
+        @Nonnull private final int[] entityIdSuffixes;
+        
+        /** The hash codes of the entity IDs. */
+        @Nonnull private final int[] entityIdHashes;
+        
+        /** The start offsets of the endpoints of the services, followed by the total number of the endpoints. */
+        @Nonnull private final int[] endpointOffsets;
+        
+        /** The references to the bindings of the endpoints. */
+        @Nonnull private final int[] bindings;
+        
+        /** The references to the shared prefixes of the endpoint locations. */
+        @Nonnull private final int[] locationPrefixes;
+        
+        /** The references to the rest of the endpoint locations. */
+        @Nonnull private final int[] locationSuffixes;
+        
+        /** The indexes of the endpoints, or {@link #NO_INDEX}. */
+        @Nonnull private final int[] endpointIndexes;
+        
+        /** The default flags of the endpoints, or {@link #NO_DEFAULT}. */
+        @Nonnull private final byte[] endpointDefaults;
+        
+        /** The start offsets of the certificates of the services, followed by the total number of the certificates. */
+        @Nonnull private final int[] certificateOffsets;
+        
+        /** The references to the base64 certificates. */
+        @Nonnull private final int[] certificates;
+        
+        /** The uses of the certificates, or {@link #NO_USE}. */
+        @Nonnull private final byte[] certificateUses;
+        
+        /** The hash index slots, containing the row plus one, or zero for the free slots. */
+        @Nonnull private final int[] slots;
+        
+        /** The mask for reducing the hash codes to the slots. */
+        private final int mask;
+        
+        /** The cache of the built entities by their row. */
+        @Nonnull private final Cache<Integer, EntityDescriptor> cache;
+        
+        /**
+         * Constructor.
+         * 
+         * @param entries The services.
+         * @param cacheSize The maximum number of the cached entity descriptors.
+         */
+        private Rows(@Nonnull final Collection<ServiceEntry> entries, final int cacheSize) {
+            final int count = entries.size();
+            final PackedStringTable.Builder builder = new PackedStringTable.Builder();
+            startTimes = new long[count];
+            endTimes = new long[count];
+            entityIdPrefixes = new int[count];
+            entityIdSuffixes = new int[count];
+            entityIdHashes = new int[count];
+            endpointOffsets = new int[count + 1];
+            certificateOffsets = new int[count + 1];
+            final List<ServiceEndpoint> endpoints = new ArrayList<>(count);
+            final List<ServiceCertificate> serviceCertificates = new ArrayList<>();
+            int row = 0;
+            for (final ServiceEntry entry : entries) {
+                final String entityId = entry.getEntityId();
+                startTimes[row] = entry.getStartTime();
+                endTimes[row] = entry.getEndTime();
+                final int split = PackedStringTable.splitPoint(entityId);
+                entityIdPrefixes[row] = builder.add(entityId.substring(0, split));
+                entityIdSuffixes[row] = builder.add(entityId.substring(split));
+                entityIdHashes[row] = entityId.hashCode();
+                endpoints.addAll(entry.getEndpoints());
+                serviceCertificates.addAll(entry.getCertificates());
+                endpointOffsets[++row] = endpoints.size();
+                certificateOffsets[row] = serviceCertificates.size();
+            }
+            bindings = new int[endpoints.size()];
+            locationPrefixes = new int[endpoints.size()];
+            locationSuffixes = new int[endpoints.size()];
+            endpointIndexes = new int[endpoints.size()];
+            endpointDefaults = new byte[endpoints.size()];
+            for (int i = 0; i < endpoints.size(); i++) {
+                final ServiceEndpoint endpoint = endpoints.get(i);
+                final String location = endpoint.getLocation();
+                final int split = PackedStringTable.splitPoint(location);
+                bindings[i] = builder.add(endpoint.getBinding());
+                locationPrefixes[i] = builder.add(location.substring(0, split));
+                locationSuffixes[i] = builder.add(location.substring(split));
+                endpointIndexes[i] = endpoint.getIndex() == null ? NO_INDEX : endpoint.getIndex();
+                endpointDefaults[i] = endpoint.isDefault() == null ? NO_DEFAULT : (byte) (endpoint.isDefault() ? 1 : 0);
+            }
+            certificates = new int[serviceCertificates.size()];
+            certificateUses = new byte[serviceCertificates.size()];
+            for (int i = 0; i < serviceCertificates.size(); i++) {
+                final ServiceCertificate certificate = serviceCertificates.get(i);
+                certificates[i] = builder.add(certificate.getEncoded());
+                certificateUses[i] = certificate.getUse() == null ? NO_USE : (byte) certificate.getUse().ordinal();
+            }
+            strings = builder.build();
+            final int capacity = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+            slots = new int[capacity];
+            mask = capacity - 1;
+            for (row = 0; row < count; row++) {
+                int slot = spread(entityIdHashes[row]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = row + 1;
+            }
+            cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        }
+        
+        /**
+         * Get the number of the rows.
+         * @return The number of the rows.
+         */
+        private int size() {
+            return startTimes.length;
+        }
+        
+        /**
+         * Finds the first active row with the given entity ID. The rows with the same entity ID are in the order of
+         * the rows on the probe sequence, as they are indexed in that order.
+         * 
+         * @param entityId The entity ID.
+         * @param active Whether each row is active.
+         * @return The row, or -1 if no active row has the entity ID.
+         */
+        private int find(@Nonnull final String entityId, @Nonnull final boolean[] active) {
+            final int hash = entityId.hashCode();
+            int slot = spread(hash) & mask;
+            while (slots[slot] != 0) {
+                final int row = slots[slot] - 1;
+                if (active[row] && entityIdHashes[row] == hash && entityIdMatches(row, entityId)) {
+                    return row;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+        
+        /**
+         * Checks whether the entity ID of the given row equals to the given one, without decoding it.
+         * 
+         * @param row The row.
+         * @param entityId The entity ID.
+         * @return true if the entity IDs are equal, false otherwise.
+         */
+        private boolean entityIdMatches(final int row, @Nonnull final String entityId) {
+            final int prefix = strings.regionMatches(entityIdPrefixes[row], entityId, 0);
+            if (prefix < 0) {
+                return false;
+            }
+            final int suffix = strings.regionMatches(entityIdSuffixes[row], entityId, prefix);
+            return suffix >= 0 && prefix + suffix == entityId.length();
+        }
+        
+        /**
+         * Get the entity for the given row, building and caching it if not cached.
+         * 
+         * @param row The row.
+         * @return The entity.
+         */
+        @Nonnull private EntityDescriptor materialize(final int row) {
+            final Integer key = row;
+            final EntityDescriptor cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+            final List<ServiceEndpoint> endpoints = new ArrayList<>(endpointOffsets[row + 1] - endpointOffsets[row]);
+            for (int i = endpointOffsets[row]; i < endpointOffsets[row + 1]; i++) {
+                endpoints.add(new ServiceEndpoint(strings.get(bindings[i]),
+                        strings.get(locationPrefixes[i]) + strings.get(locationSuffixes[i]),
+                        endpointIndexes[i] == NO_INDEX ? null : endpointIndexes[i],
+                        endpointDefaults[i] == NO_DEFAULT ? null : endpointDefaults[i] == 1));
+            }
+            final List<ServiceCertificate> serviceCertificates = 
+                    new ArrayList<>(certificateOffsets[row + 1] - certificateOffsets[row]);
+            for (int i = certificateOffsets[row]; i < certificateOffsets[row + 1]; i++) {
+                serviceCertificates.add(new ServiceCertificate(
+                        certificateUses[i] == NO_USE ? null : UsageType.values()[certificateUses[i]],
+                        strings.get(certificates[i])));
+            }
+            final EntityDescriptor built = ServiceMetadataSupport.buildEntityDescriptor(
+                    strings.get(entityIdPrefixes[row]) + strings.get(entityIdSuffixes[row]), endpoints,
+                    serviceCertificates);
+            final EntityDescriptor existing = cache.asMap().putIfAbsent(key, built);
+            return existing != null ? existing : built;
+        }
+        
+        /**
+         * Builds the criteria indexes over the given rows from their packed contents. The keys are those of the
+         * entities built by {@link ServiceMetadataSupport}: a single SAML 2.0 SP role and its endpoints.
+         * 
+         * @param positions The rows, in the order of the entities.
+         * @param entities The entities for the rows, built on access.
+         * @return The criteria indexes.
+         */
+        @Nonnull private EntityCriteriaIndex buildCriteriaIndex(@Nonnull final int[] positions,
+                @Nonnull final List<EntityDescriptor> entities) {
+            final EntityCriteriaIndex.Builder builder = new EntityCriteriaIndex.Builder();
+            final List<String> protocols = Collections.singletonList(SAMLConstants.SAML20P_NS);
+            for (int i = 0; i < positions.length; i++) {
+                final int row = positions[i];
+                builder.addEntityId(i, strings.get(entityIdPrefixes[row]) + strings.get(entityIdSuffixes[row]));
+                builder.addRole(i, SPSSODescriptor.DEFAULT_ELEMENT_NAME, protocols);
+                for (int j = endpointOffsets[row]; j < endpointOffsets[row + 1]; j++) {
+                    builder.addEndpoint(i, strings.get(bindings[j]),
+                            strings.get(locationPrefixes[j]) + strings.get(locationSuffixes[j]));
+                }
+            }
+            return builder.build(entities);
+        }
+        
+        /**
+         * Spreads the higher bits of the given hash code to the lower ones, as the slots are selected by the lower
+         * bits.
+         * 
+         * @param hash The hash code.
+         * @return The spread hash code.
+         */
+        private static int spread(final int hash) {
+            final int mixed = hash * 0x9E3779B9;
+            return mixed ^ (mixed >>> 16);
+        }
+    }
+}
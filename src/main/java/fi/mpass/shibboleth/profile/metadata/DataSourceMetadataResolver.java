@@ -22,56 +22,96 @@
  */
 package fi.mpass.shibboleth.profile.metadata;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.Timer;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
+import javax.xml.stream.XMLStreamException;
 
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
 import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.io.Marshaller;
 import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
-import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
 import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
 import org.opensaml.saml.metadata.resolver.impl.AbstractReloadingMetadataResolver;
-import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
-import org.opensaml.saml.saml2.metadata.impl.AssertionConsumerServiceBuilder;
 import org.opensaml.saml.saml2.metadata.impl.EntitiesDescriptorBuilder;
-import org.opensaml.saml.saml2.metadata.impl.EntityDescriptorBuilder;
-import org.opensaml.saml.saml2.metadata.impl.SPSSODescriptorBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 
+import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolverMetrics.RefreshPhase;
+import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolverMetrics.ResolveType;
+import fi.mpass.shibboleth.profile.metadata.StreamingMetadataSerializer.SerializedContents;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 
 /**
  * A {@link MetadataResolver} implementation that reads the minimal SAML entity configurations from a data source.
+ * 
+ * <p>Only the services active at the time of the refresh, according to their start and end times, are installed.
+ * When the entities are built directly, the upcoming start and end events are tracked, and the services appear
+ * and disappear at the exact times without waiting for the next refresh.</p>
+ * 
+ * <p>In addition to the entity ID, the entities can be resolved by their role, protocol, endpoint binding and
+ * endpoint location, see {@link EntityCriteriaIndex}. The indexes are built once for each installed set of
+ * entities, when the first such criteria are resolved.</p>
  */
 public class DataSourceMetadataResolver extends AbstractReloadingMetadataResolver
     implements MetadataResolver, RefreshableMetadataResolver {
     
-    /** The database table name for the service providers. */
+    /** The default database table name for the service providers. */
     public static final String TABLE_NAME_SERVICES = "mpass_services";
     
     /** The column name for the SAML entity ID. */
@@ -80,28 +120,260 @@ public class DataSourceMetadataResolver extends AbstractReloadingMetadataResolve
     /** The column name for the SAML (POST-binding) assertion consumer service URL. */
     public static final String COLUMN_ID_ACS_URL = "samlAcsUrl";
     
+    /** The column name for the row identifier. */
+    public static final String COLUMN_ID_ID = "id";
+    
+    /** The column name for the time when the service becomes active. */
+    public static final String COLUMN_ID_START_TIME = "startTime";
+    
+    /** The column name for the time when the service ends. */
+    public static final String COLUMN_ID_END_TIME = "endTime";
+    
+    /** The column alias for the last modification time. */
+    public static final String COLUMN_ID_LAST_MODIFIED = "lastModified";
+    
+    /** The conventional database table name for the service endpoints. */
+    public static final String TABLE_NAME_ENDPOINTS = "mpass_service_endpoints";
+    
+    /** The column name for the service row identifier in the endpoints table. */
+    public static final String COLUMN_ID_SERVICE_ID = "serviceId";
+    
+    /** The default interval for the full reloads in the delta refresh mode: one hour. */
+    public static final long DEFAULT_FULL_REFRESH_INTERVAL = 60 * 60 * 1000L;
+    
+    /** The default maximum time the refreshes are skipped by the change probe: one hour. */
+    public static final long DEFAULT_MAX_SKIP_INTERVAL = 60 * 60 * 1000L;
+    
+    /** The default interval for polling the change log table: one second. */
+    public static final long DEFAULT_CHANGE_LOG_POLL_INTERVAL = 1000L;
+    
+    /** The default quiet period before refreshing the changed services: half a second. */
+    public static final long DEFAULT_CHANGE_LOG_DEBOUNCE = 500L;
+    
+    /** The default timeout for the database queries: one minute. */
+    public static final long DEFAULT_QUERY_TIMEOUT = 60 * 1000L;
+    
+    /** The default maximum number of the entity descriptors cached in the compact store. */
+    public static final int DEFAULT_COMPACT_CACHE_SIZE = CompactServiceStore.DEFAULT_CACHE_SIZE;
+    
+    /** The column name for the resolver identifier in the shared snapshot table. */
+    public static final String COLUMN_ID_NAME = "name";
+    
+    /** The column name for the snapshot version in the shared snapshot table. */
+    public static final String COLUMN_ID_VERSION = "version";
+    
+    /** The column name for the lease owner node in the shared snapshot table. */
+    public static final String COLUMN_ID_LEASE_OWNER = "leaseOwner";
+    
+    /** The column name for the lease expiration time in the shared snapshot table. */
+    public static final String COLUMN_ID_LEASE_EXPIRES = "leaseExpires";
+    
+    /** The column name for the compressed snapshot in the shared snapshot table. */
+    public static final String COLUMN_ID_SNAPSHOT = "snapshot";
+    
+    /** The default duration of the refresh lease in the coordinated mode: ten minutes. */
+    public static final long DEFAULT_LEASE_DURATION = 10 * 60 * 1000L;
+    
+    /** The maximum number of row identifiers in a single targeted refresh query. */
+    public static final int TARGETED_REFRESH_BATCH_SIZE = 100;
+    
+    /** The empty marker returned by the fetch when the metadata is parsed from the buffer of the serializer. */
+    private static final byte[] SERIALIZED_CONTENTS = new byte[0];
+    
+    /** The timer passed to the superclass in place of its own one. Cancelled, as the refreshes are not run on it. */
+    private static final Timer UNUSED_TIMER = newCancelledTimer();
+    
+    /** The JMX domain for the statistics MBeans. */
+    public static final String MBEAN_DOMAIN = "fi.mpass.shibboleth.profile.metadata";
+    
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(DataSourceMetadataResolver.class);
     
     /** The data source for the trusted SAML entity configuration. */
     @Nonnull private DataSource dataSource;
     
+    /** The mapping of the services table and the service queries built from it. */
+    @Nonnull private ServiceTableMapping mapping = new ServiceTableMapping();
+    
+    /** The number of the identifier range partitions fetched in parallel in the full refreshes. */
+    private int fetchParallelism = 1;
+    
+    /** The executor fetching the partitions, if the parallel fetch is enabled. */
+    @Nullable private ExecutorService fetchExecutor;
+    
+    /** The timeout for the database queries, in milliseconds, 0 for no timeout. */
+    @Duration private long queryTimeout = DEFAULT_QUERY_TIMEOUT;
+    
+    /** The scheduler running the scheduled refreshes and the retries of this resolver. */
+    @Nonnull private final RefreshScheduler refreshScheduler = new RefreshScheduler(this);
+    
+    /** The start time of the previous refresh. */
+    @Nullable private volatile DateTime lastRefresh;
+    
+    /** The generation of the set of the active services, increased on each change. Guarded by the activation lock. */
+    private long activationGeneration;
+    
+    /** Whether the entities are installed to the backing store directly, without serializing and parsing. */
+    private boolean directBuild;
+    
+    /** Whether the services are kept in a compact store, building their entities on demand. */
+    private boolean compactStore;
+    
+    /** The maximum number of the entity descriptors cached in the compact store. */
+    private int compactCacheSize = DEFAULT_COMPACT_CACHE_SIZE;
+    
+    /** The current compact store of the services, if the compact mode is used. Guarded by the activation lock. */
+    @Nullable private volatile CompactServiceStore compactServiceStore;
+    
+    /** Whether the incremental (delta) refresh mode is enabled. */
+    private boolean deltaRefresh;
+    
+    /** The interval for the full reloads in the delta refresh mode, in milliseconds. */
+    @Duration private long fullRefreshInterval = DEFAULT_FULL_REFRESH_INTERVAL;
+    
+    /** The services from the previous refresh, keyed by their row identifiers. Used in delta and change log modes. */
+    @Nullable private SortedMap<Long, ServiceEntry> entriesByRowId;
+    
+    /** The high-water mark of the rows seen so far. Only used in delta mode. */
+    @Nullable private HighWaterMark highWaterMark;
+    
+    /** The time of the previous full reload in delta mode, in milliseconds. */
+    private long lastFullRefresh;
+    
+    /** The optional probe for detecting whether the services have changed since the previous refresh. */
+    @Nullable private MetadataChangeProbe changeProbe;
+    
+    /** Whether a {@link QueryMetadataChangeProbe} over the mapping is used if no change probe is set. */
+    private boolean defaultChangeProbe;
+    
+    /** The maximum number of the consecutive refreshes skipped by the change probe, 0 for no limit. */
+    private int maxSkippedRefreshes;
+    
+    /** The maximum time since the previous refresh not skipped by the change probe, in milliseconds. */
+    @Duration private long maxSkipInterval = DEFAULT_MAX_SKIP_INTERVAL;
+    
+    /** The number of the consecutive refreshes skipped by the change probe. */
+    private int skippedRefreshes;
+    
+    /** The time of the previous refresh not skipped by the change probe, in milliseconds. */
+    private long lastProbedRefresh;
+    
+    /** The fingerprint computed by the change probe before the ongoing refresh. */
+    @Nullable private String currentFingerprint;
+    
+    /** The fingerprint computed by the change probe before the previous successful refresh. */
+    @Nullable private String lastFingerprint;
+    
+    /** The statistics of this resolver. */
+    @Nonnull private final DataSourceMetadataResolverMetrics metrics = new DataSourceMetadataResolverMetrics();
+    
+    /** Whether the statistics are registered to the platform MBean server. */
+    private boolean registerMBean;
+    
+    /** The name of the registered statistics MBean, if any. */
+    @Nullable private ObjectName mbeanName;
+    
+    /** The durations of the phases of the ongoing refresh, in nanoseconds, indexed by the phase ordinals. */
+    @Nonnull private final long[] phaseNanos = new long[RefreshPhase.values().length];
+    
+    /** Whether the ongoing refresh has failed. */
+    private boolean refreshFailed;
+    
+    /** The optional file for the snapshot of the last good services. */
+    @Nullable private String snapshotFile;
+    
+    /** The services fetched by the ongoing refresh, to be written to the snapshot file once it completes. */
+    @Nullable private Collection<ServiceEntry> pendingSnapshot;
+    
+    /** Whether the next refresh is the initial one. */
+    private boolean initialRefresh = true;
+    
+    /** The version of the most recently installed backing store. */
+    private long backingStoreVersion;
+    
+    /** The optional table name for the change log of the services. */
+    @Nullable private String changeLogTable;
+    
+    /** The interval for polling the change log table, in milliseconds. */
+    @Duration private long changeLogPollInterval = DEFAULT_CHANGE_LOG_POLL_INTERVAL;
+    
+    /** The quiet period before refreshing the changed services, in milliseconds. */
+    @Duration private long changeLogDebounce = DEFAULT_CHANGE_LOG_DEBOUNCE;
+    
+    /** The poller of the change log table, if enabled. */
+    @Nullable private ChangeLogPoller changeLogPoller;
+    
+    /** The optional table name for the snapshot shared by the cluster nodes. */
+    @Nullable private String sharedSnapshotTable;
+    
+    /** The identifier of this node in the cluster. */
+    @Nonnull private String nodeId = UUID.randomUUID().toString();
+    
+    /** The duration of the refresh lease, in milliseconds. */
+    @Duration private long leaseDuration = DEFAULT_LEASE_DURATION;
+    
+    /** The coordinator of the refreshes through the shared snapshot table, if enabled. */
+    @Nullable private SharedSnapshotCoordinator snapshotCoordinator;
+    
+    /** Whether this node held the refresh lease during the ongoing refresh. */
+    private volatile boolean leaseHeld;
+    
+    /** Whether the applied rows are deleted from the change log table. */
+    private boolean purgeChangeLog = true;
+    
+    /** The JDBC fetch size for the service queries, 0 for the driver default. */
+    private int fetchSize;
+    
+    /** The cursor type for the service queries. */
+    @Nonnull private CursorType cursorType = CursorType.FORWARD_ONLY;
+    
+    /** The services from the previous refresh, including the inactive ones. Only used when built directly. */
+    @Nonnull private List<ServiceEntry> serviceEntries = Collections.emptyList();
+    
+    /** The upcoming start and end events for the services. */
+    @Nonnull private volatile ServiceActivationTimeline activationTimeline = ServiceActivationTimeline.EMPTY;
+    
+    /** The source of the current time for the start and end times of the services. */
+    @Nonnull private volatile MetadataClock clock = MetadataClock.SYSTEM;
+    
+    /** Whether the services are filtered when their start or end events are due, as they were serialized. */
+    private boolean filterOnActivation;
+    
+    /** The services active at the next start or end event, prepared ahead of it. Guarded by the activation lock. */
+    @Nullable private volatile PreparedActivation preparedActivation;
+    
+    /** Whether the next refresh must not be skipped by the change probe, as start or end events are due. */
+    private volatile boolean activationRefreshDue;
+    
+    /** The serializer for the metadata, reusing its buffer between the refreshes. */
+    @Nonnull private final StreamingMetadataSerializer serializer = new StreamingMetadataSerializer();
+    
+    /** The metadata serialized by the ongoing refresh, parsed in place of the bytes returned by the fetch. */
+    @Nullable private SerializedContents pendingContents;
+    
+    /** The lock guarding the changes to the set of the active services. */
+    @Nonnull private final Object activationLock = new Object();
+    
+    /** The parsed certificates of the services, parsed when a credential is first requested for them. */
+    @Nonnull private final ServiceCertificateCache certificateCache = new ServiceCertificateCache();
+    
     /**
      * Constructor.
      * @param source The data source for the trusted SAML entity configuration.
      */
     public DataSourceMetadataResolver(final DataSource source) {
-        super();
-        setDataSource(source);
+        this(null, source);
     }
     
     /**
-     * Constructor.
-     * @param backgroundTaskTimer The timer used to schedule background refresh tasks.
+     * Constructor. The refreshes are always scheduled on the refresh executor of this resolver, the timer is only
+     * accepted for the compatibility with the other reloading resolvers. The superclass is given a shared cancelled
+     * timer instead, so that it does not start a timer thread of its own.
+     * @param backgroundTaskTimer The timer used to schedule background refresh tasks, not used.
      * @param source The data source for the trusted SAML entity configuration.
      */
     public DataSourceMetadataResolver(@Nullable final Timer backgroundTaskTimer, final DataSource source) {
-        super(backgroundTaskTimer);
+        super(UNUSED_TIMER);
         setDataSource(source);
     }
     
@@ -120,90 +392,2178 @@ public class DataSourceMetadataResolver extends AbstractReloadingMetadataResolve
     public DataSource getDataSource() {
         return dataSource;
     }
-
-    /** {@inheritDoc} */
-    @Override
-    public Iterable<EntityDescriptor> resolve(CriteriaSet criteria) throws ResolverException {
-        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
-        
-        //TODO add filtering for entity role, protocol? maybe
-        //TODO add filtering for binding? probably not, belongs better in RoleDescriptorResolver
-        
-        EntityIdCriterion entityIdCriterion = criteria.get(EntityIdCriterion.class);
-        if (entityIdCriterion == null || Strings.isNullOrEmpty(entityIdCriterion.getEntityId())) {
-            List<EntityDescriptor> descriptors = getBackingStore().getOrderedDescriptors();
-            if (descriptors != null) {
-                return new ArrayList<>(descriptors);
-            } else {
-                return Collections.emptyList();
-            }
-        }        
-        return lookupEntityID(entityIdCriterion.getEntityId());
+    
+    /**
+     * Set the mapping of the services table. The mapping can be shared with a
+     * {@link DynamicDataSourceMetadataResolver} reading the same tables. The table, column and predicate setters of
+     * this resolver modify the mapping set here.
+     * 
+     * @param tableMapping What to set.
+     */
+    public void setMapping(@Nonnull final ServiceTableMapping tableMapping) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        mapping = Constraint.isNotNull(tableMapping, "The table mapping cannot be null!");
     }
     
-    /** {@inheritDoc} */
-    @Override
-    public EntityDescriptor resolveSingle(CriteriaSet criteria) throws ResolverException {
-        return super.resolveSingle(criteria);
+    /**
+     * Get the mapping of the services table.
+     * @return The mapping of the services table.
+     */
+    @Nonnull public ServiceTableMapping getMapping() {
+        return mapping;
     }
-
-    /** {@inheritDoc} */
-    @Override
-    protected String getMetadataIdentifier() {
-        return getId();
+    
+    /**
+     * Set the table name for the services. Default {@value #TABLE_NAME_SERVICES}.
+     * @param table What to set.
+     */
+    public void setServicesTable(@Nonnull final String table) {
+        mapping.setServicesTable(table);
     }
-
-    /** {@inheritDoc} */
-    @Override
-    protected byte[] fetchMetadata() throws ResolverException {
-        log.trace("Start fetching metadata");
-        final EntitiesDescriptor entities = new EntitiesDescriptorBuilder().buildObject();
-        try (final Connection connection = getDataSource().getConnection()) {
-            ResultSet results = connection.prepareStatement("SELECT * from " + TABLE_NAME_SERVICES).executeQuery();
-            //TODO filter out the ones with a value in end-timestamp
-            //TODO support multiple ACS endpoints
-            while (results.next()) {
-                final EntityDescriptor entity = new EntityDescriptorBuilder().buildObject();
-                final String entityId = results.getString(COLUMN_ID_ENTITY_ID);
-                entity.setEntityID(entityId);
-                final SPSSODescriptor descriptor = new SPSSODescriptorBuilder().buildObject();
-                descriptor.addSupportedProtocol(SAMLConstants.SAML20P_NS);
-                final AssertionConsumerService acs = new AssertionConsumerServiceBuilder().buildObject();
-                acs.setBinding(SAMLConstants.SAML2_POST_BINDING_URI);
-                acs.setLocation(results.getString(COLUMN_ID_ACS_URL));
-                acs.setIndex(1);
-                acs.setIsDefault(true);
-                descriptor.getAssertionConsumerServices().add(acs);
-                entity.getRoleDescriptors().add(descriptor);
-                entities.getEntityDescriptors().add(entity);
-                log.debug("Added one entity descriptor for {}", entityId);
-            }
-        } catch (SQLException e) {
-            log.error("Could not fetch the services from the database", e);
-            return null;
-        }
-        final Marshaller marshaller = XMLObjectSupport.getMarshaller(entities);
-        try {
-            final Element element = marshaller.marshall(entities);
-            return getContents(element);
-        } catch (MarshallingException | UnsupportedEncodingException e) {
-            log.error("Could not marshall EntitiesDescriptor", e);
-        }
-        return null;
+    
+    /**
+     * Get the table name for the services.
+     * @return The table name for the services.
+     */
+    @Nonnull public String getServicesTable() {
+        return mapping.getServicesTable();
     }
-
+    
     /**
-     * Get the contents for the given element as UTF-16 encoded byte array.
-     * @param element The element.
-     * @return The contents of the element as byte array.
-     * @throws UnsupportedEncodingException If UTF-16 encoding is not supported by the platform.
-     */
-    protected byte[] getContents(final Element element) throws UnsupportedEncodingException {
-        final Document document = element.getOwnerDocument();
-        final DOMImplementationLS domImplLs = (DOMImplementationLS) document.getImplementation();
-        final LSSerializer serializer = domImplLs.createLSSerializer();
-        final String str = serializer.writeToString(element);
-        log.trace("Built the following element from the contents of the database: {}", str);
-        return str.getBytes("UTF-16");
+     * Set the column name for the row identifier. Default {@value #COLUMN_ID_ID}.
+     * @param column What to set.
+     */
+    public void setIdColumn(@Nonnull final String column) {
+        mapping.setIdColumn(column);
+    }
+    
+    /**
+     * Get the column name for the row identifier.
+     * @return The column name for the row identifier.
+     */
+    @Nonnull public String getIdColumn() {
+        return mapping.getIdColumn();
+    }
+    
+    /**
+     * Set the column name for the SAML entity ID. Default {@value #COLUMN_ID_ENTITY_ID}.
+     * @param column What to set.
+     */
+    public void setEntityIdColumn(@Nonnull final String column) {
+        mapping.setEntityIdColumn(column);
+    }
+    
+    /**
+     * Get the column name for the SAML entity ID.
+     * @return The column name for the SAML entity ID.
+     */
+    @Nonnull public String getEntityIdColumn() {
+        return mapping.getEntityIdColumn();
+    }
+    
+    /**
+     * Set the column name for the ACS URL. Default {@value #COLUMN_ID_ACS_URL}.
+     * @param column What to set.
+     */
+    public void setAcsUrlColumn(@Nonnull final String column) {
+        mapping.setAcsUrlColumn(column);
+    }
+    
+    /**
+     * Get the column name for the ACS URL.
+     * @return The column name for the ACS URL.
+     */
+    @Nonnull public String getAcsUrlColumn() {
+        return mapping.getAcsUrlColumn();
+    }
+    
+    /**
+     * Set the column name for the start time. Default {@value #COLUMN_ID_START_TIME}.
+     * @param column What to set.
+     */
+    public void setStartTimeColumn(@Nonnull final String column) {
+        mapping.setStartTimeColumn(column);
+    }
+    
+    /**
+     * Get the column name for the start time.
+     * @return The column name for the start time.
+     */
+    @Nonnull public String getStartTimeColumn() {
+        return mapping.getStartTimeColumn();
+    }
+    
+    /**
+     * Set the column name for the end time. Default {@value #COLUMN_ID_END_TIME}.
+     * @param column What to set.
+     */
+    public void setEndTimeColumn(@Nonnull final String column) {
+        mapping.setEndTimeColumn(column);
+    }
+    
+    /**
+     * Get the column name for the end time.
+     * @return The column name for the end time.
+     */
+    @Nonnull public String getEndTimeColumn() {
+        return mapping.getEndTimeColumn();
+    }
+    
+    /**
+     * Set the optional column name for the signing certificate of the services. If set, the services with a
+     * non-null value get a key descriptor with the signing use. The column contains the base64-encoded DER
+     * certificate, optionally with the PEM armor. The certificates are not decoded or parsed by the refreshes.
+     * 
+     * @param column What to set.
+     */
+    public void setSigningCertificateColumn(@Nullable final String column) {
+        mapping.setSigningCertificateColumn(column);
+    }
+    
+    /**
+     * Get the optional column name for the signing certificate.
+     * @return The optional column name for the signing certificate.
+     */
+    @Nullable public String getSigningCertificateColumn() {
+        return mapping.getSigningCertificateColumn();
+    }
+    
+    /**
+     * Set the optional column name for the encryption certificate of the services. If set, the services with a
+     * non-null value get a key descriptor with the encryption use. The column contains the base64-encoded DER
+     * certificate, optionally with the PEM armor.
+     * 
+     * @param column What to set.
+     */
+    public void setEncryptionCertificateColumn(@Nullable final String column) {
+        mapping.setEncryptionCertificateColumn(column);
+    }
+    
+    /**
+     * Get the optional column name for the encryption certificate.
+     * @return The optional column name for the encryption certificate.
+     */
+    @Nullable public String getEncryptionCertificateColumn() {
+        return mapping.getEncryptionCertificateColumn();
+    }
+    
+    /**
+     * Get the cache for the parsed certificates of the services, to be used by the KeyInfo credential resolver of
+     * this resolver through a {@link ServiceCertificateKeyInfoProvider}. The cache is cleared when this resolver is
+     * destroyed.
+     * 
+     * @return The cache for the parsed certificates of the services.
+     */
+    @Nonnull public ServiceCertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+    
+    /**
+     * Set the optional predicate for selecting the services, e.g. <code>tenant = 'example'</code>. The predicate is
+     * added to the WHERE clause of all the service queries, so that the filtering can use the database indexes. If
+     * the endpoint table is configured, the services table has the alias <code>s</code> and the endpoints table the
+     * alias <code>e</code> in all the queries, the aggregate range and fingerprint queries included. The predicate
+     * cannot contain parameters, statement separators or comments.
+     * 
+     * @param predicate What to set.
+     */
+    public void setWherePredicate(@Nullable final String predicate) {
+        mapping.setWherePredicate(predicate);
+    }
+    
+    /**
+     * Get the optional predicate for selecting the services.
+     * @return The optional predicate for selecting the services.
+     */
+    @Nullable public String getWherePredicate() {
+        return mapping.getWherePredicate();
+    }
+    
+    /**
+     * Set the timeout for the database queries. The timeout is applied to all the statements run by this resolver,
+     * rounded up to full seconds. Default one minute.
+     * 
+     * @param timeout What to set, in milliseconds, 0 for no timeout.
+     */
+    public void setQueryTimeout(@Duration final long timeout) {
+        queryTimeout = Constraint.isGreaterThanOrEqual(0, timeout, "The query timeout cannot be negative");
+    }
+    
+    /**
+     * Get the timeout for the database queries.
+     * @return The timeout for the database queries, in milliseconds, 0 for no timeout.
+     */
+    @Duration public long getQueryTimeout() {
+        return queryTimeout;
+    }
+    
+    /**
+     * Set the number of the partitions fetched in parallel in the full refreshes. If greater than one, the range of
+     * the row identifiers is split into this many partitions, each of them fetched on its own connection from the
+     * data source, and the services are built on a pool of the same size. The partitions are merged in the order of
+     * the row identifiers, hence the result is the same as with the sequential fetch. The data source should allow
+     * at least this many concurrent connections. The delta refreshes are always fetched sequentially. Default 1.
+     * 
+     * @param parallelism What to set.
+     */
+    public void setFetchParallelism(final int parallelism) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        fetchParallelism = Constraint.isGreaterThan(0, parallelism, "The fetch parallelism must be positive");
+    }
+    
+    /**
+     * Get the number of the partitions fetched in parallel in the full refreshes.
+     * @return The number of the partitions fetched in parallel in the full refreshes.
+     */
+    public int getFetchParallelism() {
+        return fetchParallelism;
+    }
+    
+    /**
+     * Set whether the entities are installed to the backing store directly, without the marshall, serialize and
+     * parse round trip. If a metadata filter is configured, the entities are marshalled to DOM for the filter but
+     * never serialized.
+     * @param flag What to set.
+     */
+    public void setDirectBuild(final boolean flag) {
+        directBuild = flag;
+    }
+    
+    /**
+     * Get whether the entities are installed to the backing store directly.
+     * @return Whether the entities are installed to the backing store directly.
+     */
+    public boolean isDirectBuild() {
+        return directBuild;
+    }
+    
+    /**
+     * Set whether the services are kept in a compact store instead of the backing store. In the compact mode the
+     * services are kept as packed rows, and their entities are built only when resolved and cached up to
+     * {@link #setCompactCacheSize(int)} entities, so that the heap usage does not grow with all the registered
+     * services. The entities are always built directly, as with {@link #setDirectBuild(boolean)}. The compact mode
+     * is not used if a metadata filter is configured. It cannot be combined with the delta refresh or change log
+     * modes, as they keep all the registered services for patching them.
+     * 
+     * @param flag What to set.
+     */
+    public void setCompactStore(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        compactStore = flag;
+    }
+    
+    /**
+     * Get whether the services are kept in a compact store instead of the backing store.
+     * @return Whether the services are kept in a compact store.
+     */
+    public boolean isCompactStore() {
+        return compactStore;
+    }
+    
+    /**
+     * Set the maximum number of the entity descriptors cached in the compact store. Default 1000.
+     * @param size What to set.
+     */
+    public void setCompactCacheSize(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        compactCacheSize = Constraint.isGreaterThan(0, size, "The compact cache size must be positive");
+    }
+    
+    /**
+     * Get the maximum number of the entity descriptors cached in the compact store.
+     * @return The maximum number of the entity descriptors cached in the compact store.
+     */
+    public int getCompactCacheSize() {
+        return compactCacheSize;
+    }
+    
+    /**
+     * Get the current compact store of the services.
+     * @return The current compact store, or null if the compact mode is not used or nothing is installed yet.
+     */
+    @Nullable public CompactServiceStore getCompactServiceStore() {
+        return compactServiceStore;
+    }
+    
+    /**
+     * Checks whether the compact mode is used, i.e. it is enabled and no metadata filter is configured.
+     * @return Whether the compact mode is used.
+     */
+    protected boolean isCompactMode() {
+        return compactStore && getMetadataFilter() == null;
+    }
+    
+    /**
+     * Set whether the incremental (delta) refresh mode is enabled. In delta mode only the rows whose last
+     * modification time is at or after the latest one seen are fetched from the data source, and the entities are
+     * patched to the backing store directly. The delta mode requires the {@link #setLastModifiedColumn(String)},
+     * which must be updated on every change of the service row or its endpoints. Deleted rows and rows no longer
+     * selected by the predicate are only noticed by the full reloads, run on the
+     * {@link #setFullRefreshInterval(long)} cadence. The delta mode is not used if a metadata filter is configured.
+     * @param flag What to set.
+     */
+    public void setDeltaRefresh(final boolean flag) {
+        deltaRefresh = flag;
+    }
+    
+    /**
+     * Get whether the incremental (delta) refresh mode is enabled.
+     * @return Whether the incremental (delta) refresh mode is enabled.
+     */
+    public boolean isDeltaRefresh() {
+        return deltaRefresh;
+    }
+    
+    /**
+     * Set the interval for the full reloads in the delta refresh mode.
+     * @param interval What to set, in milliseconds.
+     */
+    public void setFullRefreshInterval(@Duration final long interval) {
+        fullRefreshInterval = Constraint.isGreaterThan(0, interval, "The full refresh interval must be positive");
+    }
+    
+    /**
+     * Get the interval for the full reloads in the delta refresh mode.
+     * @return The interval for the full reloads in the delta refresh mode, in milliseconds.
+     */
+    @Duration public long getFullRefreshInterval() {
+        return fullRefreshInterval;
+    }
+    
+    /**
+     * Set the optional column name for the last modification time, required by the delta refresh mode. The rows
+     * with a null value are only fetched by the full reloads.
+     * @param column What to set.
+     */
+    public void setLastModifiedColumn(@Nullable final String column) {
+        mapping.setLastModifiedColumn(column);
+    }
+    
+    /**
+     * Get the optional column name for the last modification time.
+     * @return The optional column name for the last modification time.
+     */
+    @Nullable public String getLastModifiedColumn() {
+        return mapping.getLastModifiedColumn();
+    }
+
+    /**
+     * Set the optional probe for detecting whether the services have changed since the previous refresh. If the
+     * probe finds no changes, the refresh is skipped entirely.
+     * @param probe What to set.
+     */
+    public void setChangeProbe(@Nullable final MetadataChangeProbe probe) {
+        changeProbe = probe;
+    }
+    
+    /**
+     * Get the optional probe for detecting whether the services have changed since the previous refresh.
+     * @return The optional probe for detecting whether the services have changed since the previous refresh.
+     */
+    @Nullable public MetadataChangeProbe getChangeProbe() {
+        return changeProbe;
+    }
+    
+    /**
+     * Set the source of the current time for the start and end times of the services, the full reloads and the
+     * change probe limits. Default {@link MetadataClock#SYSTEM}.
+     * @param metadataClock What to set.
+     */
+    public void setClock(@Nonnull final MetadataClock metadataClock) {
+        clock = Constraint.isNotNull(metadataClock, "The clock cannot be null");
+    }
+    
+    /**
+     * Get the source of the current time for the start and end times of the services.
+     * @return The source of the current time for the start and end times of the services.
+     */
+    @Nonnull public MetadataClock getClock() {
+        return clock;
+    }
+    
+    /**
+     * Set whether a {@link QueryMetadataChangeProbe} over the mapping of this resolver is used, if no change probe
+     * is set. The probe fingerprints the services selected by the mapping and its predicate.
+     * @param flag What to set.
+     */
+    public void setDefaultChangeProbe(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        defaultChangeProbe = flag;
+    }
+    
+    /**
+     * Get whether a {@link QueryMetadataChangeProbe} over the mapping of this resolver is used, if no change probe
+     * is set.
+     * @return Whether the default change probe is used.
+     */
+    public boolean isDefaultChangeProbe() {
+        return defaultChangeProbe;
+    }
+    
+    /**
+     * Set the maximum number of the consecutive refreshes skipped by the change probe, after which the refresh is
+     * run even if the fingerprint has not changed. Default 0, for no limit.
+     * @param max What to set.
+     */
+    public void setMaxSkippedRefreshes(final int max) {
+        maxSkippedRefreshes = (int) Constraint.isGreaterThanOrEqual(0, max, 
+                "The maximum number of skipped refreshes cannot be negative");
+    }
+    
+    /**
+     * Get the maximum number of the consecutive refreshes skipped by the change probe.
+     * @return The maximum number of the consecutive refreshes skipped by the change probe, 0 for no limit.
+     */
+    public int getMaxSkippedRefreshes() {
+        return maxSkippedRefreshes;
+    }
+    
+    /**
+     * Set the maximum time since the previous refresh not skipped by the change probe, after which the refresh is
+     * run even if the fingerprint has not changed. Catches the edits the probe cannot see.
+     * Default {@value #DEFAULT_MAX_SKIP_INTERVAL}.
+     * @param interval What to set, in milliseconds.
+     */
+    public void setMaxSkipInterval(@Duration final long interval) {
+        maxSkipInterval = Constraint.isGreaterThan(0, interval, "The maximum skip interval must be positive");
+    }
+    
+    /**
+     * Get the maximum time since the previous refresh not skipped by the change probe.
+     * @return The maximum time since the previous refresh not skipped by the change probe, in milliseconds.
+     */
+    @Duration public long getMaxSkipInterval() {
+        return maxSkipInterval;
+    }
+    
+    /**
+     * Set the optional table name for the service endpoints. If set, the endpoints are loaded with the services
+     * in a single join query ordered by the service row identifier, and grouped while streaming the rows. The
+     * table must contain the {@value #COLUMN_ID_SERVICE_ID}, {@value ServiceEntryAssembler#COLUMN_ID_BINDING},
+     * {@value ServiceEntryAssembler#COLUMN_ID_LOCATION}, {@value ServiceEntryAssembler#COLUMN_ID_ENDPOINT_INDEX} and
+     * {@value ServiceEntryAssembler#COLUMN_ID_IS_DEFAULT} columns. The services without endpoint rows get a single
+     * POST-binding endpoint from their ACS URL column.
+     * 
+     * @param table What to set.
+     */
+    public void setEndpointTable(@Nullable final String table) {
+        mapping.setEndpointTable(table);
+    }
+    
+    /**
+     * Get the optional table name for the service endpoints.
+     * @return The optional table name for the service endpoints.
+     */
+    @Nullable public String getEndpointTable() {
+        return mapping.getEndpointTable();
+    }
+    
+    /**
+     * Set the JDBC fetch size for the service queries. A non-zero value enables the streaming fetch: the rows are
+     * read within a transaction, as required by some drivers (e.g. PostgreSQL) for using cursors. With the MySQL
+     * driver, the value {@link Integer#MIN_VALUE} streams the rows one by one.
+     * @param size What to set, 0 for the driver default.
+     */
+    public void setFetchSize(final int size) {
+        fetchSize = size;
+    }
+    
+    /**
+     * Get the JDBC fetch size for the service queries.
+     * @return The JDBC fetch size for the service queries, 0 for the driver default.
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+    
+    /**
+     * Set the cursor type for the service queries.
+     * @param type What to set.
+     */
+    public void setCursorType(@Nonnull final CursorType type) {
+        cursorType = Constraint.isNotNull(type, "The cursor type cannot be null!");
+    }
+    
+    /**
+     * Get the cursor type for the service queries.
+     * @return The cursor type for the service queries.
+     */
+    @Nonnull public CursorType getCursorType() {
+        return cursorType;
+    }
+    
+    /**
+     * Get the number of refreshes skipped because the change probe found no changes.
+     * @return The number of refreshes skipped because the change probe found no changes.
+     */
+    public long getSkippedRefreshCount() {
+        return metrics.getSkippedRefreshCount();
+    }
+    
+    /**
+     * Get the statistics of this resolver.
+     * @return The statistics of this resolver.
+     */
+    @Nonnull public DataSourceMetadataResolverMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Set whether the statistics are registered to the platform MBean server, with the name
+     * <code>fi.mpass.shibboleth.profile.metadata:type=DataSourceMetadataResolver,name="&lt;id&gt;"</code>.
+     * @param flag What to set.
+     */
+    public void setRegisterMBean(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        registerMBean = flag;
+    }
+    
+    /**
+     * Get whether the statistics are registered to the platform MBean server.
+     * @return Whether the statistics are registered to the platform MBean server.
+     */
+    public boolean isRegisterMBean() {
+        return registerMBean;
+    }
+    
+    /**
+     * Set the optional file for the snapshot of the last good services. The snapshot is written atomically after
+     * each successful refresh from the data source. If the file exists at initialization, the services are installed
+     * from it immediately and the initial refresh from the data source is run in the background, so that neither
+     * the startup nor the fail-fast initialization depends on the data source being reachable. If the data source
+     * is unreachable later, the previously installed services are kept.
+     * 
+     * @param file What to set.
+     */
+    public void setSnapshotFile(@Nullable final String file) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        snapshotFile = StringSupport.trimOrNull(file);
+    }
+    
+    /**
+     * Get the optional file for the snapshot of the last good services.
+     * @return The optional file for the snapshot of the last good services.
+     */
+    @Nullable public String getSnapshotFile() {
+        return snapshotFile;
+    }
+    
+    /**
+     * Set the optional table name for the change log of the services. If set, the table is polled for the
+     * rows added since the previous poll, and the services referenced by them are refreshed in a targeted query,
+     * once no new changes have been seen for the {@link #setChangeLogDebounce(long)} period. The table must contain
+     * an increasing {@value #COLUMN_ID_ID} column, preferably the primary key, and the {@value #COLUMN_ID_SERVICE_ID}
+     * column referencing the changed service. It is typically maintained by triggers on the services and endpoints
+     * tables. The scheduled refreshes are still run as a safety net, and can be made less frequent.
+     * 
+     * @param table What to set.
+     */
+    public void setChangeLogTable(@Nullable final String table) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        changeLogTable = ServiceTableMapping.checkIdentifier(StringSupport.trimOrNull(table));
+    }
+    
+    /**
+     * Get the optional table name for the change log of the services.
+     * @return The optional table name for the change log of the services.
+     */
+    @Nullable public String getChangeLogTable() {
+        return changeLogTable;
+    }
+    
+    /**
+     * Set the interval for polling the change log table.
+     * @param interval What to set, in milliseconds.
+     */
+    public void setChangeLogPollInterval(@Duration final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        changeLogPollInterval = Constraint.isGreaterThan(0, interval, "The poll interval must be positive");
+    }
+    
+    /**
+     * Get the interval for polling the change log table.
+     * @return The interval for polling the change log table, in milliseconds.
+     */
+    @Duration public long getChangeLogPollInterval() {
+        return changeLogPollInterval;
+    }
+    
+    /**
+     * Set the quiet period before refreshing the changed services. A burst of changes is refreshed at once when
+     * no new changes have been seen for this period, or at the latest when ten times the period has passed since
+     * the first change of the burst.
+     * 
+     * @param debounce What to set, in milliseconds.
+     */
+    public void setChangeLogDebounce(@Duration final long debounce) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        changeLogDebounce = Constraint.isGreaterThanOrEqual(0, debounce, "The quiet period cannot be negative");
+    }
+    
+    /**
+     * Get the quiet period before refreshing the changed services.
+     * @return The quiet period before refreshing the changed services, in milliseconds.
+     */
+    @Duration public long getChangeLogDebounce() {
+        return changeLogDebounce;
+    }
+    
+    /**
+     * Set whether the change log rows are deleted once the services referenced by them have been refreshed. With a
+     * shared snapshot table, only the node holding the refresh lease deletes them, and the other nodes receive the
+     * changes with the shared snapshot. Should be disabled if several resolvers poll the same change log table
+     * without a shared snapshot table. Default true.
+     * 
+     * @param flag What to set.
+     */
+    public void setPurgeChangeLog(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        purgeChangeLog = flag;
+    }
+    
+    /**
+     * Get whether the change log rows are deleted once the services referenced by them have been refreshed.
+     * @return Whether the applied change log rows are deleted.
+     */
+    public boolean isPurgeChangeLog() {
+        return purgeChangeLog;
+    }
+    
+    /**
+     * Set the optional table name for the snapshot shared by the cluster nodes. If set, the refreshes are
+     * coordinated: the node holding the refresh lease fetches the services from the data source and publishes them
+     * as a versioned, compressed snapshot, and the other nodes only check the version and download the snapshot when
+     * it changes. The lease is renewed on each refresh, hence its duration should be longer than the refresh
+     * interval, and taken over by another node once it expires. The table must contain the {@value #COLUMN_ID_NAME}
+     * (primary key, the resolver identifier), {@value #COLUMN_ID_VERSION}, {@value #COLUMN_ID_LEASE_OWNER},
+     * {@value #COLUMN_ID_LEASE_EXPIRES} and {@value #COLUMN_ID_SNAPSHOT} (binary) columns.
+     * 
+     * @param table What to set.
+     */
+    public void setSharedSnapshotTable(@Nullable final String table) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        sharedSnapshotTable = ServiceTableMapping.checkIdentifier(StringSupport.trimOrNull(table));
+    }
+    
+    /**
+     * Get the optional table name for the snapshot shared by the cluster nodes.
+     * @return The optional table name for the snapshot shared by the cluster nodes.
+     */
+    @Nullable public String getSharedSnapshotTable() {
+        return sharedSnapshotTable;
+    }
+    
+    /**
+     * Set the identifier of this node in the cluster. Defaults to a random identifier.
+     * @param id What to set.
+     */
+    public void setNodeId(@Nonnull final String id) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        nodeId = Constraint.isNotNull(StringSupport.trimOrNull(id), "The node identifier cannot be empty!");
+    }
+    
+    /**
+     * Get the identifier of this node in the cluster.
+     * @return The identifier of this node in the cluster.
+     */
+    @Nonnull public String getNodeId() {
+        return nodeId;
+    }
+    
+    /**
+     * Set the duration of the refresh lease in the coordinated mode. The lease expiry is computed with the time of
+     * the database, in whole seconds.
+     * @param duration What to set, in milliseconds, rounded up to whole seconds.
+     */
+    public void setLeaseDuration(@Duration final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        leaseDuration = Constraint.isGreaterThan(0, duration, "The lease duration must be positive");
+    }
+    
+    /**
+     * Get the duration of the refresh lease in the coordinated mode.
+     * @return The duration of the refresh lease, in milliseconds.
+     */
+    @Duration public long getLeaseDuration() {
+        return leaseDuration;
+    }
+    
+    /**
+     * Get the version of the shared snapshot published or installed by this node in the coordinated mode.
+     * @return The version of the shared snapshot, -1 if none.
+     */
+    public long getSharedSnapshotVersion() {
+        return snapshotCoordinator != null ? snapshotCoordinator.getVersion() : -1;
+    }
+
+    /**
+     * Whether this node held the refresh lease during the latest refresh in the coordinated mode.
+     * @return true if this node held the lease, false otherwise.
+     */
+    boolean isLeaseHeld() {
+        return leaseHeld;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void initMetadataResolver() throws ComponentInitializationException {
+        if (isCompactStore() && (isDeltaRefresh() || getChangeLogTable() != null)) {
+            throw new ComponentInitializationException("The compact store of '" + getId() 
+                    + "' cannot be combined with the delta refresh or change log modes");
+        }
+        if (isDeltaRefresh() && getLastModifiedColumn() == null) {
+            throw new ComponentInitializationException("The delta refresh mode of '" + getId() 
+                    + "' requires the last modified column");
+        }
+        if (isDefaultChangeProbe() && getChangeProbe() == null) {
+            setChangeProbe(new QueryMetadataChangeProbe(getMapping()));
+        }
+        if (isRegisterMBean()) {
+            try {
+                mbeanName = new ObjectName(MBEAN_DOMAIN + ":type=" + DataSourceMetadataResolver.class.getSimpleName()
+                        + ",name=" + ObjectName.quote(getId()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbeanName);
+            } catch (JMException e) {
+                log.warn("Could not register the statistics MBean for '{}'", getId(), e);
+                mbeanName = null;
+            }
+        }
+        if (getSharedSnapshotTable() != null) {
+            snapshotCoordinator = new SharedSnapshotCoordinator(this, getSharedSnapshotTable(), getNodeId(),
+                    getLeaseDuration());
+        }
+        if (getChangeLogTable() != null) {
+            changeLogPoller = new ChangeLogPoller(this, getChangeLogTable(), getChangeLogPollInterval(),
+                    getChangeLogDebounce(), isPurgeChangeLog());
+            changeLogPoller.start(DataSourceMetadataResolver.class.getSimpleName() + "-changes-" + getId());
+        }
+        refreshScheduler.start(DataSourceMetadataResolver.class.getSimpleName() + "-refresh-" + getId());
+        if (isCompactStore() && getMetadataFilter() != null) {
+            log.warn("The compact store is not used for '{}' as a metadata filter is configured", getId());
+        }
+        if (getFetchParallelism() > 1) {
+            final String name = DataSourceMetadataResolver.class.getSimpleName() + "-fetch-" + getId() + "-";
+            final AtomicInteger threads = new AtomicInteger();
+            fetchExecutor = Executors.newFixedThreadPool(getFetchParallelism(), new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, name + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        super.initMetadataResolver();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (changeLogPoller != null) {
+            changeLogPoller.stop();
+            changeLogPoller = null;
+        }
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+            fetchExecutor = null;
+        }
+        refreshScheduler.stop();
+        certificateCache.clear();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                log.warn("Could not unregister the statistics MBean {}", mbeanName, e);
+            }
+            mbeanName = null;
+        }
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Iterable<EntityDescriptor> resolve(CriteriaSet criteria) throws ResolverException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        applyDueActivations(clock.currentTimeMillis());
+        
+        EntityIdCriterion entityIdCriterion = criteria.get(EntityIdCriterion.class);
+        final CompactServiceStore store = compactServiceStore;
+        if (EntityCriteriaIndex.isIndexed(criteria)) {
+            final long start = metrics.startResolve(ResolveType.INDEXED);
+            final List<EntityDescriptor> indexed = store != null ? store.getCriteriaIndex().resolve(criteria)
+                    : getVersionedBackingStore().getCriteriaIndex().resolve(criteria);
+            final List<EntityDescriptor> descriptors = new ArrayList<>(indexed.size());
+            for (final EntityDescriptor descriptor : indexed) {
+                if (isValid(descriptor)) {
+                    descriptors.add(descriptor);
+                }
+            }
+            metrics.endResolve(ResolveType.INDEXED, start, !descriptors.isEmpty());
+            return descriptors;
+        }
+        if (entityIdCriterion == null || Strings.isNullOrEmpty(entityIdCriterion.getEntityId())) {
+            final long start = metrics.startResolve(ResolveType.ALL);
+            final List<EntityDescriptor> descriptors = store != null ? store.getDescriptorsView()
+                    : getVersionedBackingStore().getDescriptorsView();
+            metrics.endResolve(ResolveType.ALL, start, !descriptors.isEmpty());
+            return descriptors;
+        }
+        final long start = metrics.startResolve(ResolveType.ENTITY_ID);
+        final List<EntityDescriptor> descriptors;
+        if (store != null) {
+            final EntityDescriptor descriptor = store.get(entityIdCriterion.getEntityId());
+            descriptors = descriptor != null && isValid(descriptor) ? Collections.singletonList(descriptor)
+                    : Collections.<EntityDescriptor>emptyList();
+        } else {
+            descriptors = lookupEntityID(entityIdCriterion.getEntityId());
+        }
+        metrics.endResolve(ResolveType.ENTITY_ID, start, !descriptors.isEmpty());
+        return descriptors;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public EntityDescriptor resolveSingle(CriteriaSet criteria) throws ResolverException {
+        if (criteria != null && criteria.size() == 1) {
+            final EntityIdCriterion entityIdCriterion = criteria.get(EntityIdCriterion.class);
+            if (entityIdCriterion != null && !Strings.isNullOrEmpty(entityIdCriterion.getEntityId())) {
+                return resolveEntityId(entityIdCriterion.getEntityId());
+            }
+        }
+        return super.resolveSingle(criteria);
+    }
+    
+    /**
+     * Resolves the entity with the given entity ID from the hash index of the current backing store, or from the
+     * compact store in the compact mode. This is the fast path for the calls with only an {@link EntityIdCriterion},
+     * and it does not allocate unless the entity needs to be built.
+     * 
+     * @param entityId The entity ID.
+     * @return The entity, or null if not found or not valid.
+     */
+    @Nullable protected EntityDescriptor resolveEntityId(@Nonnull final String entityId) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        applyDueActivations(clock.currentTimeMillis());
+        final long start = metrics.startResolve(ResolveType.ENTITY_ID);
+        final CompactServiceStore store = compactServiceStore;
+        EntityDescriptor descriptor = store != null ? store.get(entityId)
+                : getVersionedBackingStore().getEntityIdIndex().get(entityId);
+        if (descriptor != null && !isValid(descriptor)) {
+            log.debug("Metadata for entity ID '{}' is not valid", entityId);
+            descriptor = null;
+        }
+        metrics.endResolve(ResolveType.ENTITY_ID, start, descriptor != null);
+        return descriptor;
+    }
+
+    /**
+     * Get the version of the current set of entities. The version is incremented every time a new backing store
+     * is installed, i.e. on every refresh that changes the entities and every start or end event of a service.
+     * 
+     * @return The version of the current set of entities.
+     */
+    public long getBackingStoreVersion() {
+        return getVersionedBackingStore().getVersion();
+    }
+    
+    /**
+     * Get the current backing store.
+     * @return The current backing store.
+     */
+    @Nonnull private VersionedBackingStore getVersionedBackingStore() {
+        return (VersionedBackingStore) getBackingStore();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull protected BatchEntityBackingStore createNewBackingStore() {
+        return new VersionedBackingStore();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void setBackingStore(@Nonnull final EntityBackingStore newBackingStore) {
+        if (newBackingStore instanceof VersionedBackingStore) {
+            ((VersionedBackingStore) newBackingStore).freeze();
+            synchronized (activationLock) {
+                ((VersionedBackingStore) newBackingStore).setVersion(++backingStoreVersion);
+            }
+        }
+        super.setBackingStore(newBackingStore);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected String getMetadataIdentifier() {
+        return getId();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * The refresh is run in the calling thread. The refreshes are scheduled on the refresh executor of this
+     * resolver instead of the background task timer, so that a slow data source does not hold up the other tasks
+     * of the timer: a successful refresh is followed by the next one after the maximum refresh delay, and a failed
+     * one by a retry with an exponential backoff, starting from the minimum refresh delay and capped by the maximum
+     * refresh delay, with random jitter. At most one refresh is pending at a time.
+     */
+    @Override
+    public synchronized void refresh() throws ResolverException {
+        refreshFailed = false;
+        pendingSnapshot = null;
+        leaseHeld = false;
+        Arrays.fill(phaseNanos, 0L);
+        final DateTime now = new DateTime(ISOChronology.getInstanceUTC());
+        lastRefresh = now;
+        if (initialRefresh) {
+            initialRefresh = false;
+            final long start = System.nanoTime();
+            if (installSnapshot()) {
+                addPhaseTime(RefreshPhase.BUILD, start);
+                recordRefresh();
+                refreshScheduler.schedule(0);
+                return;
+            }
+        }
+        try {
+            final byte[] metadataBytes = fetchMetadata();
+            if (metadataBytes != null) {
+                processNewMetadata(getMetadataIdentifier(), now, metadataBytes);
+            } else if (!refreshFailed) {
+                processCachedMetadata(getMetadataIdentifier(), now);
+            }
+        } catch (ResolverException | RuntimeException e) {
+            refreshFailed = true;
+            throw e;
+        } finally {
+            if (pendingContents != null) {
+                pendingContents = null;
+                serializer.release();
+            }
+            recordRefresh();
+            if (refreshFailed) {
+                scheduleRetry();
+            } else {
+                refreshScheduler.recordSuccess();
+                refreshScheduler.schedule(getMaxRefreshDelay());
+            }
+        }
+        if (!refreshFailed && pendingSnapshot != null) {
+            writeSnapshot(pendingSnapshot);
+            if (leaseHeld) {
+                snapshotCoordinator.publish(pendingSnapshot);
+            }
+        }
+        pendingSnapshot = null;
+        prepareActivation();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public DateTime getLastRefresh() {
+        return lastRefresh;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public DateTime getNextRefresh() {
+        return refreshScheduler.getNextRefresh();
+    }
+    
+    /**
+     * Installs the services from the shared snapshot published by the lease holder, as the result of the ongoing
+     * refresh.
+     * 
+     * @param entries The services.
+     * @param snapshotSize The size of the compressed snapshot, in bytes.
+     * @throws ResolverException If the services cannot be installed.
+     */
+    void installSharedEntries(@Nonnull final List<ServiceEntry> entries, final int snapshotSize)
+            throws ResolverException {
+        final long start = System.nanoTime();
+        installFilteredEntries(entries);
+        addPhaseTime(RefreshPhase.BUILD, start);
+        metrics.recordMetadataByteSize(snapshotSize);
+        pendingSnapshot = entries;
+    }
+    
+    /**
+     * Installs the services from the snapshot file, if one is configured and exists.
+     * @return true if the services were installed, false otherwise.
+     */
+    private boolean installSnapshot() {
+        if (getSnapshotFile() == null) {
+            return false;
+        }
+        final Path file = Paths.get(getSnapshotFile());
+        if (!Files.isRegularFile(file)) {
+            log.debug("The snapshot file {} does not exist yet", file);
+            return false;
+        }
+        try {
+            final List<ServiceEntry> entries = ServiceSnapshotCodec.read(file);
+            installFilteredEntries(entries);
+            log.info("Installed {} services for '{}' from the snapshot {}, refreshing from the database"
+                    + " in the background", entries.size(), getId(), file);
+            return true;
+        } catch (IOException | ResolverException e) {
+            log.warn("Could not install the services from the snapshot {}", file, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Writes the given services to the snapshot file, if one is configured.
+     * @param entries The services.
+     */
+    private void writeSnapshot(@Nonnull final Collection<ServiceEntry> entries) {
+        if (getSnapshotFile() == null) {
+            return;
+        }
+        try {
+            ServiceSnapshotCodec.write(Paths.get(getSnapshotFile()), entries);
+            log.debug("Wrote {} services to the snapshot {}", entries.size(), getSnapshotFile());
+        } catch (IOException e) {
+            log.warn("Could not write the services to the snapshot {}", getSnapshotFile(), e);
+        }
+    }
+    
+    /**
+     * Schedules a retry after the failed refresh, with an exponential backoff. The caller must hold the lock of
+     * this resolver.
+     */
+    private void scheduleRetry() {
+        final int failures = refreshScheduler.recordFailure();
+        final long delay = computeBackoffDelay(failures);
+        log.info("{} consecutive refreshes of '{}' failed, retrying in {} ms", failures, getId(), delay);
+        refreshScheduler.schedule(delay);
+    }
+    
+    /**
+     * Computes the delay before retrying after the given number of consecutive failed refreshes, with the
+     * exponential backoff of {@link RefreshScheduler#computeBackoffDelay(int, long, long)} between the minimum and
+     * the maximum refresh delays.
+     * 
+     * @param failures The number of the consecutive failed refreshes, at least one.
+     * @return The delay before the retry, in milliseconds.
+     */
+    protected long computeBackoffDelay(final int failures) {
+        return RefreshScheduler.computeBackoffDelay(failures, getMinRefreshDelay(), getMaxRefreshDelay());
+    }
+    
+    /**
+     * Records the outcome and the phase durations of the completed refresh to the statistics.
+     */
+    private void recordRefresh() {
+        for (final RefreshPhase phase : RefreshPhase.values()) {
+            if (phaseNanos[phase.ordinal()] > 0) {
+                metrics.recordPhase(phase, phaseNanos[phase.ordinal()]);
+            }
+        }
+        if (refreshFailed) {
+            metrics.recordRefreshFailure(System.currentTimeMillis());
+        } else {
+            metrics.recordRefreshSuccess(System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Adds the given time to the duration of the given phase of the ongoing refresh.
+     * @param phase The refresh phase.
+     * @param start The start time of the phase, from {@link System#nanoTime()}.
+     */
+    private void addPhaseTime(@Nonnull final RefreshPhase phase, final long start) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * The metadata serialized by the ongoing refresh is parsed directly from the buffer of the serializer, in place
+     * of the empty marker returned by {@link #fetchMetadata()}.
+     */
+    @Override
+    protected XMLObject unmarshallMetadata(@Nonnull final InputStream metadataInput) 
+            throws UnmarshallingException {
+        final long start = System.nanoTime();
+        try {
+            return super.unmarshallMetadata(pendingContents != null ? pendingContents.getInputStream() 
+                    : metadataInput);
+        } finally {
+            addPhaseTime(RefreshPhase.PARSE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected byte[] fetchMetadata() throws ResolverException {
+        if (snapshotCoordinator != null) {
+            final Boolean lease = snapshotCoordinator.acquireLease();
+            leaseHeld = Boolean.TRUE.equals(lease);
+            if (Boolean.FALSE.equals(lease) && snapshotCoordinator.install()) {
+                return null;
+            }
+        }
+        currentFingerprint = probeFingerprint();
+        final long probed = clock.currentTimeMillis();
+        final boolean activationDue = activationRefreshDue;
+        activationRefreshDue = false;
+        if (currentFingerprint != null && currentFingerprint.equals(lastFingerprint) && !activationDue
+                && !(isDeltaRefresh() && isFullReloadDue(probed)) && !isProbedRefreshDue(probed)) {
+            skippedRefreshes++;
+            metrics.recordSkippedRefresh();
+            log.info("The services for '{}' have not changed since the previous refresh, skipping the refresh",
+                    getId());
+            return null;
+        }
+        skippedRefreshes = 0;
+        lastProbedRefresh = probed;
+        if (isDeltaRefresh()) {
+            if (getLastModifiedColumn() == null) {
+                log.warn("Delta refresh mode requires the last modified column, running a full refresh");
+            } else if (getMetadataFilter() == null) {
+                return fetchDelta();
+            } else {
+                log.warn("Delta refresh mode is not supported with metadata filters, running a full refresh");
+            }
+        }
+        log.trace("Start fetching metadata");
+        final List<ServiceEntry> entries;
+        try {
+            entries = fetchExecutor != null ? fetchPartitioned() : fetchAll();
+        } catch (SQLException e) {
+            log.error("Could not fetch the services from the database", e);
+            refreshFailed = true;
+            return null;
+        }
+        pendingSnapshot = entries;
+        if (getChangeLogTable() != null) {
+            final SortedMap<Long, ServiceEntry> byRowId = new TreeMap<>();
+            for (final ServiceEntry entry : entries) {
+                byRowId.put(entry.getId(), entry);
+            }
+            entriesByRowId = byRowId;
+        }
+        if (isDirectBuild() || isCompactMode()) {
+            final long start = System.nanoTime();
+            installFilteredEntries(entries);
+            addPhaseTime(RefreshPhase.BUILD, start);
+            metrics.recordMetadataByteSize(0);
+            lastFingerprint = currentFingerprint;
+            return null;
+        }
+        try {
+            final byte[] contents = serializeEntries(entries);
+            lastFingerprint = currentFingerprint;
+            return contents;
+        } catch (ResolverException e) {
+            log.error("Could not marshall EntitiesDescriptor", e);
+            refreshFailed = true;
+        }
+        return null;
+    }
+    
+    /**
+     * Serializes the currently active ones of the given services for processing them as new metadata, and starts
+     * tracking the upcoming start and end events for them. The services are serialized to the buffer of the
+     * serializer, to be parsed in place of the returned empty marker by
+     * {@link #unmarshallMetadata(InputStream)}, and the serializer must be released once they have been processed.
+     * 
+     * @param entries The services, including the inactive ones.
+     * @return The empty marker to be passed as the new metadata.
+     * @throws ResolverException If the services cannot be serialized.
+     */
+    @Nonnull private byte[] serializeEntries(@Nonnull final List<ServiceEntry> entries) throws ResolverException {
+        final long now = clock.currentTimeMillis();
+        final ServiceActivationTimeline timeline = new ServiceActivationTimeline(entries, now);
+        synchronized (activationLock) {
+            activationGeneration++;
+            serviceEntries = timeline.getNextEventTime() == Long.MAX_VALUE ? Collections.<ServiceEntry>emptyList()
+                    : entries;
+            activationTimeline = timeline;
+            filterOnActivation = true;
+            preparedActivation = null;
+            compactServiceStore = null;
+        }
+        final long start = System.nanoTime();
+        final EntitiesDescriptor entities = new EntitiesDescriptorBuilder().buildObject();
+        for (final ServiceEntry entry : entries) {
+            if (entry.isActive(now)) {
+                entities.getEntityDescriptors().add(entry.buildDescriptor());
+            }
+        }
+        final Marshaller marshaller = XMLObjectSupport.getMarshaller(entities);
+        try {
+            final Element element = marshaller.marshall(entities);
+            pendingContents = getContents(element);
+        } catch (MarshallingException | XMLStreamException e) {
+            throw new ResolverException("Could not serialize the services", e);
+        }
+        addPhaseTime(RefreshPhase.MARSHAL, start);
+        metrics.recordMetadataByteSize(pendingContents.getLength());
+        return SERIALIZED_CONTENTS;
+    }
+    
+    /**
+     * Serializes the given services and processes them as new metadata, as in the full refreshes.
+     * 
+     * @param entries The services, including the inactive ones.
+     * @throws ResolverException If the services cannot be serialized or processed.
+     */
+    private void processEntries(@Nonnull final List<ServiceEntry> entries) throws ResolverException {
+        try {
+            processNewMetadata(getMetadataIdentifier(), new DateTime(ISOChronology.getInstanceUTC()),
+                    serializeEntries(entries));
+        } finally {
+            if (pendingContents != null) {
+                pendingContents = null;
+                serializer.release();
+            }
+        }
+        prepareActivation();
+    }
+    
+    /**
+     * Fetches all the services from the data source on a single connection.
+     * 
+     * @return The services in the order of the row identifiers.
+     * @throws SQLException If the services cannot be fetched.
+     */
+    protected List<ServiceEntry> fetchAll() throws SQLException {
+        final List<ServiceEntry> entries = new ArrayList<>();
+        final ServiceEntryAssembler assembler = newAssembler();
+        try (final Connection connection = getDataSource().getConnection()) {
+            queryServices(connection, mapping.getFullQuery(), null, new RowHandler() {
+                public void handleRow(final ResultSet results) throws SQLException {
+                    addIfCompleted(entries, assembler.add(results));
+                }
+            });
+            addIfCompleted(entries, assembler.finish());
+        }
+        return entries;
+    }
+    
+    /**
+     * Fetches all the services from the data source by splitting the range of the row identifiers into partitions
+     * that are fetched and built in parallel. The partitions are merged in the order of the row identifiers. The
+     * wall time of the whole fetch is recorded to the query phase, as the building of the services overlaps with it.
+     * 
+     * @return The services in the order of the row identifiers.
+     * @throws SQLException If any of the partitions cannot be fetched.
+     */
+    protected List<ServiceEntry> fetchPartitioned() throws SQLException {
+        final long start = System.nanoTime();
+        final List<Future<List<ServiceEntry>>> futures = new ArrayList<>();
+        final AtomicInteger rows = new AtomicInteger();
+        try {
+            for (final long[] partition : queryPartitions()) {
+                futures.add(fetchExecutor.submit(new Callable<List<ServiceEntry>>() {
+                    public List<ServiceEntry> call() throws SQLException {
+                        return fetchPartition(partition[0], partition[1], rows);
+                    }
+                }));
+            }
+            final List<ServiceEntry> entries = new ArrayList<>();
+            for (final Future<List<ServiceEntry>> future : futures) {
+                entries.addAll(future.get());
+            }
+            metrics.recordRowsFetched(rows.get());
+            log.debug("Fetched {} services in {} partitions", entries.size(), futures.size());
+            return entries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while fetching the services", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), SQLException.class);
+            throw new SQLException("Could not fetch the services", e.getCause());
+        } finally {
+            for (final Future<List<ServiceEntry>> future : futures) {
+                future.cancel(true);
+            }
+            phaseNanos[RefreshPhase.QUERY.ordinal()] += System.nanoTime() - start;
+        }
+    }
+    
+    /**
+     * Splits the range of the row identifiers of the selected services into at most {@link #getFetchParallelism()}
+     * partitions of equal width.
+     * 
+     * @return The inclusive lower and upper bounds of the partitions, in ascending order.
+     * @throws SQLException If the range cannot be read.
+     */
+    private List<long[]> queryPartitions() throws SQLException {
+        final long min;
+        final long max;
+        try (final Connection connection = getDataSource().getConnection();
+                final PreparedStatement statement = prepareStatement(connection, mapping.getRangeQuery());
+                final ResultSet results = statement.executeQuery()) {
+            if (!results.next()) {
+                return Collections.emptyList();
+            }
+            min = results.getLong(1);
+            max = results.getLong(2);
+            if (results.wasNull()) {
+                return Collections.emptyList();
+            }
+        }
+        final List<long[]> partitions = new ArrayList<>();
+        final long span = max - min;
+        if (span < 0) {
+            // the range overflows, a single partition covers it
+            partitions.add(new long[] { min, max });
+            return partitions;
+        }
+        final long width = span / getFetchParallelism() + 1;
+        for (long lower = min; lower <= max && lower >= min; lower += width) {
+            partitions.add(new long[] { lower, max - lower < width ? max : lower + width - 1 });
+        }
+        return partitions;
+    }
+    
+    /**
+     * Fetches the services in the given range of the row identifiers on a connection of its own.
+     * 
+     * @param lower The inclusive lower bound of the row identifiers.
+     * @param upper The inclusive upper bound of the row identifiers.
+     * @param rows The counter for the rows fetched.
+     * @return The services in the order of the row identifiers.
+     * @throws SQLException If the services cannot be fetched.
+     */
+    private List<ServiceEntry> fetchPartition(final long lower, final long upper, @Nonnull final AtomicInteger rows)
+            throws SQLException {
+        final List<ServiceEntry> entries = new ArrayList<>();
+        final ServiceEntryAssembler assembler = newAssembler();
+        try (final Connection connection = getDataSource().getConnection()) {
+            rows.addAndGet(executeServiceQuery(connection, mapping.getPartitionQuery(), new QueryParameters() {
+                public void setParameters(final PreparedStatement statement) throws SQLException {
+                    statement.setLong(1, lower);
+                    statement.setLong(2, upper);
+                }
+            }, new RowHandler() {
+                public void handleRow(final ResultSet results) throws SQLException {
+                    addIfCompleted(entries, assembler.add(results));
+                }
+            }, null));
+            addIfCompleted(entries, assembler.finish());
+        }
+        log.trace("Fetched {} services with the row identifiers from {} to {}", entries.size(), lower, upper);
+        return entries;
+    }
+    
+    /**
+     * Fetches the rows modified at or after the high-water mark and installs the patched set of entities to the
+     * backing store. The rows already seen with the same modification time as the mark are skipped, so that an
+     * unchanged set of services is not reinstalled. A full reload is run instead if the full refresh interval has
+     * passed since the previous one. The entities are installed directly, hence this method always returns null.
+     * 
+     * @return null.
+     */
+    protected byte[] fetchDelta() {
+        final long now = clock.currentTimeMillis();
+        final boolean full = isFullReloadDue(now) || highWaterMark == null;
+        final SortedMap<Long, ServiceEntry> entries;
+        final HighWaterMark previous = full ? new HighWaterMark() : highWaterMark;
+        final HighWaterMark mark = previous.copy();
+        if (full) {
+            log.debug("Running a full reload of the services");
+            entries = new TreeMap<>();
+        } else {
+            entries = new TreeMap<>(entriesByRowId);
+        }
+        final List<ServiceEntry> fetched = new ArrayList<>();
+        final Map<Long, Timestamp> modified = new HashMap<>();
+        final ServiceEntryAssembler assembler = newAssembler();
+        try (final Connection connection = getDataSource().getConnection()) {
+            final QueryParameters parameters = full ? null : new QueryParameters() {
+                public void setParameters(final PreparedStatement statement) throws SQLException {
+                    previous.setParameters(statement);
+                }
+            };
+            queryServices(connection, full ? mapping.getFullQuery() : mapping.getDeltaQuery(), parameters,
+                    new RowHandler() {
+                        public void handleRow(final ResultSet results) throws SQLException {
+                            addIfCompleted(fetched, assembler.add(results));
+                            final long id = results.getLong(COLUMN_ID_ID);
+                            final Timestamp lastModified = results.getTimestamp(COLUMN_ID_LAST_MODIFIED);
+                            modified.put(id, lastModified);
+                            mark.update(id, lastModified);
+                        }
+                    });
+            addIfCompleted(fetched, assembler.finish());
+        } catch (SQLException e) {
+            log.error("Could not fetch the changed services from the database", e);
+            refreshFailed = true;
+            return null;
+        }
+        int changed = 0;
+        for (final ServiceEntry entry : fetched) {
+            if (!previous.isApplied(entry.getId(), modified.get(entry.getId()))) {
+                entries.put(entry.getId(), entry);
+                changed++;
+            }
+        }
+        entriesByRowId = entries;
+        highWaterMark = mark;
+        lastFingerprint = currentFingerprint;
+        if (full) {
+            lastFullRefresh = now;
+        } else if (changed == 0) {
+            log.debug("No changed services found from the database");
+            return null;
+        }
+        log.debug("Fetched {} added or changed services, installing {} services", changed, entries.size());
+        final long start = System.nanoTime();
+        installEntries(entries.values());
+        addPhaseTime(RefreshPhase.BUILD, start);
+        pendingSnapshot = entries.values();
+        metrics.recordMetadataByteSize(0);
+        return null;
+    }
+    
+    /**
+     * Refreshes the given services from the data source, and installs the patched set of entities to the backing
+     * store. The services not found from the data source any more are removed. A full refresh is run instead if
+     * no full set of services has been fetched yet. With a shared snapshot table, the refresh lease is renewed and
+     * the patched set is published by the node holding it.
+     * 
+     * @param ids The row identifiers of the services to be refreshed.
+     * @throws ResolverException If the services cannot be fetched or installed.
+     */
+    public synchronized void refreshServices(@Nonnull final Collection<Long> ids) throws ResolverException {
+        if (entriesByRowId == null) {
+            log.debug("No full set of services fetched yet, running a full refresh");
+            refresh();
+            return;
+        }
+        if (snapshotCoordinator != null) {
+            leaseHeld = Boolean.TRUE.equals(snapshotCoordinator.acquireLease());
+        }
+        final List<Long> rowIds = new ArrayList<>(ids);
+        final List<ServiceEntry> fetched = new ArrayList<>();
+        final ServiceEntryAssembler assembler = newAssembler();
+        final RowHandler handler = new RowHandler() {
+            public void handleRow(final ResultSet results) throws SQLException {
+                addIfCompleted(fetched, assembler.add(results));
+            }
+        };
+        try (final Connection connection = getDataSource().getConnection()) {
+            for (int from = 0; from < rowIds.size(); from += TARGETED_REFRESH_BATCH_SIZE) {
+                final List<Long> batch = 
+                        rowIds.subList(from, Math.min(rowIds.size(), from + TARGETED_REFRESH_BATCH_SIZE));
+                queryServices(connection, mapping.buildTargetedQuery(batch.size()), new QueryParameters() {
+                    public void setParameters(final PreparedStatement statement) throws SQLException {
+                        for (int i = 0; i < batch.size(); i++) {
+                            statement.setLong(i + 1, batch.get(i));
+                        }
+                    }
+                }, handler);
+            }
+            addIfCompleted(fetched, assembler.finish());
+        } catch (SQLException e) {
+            throw new ResolverException("Could not fetch the changed services from the database", e);
+        }
+        final SortedMap<Long, ServiceEntry> entries = new TreeMap<>(entriesByRowId);
+        entries.keySet().removeAll(rowIds);
+        for (final ServiceEntry entry : fetched) {
+            entries.put(entry.getId(), entry);
+        }
+        entriesByRowId = entries;
+        log.debug("Refreshed {} changed services, {} of them found from the database", rowIds.size(),
+                fetched.size());
+        if (isDirectBuild() || isCompactMode()) {
+            installFilteredEntries(new ArrayList<>(entries.values()));
+        } else {
+            processEntries(new ArrayList<>(entries.values()));
+        }
+        writeSnapshot(entries.values());
+        if (leaseHeld) {
+            snapshotCoordinator.publish(entries.values());
+        }
+    }
+    
+    /**
+     * Checks whether a full reload is due in the delta refresh mode.
+     * @param now The current time in milliseconds.
+     * @return true if a full reload is due, false otherwise.
+     */
+    protected boolean isFullReloadDue(final long now) {
+        return entriesByRowId == null || now - lastFullRefresh >= getFullRefreshInterval();
+    }
+    
+    /**
+     * Checks whether the refresh must be run even if the change probe finds no changes, because the maximum
+     * number of the skipped refreshes or the maximum skip interval has been reached.
+     * @param now The current time in milliseconds.
+     * @return Whether the refresh must be run regardless of the change probe.
+     */
+    protected boolean isProbedRefreshDue(final long now) {
+        return (getMaxSkippedRefreshes() > 0 && skippedRefreshes >= getMaxSkippedRefreshes())
+                || now - lastProbedRefresh >= getMaxSkipInterval();
+    }
+    
+    /**
+     * Computes the fingerprint for the services with the configured change probe.
+     * @return The fingerprint, or null if no probe is configured or the fingerprint could not be computed.
+     */
+    @Nullable protected String probeFingerprint() {
+        if (getChangeProbe() == null) {
+            return null;
+        }
+        try (final Connection connection = getDataSource().getConnection()) {
+            return getChangeProbe().fingerprint(connection);
+        } catch (SQLException e) {
+            log.warn("Could not probe the services for changes, running the refresh", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Prepares the given statement with the query timeout.
+     * 
+     * @param connection The connection to the data source.
+     * @param sql The statement.
+     * @return The prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    PreparedStatement prepareStatement(@Nonnull final Connection connection, @Nonnull final String sql)
+            throws SQLException {
+        return applyQueryTimeout(connection.prepareStatement(sql), getQueryTimeout());
+    }
+    
+    /**
+     * Prepares the given read-only query with the given result set type and the query timeout.
+     * 
+     * @param connection The connection to the data source.
+     * @param query The query.
+     * @param resultSetType The result set type.
+     * @return The prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    private PreparedStatement prepareStatement(@Nonnull final Connection connection, @Nonnull final String query,
+            final int resultSetType) throws SQLException {
+        return applyQueryTimeout(connection.prepareStatement(query, resultSetType, ResultSet.CONCUR_READ_ONLY),
+                getQueryTimeout());
+    }
+    
+    /**
+     * Applies the given query timeout to the given statement. The statement is closed if the timeout cannot be set.
+     * 
+     * @param statement The statement.
+     * @param timeout The query timeout in milliseconds, rounded up to whole seconds, 0 for no timeout.
+     * @param <T> The type of the statement.
+     * @return The statement.
+     * @throws SQLException If the timeout cannot be set.
+     */
+    static <T extends Statement> T applyQueryTimeout(@Nonnull final T statement, final long timeout)
+            throws SQLException {
+        if (timeout > 0) {
+            try {
+                statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (timeout + 999) / 1000));
+            } catch (SQLException e) {
+                statement.close();
+                throw e;
+            }
+        }
+        return statement;
+    }
+    
+    /**
+     * Runs the given service query and passes the rows to the given handler one at a time. The statement is
+     * configured with the fetch size and cursor type, and closed before returning. The time spent in the handler
+     * is recorded to the build phase of the ongoing refresh, and the rest to the query phase.
+     * 
+     * @param connection The connection to the data source.
+     * @param query The service query.
+     * @param parameters The query parameters, may be null.
+     * @param handler The handler for the rows.
+     * @return The number of rows handled.
+     * @throws SQLException If the query fails.
+     */
+    private int queryServices(@Nonnull final Connection connection, @Nonnull final String query,
+            @Nullable final QueryParameters parameters, @Nonnull final RowHandler handler) throws SQLException {
+        final int rows = executeServiceQuery(connection, query, parameters, handler, phaseNanos);
+        metrics.recordRowsFetched(rows);
+        return rows;
+    }
+    
+    /**
+     * Runs the given service query and passes the rows to the given handler one at a time. The statement is
+     * configured with the fetch size and cursor type, and closed before returning.
+     * 
+     * @param connection The connection to the data source.
+     * @param query The service query.
+     * @param parameters The query parameters, may be null.
+     * @param handler The handler for the rows.
+     * @param nanos The phase times to add the query and build times to, may be null.
+     * @return The number of rows handled.
+     * @throws SQLException If the query fails.
+     */
+    private int executeServiceQuery(@Nonnull final Connection connection, @Nonnull final String query,
+            @Nullable final QueryParameters parameters, @Nonnull final RowHandler handler,
+            @Nullable final long[] nanos) throws SQLException {
+        final boolean streaming = getFetchSize() != 0 && connection.getAutoCommit();
+        if (streaming) {
+            connection.setAutoCommit(false);
+        }
+        int rows = 0;
+        final long start = System.nanoTime();
+        long handlerNanos = 0;
+        try (final PreparedStatement statement = prepareStatement(connection, query, 
+                getCursorType().getResultSetType())) {
+            if (getFetchSize() != 0) {
+                statement.setFetchSize(getFetchSize());
+            }
+            if (parameters != null) {
+                parameters.setParameters(statement);
+            }
+            try (final ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    final long handlerStart = System.nanoTime();
+                    handler.handleRow(results);
+                    handlerNanos += System.nanoTime() - handlerStart;
+                    rows++;
+                }
+            }
+        } finally {
+            if (streaming) {
+                connection.setAutoCommit(true);
+            }
+            if (nanos != null) {
+                nanos[RefreshPhase.BUILD.ordinal()] += handlerNanos;
+                nanos[RefreshPhase.QUERY.ordinal()] += System.nanoTime() - start - handlerNanos;
+            }
+        }
+        log.trace("Handled {} rows from the query {}", rows, query);
+        return rows;
+    }
+    
+    /**
+     * Adds the given service to the given list, if it is not null.
+     * @param entries The list of services.
+     * @param entry The service, may be null.
+     */
+    private static void addIfCompleted(@Nonnull final List<ServiceEntry> entries, 
+            @Nullable final ServiceEntry entry) {
+        if (entry != null) {
+            entries.add(entry);
+        }
+    }
+    
+    /**
+     * Runs the configured metadata filter, if any, for the entities of the given services and installs the
+     * services retained by the filter.
+     * 
+     * @param entries The services built from the data source.
+     * @throws ResolverException If the entities cannot be marshalled or filtered.
+     * @see #filterEntries(List)
+     */
+    protected void installFilteredEntries(@Nonnull final List<ServiceEntry> entries) throws ResolverException {
+        if (getMetadataFilter() == null) {
+            installEntries(entries);
+            log.debug("Installed the entities built from the database directly to the backing store");
+            return;
+        }
+        installEntries(filterEntries(entries));
+        log.debug("Installed the filtered entities built from the database directly to the backing store");
+    }
+    
+    /**
+     * Runs the configured metadata filter, if any, for the entities of the given services. The entities are
+     * marshalled to DOM only if a filter is configured. The filter is run for new entities built for each call, as
+     * the filter may modify them and an OpenSAML object can only be the child of a single parent.
+     * 
+     * @param entries The services built from the data source.
+     * @return The services retained by the filter, with the filtered entities, or the given services if no filter
+     * is configured.
+     * @throws ResolverException If the entities cannot be marshalled or filtered.
+     */
+    @Nonnull private List<ServiceEntry> filterEntries(@Nonnull final List<ServiceEntry> entries)
+            throws ResolverException {
+        if (getMetadataFilter() == null) {
+            return entries;
+        }
+        final Map<EntityDescriptor, ServiceEntry> built = new IdentityHashMap<>(entries.size() * 2);
+        final EntitiesDescriptor entities = new EntitiesDescriptorBuilder().buildObject();
+        for (final ServiceEntry entry : entries) {
+            final EntityDescriptor descriptor = entry.buildDescriptor();
+            built.put(descriptor, entry);
+            entities.getEntityDescriptors().add(descriptor);
+        }
+        final XMLObject metadata;
+        try {
+            XMLObjectSupport.marshall(entities);
+            metadata = getMetadataFilter().filter(entities);
+        } catch (MarshallingException | FilterException e) {
+            throw new ResolverException("Could not filter the entities built from the database", e);
+        }
+        final List<EntityDescriptor> retained = new ArrayList<>();
+        if (metadata instanceof EntitiesDescriptor) {
+            retained.addAll(((EntitiesDescriptor) metadata).getEntityDescriptors());
+        } else if (metadata instanceof EntityDescriptor) {
+            retained.add((EntityDescriptor) metadata);
+        }
+        if (metadata != null) {
+            metadata.releaseDOM();
+            metadata.releaseChildrenDOM(true);
+        }
+        final List<ServiceEntry> filtered = new ArrayList<>(retained.size());
+        for (final EntityDescriptor descriptor : retained) {
+            final ServiceEntry entry = built.get(descriptor);
+            if (entry != null) {
+                filtered.add(new ServiceEntry(entry.getId(), descriptor, entry.getStartTime(), entry.getEndTime()));
+            }
+        }
+        if (filtered.isEmpty() && !entries.isEmpty()) {
+            log.info("Metadata filtering produced an empty set of entities");
+        }
+        return filtered;
+    }
+    
+    /**
+     * Replaces the current set of services with the given ones, installs the currently active ones to the
+     * backing store, starts tracking the upcoming start and end events for them, and prepares the services active
+     * at the next event.
+     * 
+     * @param entries The services, including the inactive ones.
+     */
+    protected void installEntries(@Nonnull final Collection<ServiceEntry> entries) {
+        final long now = clock.currentTimeMillis();
+        final List<ServiceEntry> installed = new ArrayList<>(entries);
+        final ServiceActivationTimeline timeline = new ServiceActivationTimeline(installed, now);
+        if (isCompactMode()) {
+            final CompactServiceStore store = new CompactServiceStore(installed, getCompactCacheSize(), now);
+            final BatchEntityBackingStore backingStore = freeze(createNewBackingStore());
+            synchronized (activationLock) {
+                activationGeneration++;
+                serviceEntries = Collections.emptyList();
+                activationTimeline = timeline;
+                filterOnActivation = false;
+                preparedActivation = null;
+                compactServiceStore = store;
+                setBackingStore(backingStore);
+            }
+            log.debug("Installed {} services to the compact store, {} of them active", installed.size(),
+                    store.size());
+        } else {
+            final BatchEntityBackingStore backingStore = freeze(buildBackingStore(installed, now));
+            synchronized (activationLock) {
+                activationGeneration++;
+                serviceEntries = installed;
+                activationTimeline = timeline;
+                filterOnActivation = false;
+                preparedActivation = null;
+                compactServiceStore = null;
+                setBackingStore(backingStore);
+            }
+        }
+        prepareActivation();
+    }
+    
+    /**
+     * Prepares the services active at the next start or end event of the current services, if not already
+     * prepared, so that they can be installed at the event without building them in the resolving thread. Run on
+     * the refreshing thread. The prepared services are installed right away if the event is already due.
+     */
+    private void prepareActivation() {
+        final List<ServiceEntry> entries;
+        final CompactServiceStore store;
+        final boolean filter;
+        final long generation;
+        final long time;
+        synchronized (activationLock) {
+            time = activationTimeline.getNextEventTime();
+            final PreparedActivation current = preparedActivation;
+            if (time == Long.MAX_VALUE || (current != null && current.generation == activationGeneration)) {
+                return;
+            }
+            entries = serviceEntries;
+            store = compactServiceStore;
+            filter = filterOnActivation;
+            generation = activationGeneration;
+        }
+        final PreparedActivation prepared;
+        try {
+            if (store != null) {
+                prepared = new PreparedActivation(generation, time, store.withActivations(time),
+                        freeze(createNewBackingStore()));
+            } else {
+                final List<ServiceEntry> active = filter ? filterEntries(selectActive(entries, time)) : entries;
+                prepared = new PreparedActivation(generation, time, null, freeze(buildBackingStore(active, time)));
+            }
+        } catch (ResolverException e) {
+            log.error("Could not prepare the services of '{}' for their start or end events, scheduling a refresh",
+                    getId(), e);
+            synchronized (activationLock) {
+                if (generation == activationGeneration) {
+                    activationTimeline.pollDue(time);
+                }
+            }
+            activationRefreshDue = true;
+            refreshScheduler.schedule(0);
+            return;
+        }
+        synchronized (activationLock) {
+            if (generation != activationGeneration) {
+                log.debug("The active services were changed while preparing the next events, discarding them");
+                return;
+            }
+            preparedActivation = prepared;
+        }
+        log.debug("Prepared the services of '{}' for their start or end events at {}", getId(), time);
+        applyDueActivations(clock.currentTimeMillis());
+    }
+    
+    /**
+     * Installs the services prepared for the start or end events due at the given time, if any, without waiting
+     * for the next refresh. The services are prepared ahead of the events on the refreshing thread, so that
+     * installing them only swaps the backing store. The services active at the following event are then prepared
+     * on the refreshing thread. If the services for a due event are still being prepared, the current services
+     * are kept until they are ready.
+     * 
+     * @param now The current time in milliseconds.
+     */
+    protected void applyDueActivations(final long now) {
+        if (!activationTimeline.isDue(now)) {
+            return;
+        }
+        final PreparedActivation prepared = preparedActivation;
+        if (prepared == null || prepared.time > now) {
+            return;
+        }
+        synchronized (activationLock) {
+            if (prepared != preparedActivation || prepared.generation != activationGeneration) {
+                return;
+            }
+            final int events = activationTimeline.pollDue(prepared.time);
+            log.debug("{} start or end events due for the services, installing the prepared services", events);
+            activationGeneration++;
+            preparedActivation = null;
+            compactServiceStore = prepared.compactStore;
+            setBackingStore(prepared.backingStore);
+        }
+        refreshScheduler.execute(new Runnable() {
+            public void run() {
+                prepareActivation();
+            }
+        });
+    }
+    
+    /**
+     * Selects the services active at the given time.
+     * 
+     * @param entries The services, including the inactive ones.
+     * @param now The time in milliseconds.
+     * @return The services active at the given time.
+     */
+    @Nonnull private static List<ServiceEntry> selectActive(@Nonnull final List<ServiceEntry> entries,
+            final long now) {
+        final List<ServiceEntry> active = new ArrayList<>(entries.size());
+        for (final ServiceEntry entry : entries) {
+            if (entry.isActive(now)) {
+                active.add(entry);
+            }
+        }
+        return active;
+    }
+    
+    /**
+     * Creates a timer and cancels it right away, terminating its thread.
+     * 
+     * @return The cancelled timer.
+     */
+    @Nonnull private static Timer newCancelledTimer() {
+        final Timer timer = new Timer(true);
+        timer.cancel();
+        return timer;
+    }
+    
+    /**
+     * Freezes the given backing store to its read-only snapshot, if it is versioned, before it is installed.
+     * 
+     * @param backingStore The backing store.
+     * @return The given backing store.
+     */
+    @Nonnull private BatchEntityBackingStore freeze(@Nonnull final BatchEntityBackingStore backingStore) {
+        if (backingStore instanceof VersionedBackingStore) {
+            ((VersionedBackingStore) backingStore).freeze();
+        }
+        return backingStore;
+    }
+    
+    /**
+     * Creates a new assembler for the service rows. In the compact mode the assembled services build their entities
+     * only on demand.
+     * 
+     * @return The new assembler.
+     */
+    @Nonnull private ServiceEntryAssembler newAssembler() {
+        return mapping.newAssembler(isCompactMode());
+    }
+    
+    /**
+     * Builds a new backing store containing the given services active at the given time, without installing it.
+     * 
+     * @param entries The services, including the inactive ones.
+     * @param now The time in milliseconds.
+     * @return The new backing store.
+     */
+    private BatchEntityBackingStore buildBackingStore(@Nonnull final List<ServiceEntry> entries, final long now) {
+        final BatchEntityBackingStore backingStore = createNewBackingStore();
+        for (final ServiceEntry entry : entries) {
+            if (entry.isActive(now)) {
+                preProcessEntityDescriptor(entry.getDescriptor(), backingStore);
+            }
+        }
+        return backingStore;
+    }
+    
+    /**
+     * Get the UTF-8 encoded contents for the given element. The element is streamed into a buffer that is reused
+     * between the refreshes, and the contents are a view onto it, valid until the serializer is released at the end
+     * of the refresh.
+     * 
+     * @param element The element.
+     * @return The contents of the element.
+     * @throws XMLStreamException If the element cannot be serialized.
+     */
+    @Nonnull protected SerializedContents getContents(final Element element) throws XMLStreamException {
+        final SerializedContents contents = serializer.serialize(element);
+        log.trace("Serialized {} bytes of metadata built from the contents of the database", contents.getLength());
+        return contents;
+    }
+    
+    /**
+     * The services active at a start or end event, prepared ahead of the event for the set of the active services
+     * of the given generation.
+     */
+    private static final class PreparedActivation {
+        
+        /** The generation of the set of the active services the services were prepared for. */
+        private final long generation;
+        
+        /** The time of the event, in milliseconds. */
+        private final long time;
+        
+        /** The compact store for the services active at the event, null if not in the compact mode. */
+        @Nullable private final CompactServiceStore compactStore;
+        
+        /** The frozen backing store for the services active at the event. */
+        @Nonnull private final BatchEntityBackingStore backingStore;
+        
+        /**
+         * Constructor.
+         * 
+         * @param activationGeneration The generation of the set of the active services.
+         * @param eventTime The time of the event, in milliseconds.
+         * @param store The compact store for the services active at the event, null if not in the compact mode.
+         * @param entityBackingStore The frozen backing store for the services active at the event.
+         */
+        private PreparedActivation(final long activationGeneration, final long eventTime,
+                @Nullable final CompactServiceStore store, @Nonnull final BatchEntityBackingStore entityBackingStore) {
+            generation = activationGeneration;
+            time = eventTime;
+            compactStore = store;
+            backingStore = entityBackingStore;
+        }
+    }
+    
+    /**
+     * A backing store that is frozen to an immutable, versioned snapshot when installed. The ordered entities of
+     * the snapshot are exposed as a shared read-only view, so that enumerating all the entities does not copy
+     * them, and the iteration is not affected by the later refreshes.
+     */
+    private class VersionedBackingStore extends BatchEntityBackingStore {
+        
+        /** The read-only view of the ordered entities, set when the store is frozen. */
+        @Nonnull private List<EntityDescriptor> descriptorsView = Collections.emptyList();
+        
+        /** The version of this store, set when the store is installed. */
+        private long version;
+        
+        /** Whether the entities of this store have been frozen. */
+        private boolean frozen;
+        
+        /** The hash index of the frozen entities by their entity IDs. */
+        @Nonnull private EntityIdIndex entityIdIndex = EntityIdIndex.EMPTY;
+        
+        /** The criteria indexes over the frozen entities, built when the store is frozen. */
+        @Nonnull private EntityCriteriaIndex criteriaIndex = 
+                new EntityCriteriaIndex(Collections.<EntityDescriptor>emptyList());
+        
+        /**
+         * Freezes the current ordered entities of this store to a read-only view, unless already frozen.
+         */
+        private void freeze() {
+            if (frozen) {
+                return;
+            }
+            final List<EntityDescriptor> descriptors = getOrderedDescriptors();
+            descriptorsView = descriptors == null ? Collections.<EntityDescriptor>emptyList() 
+                    : ImmutableList.copyOf(descriptors);
+            entityIdIndex = new EntityIdIndex(descriptorsView);
+            criteriaIndex = new EntityCriteriaIndex(descriptorsView);
+            frozen = true;
+        }
+        
+        /**
+         * Set the version of this store, when it is installed.
+         * @param storeVersion The version of this store.
+         */
+        private void setVersion(final long storeVersion) {
+            version = storeVersion;
+        }
+        
+        /**
+         * Get the read-only view of the ordered entities.
+         * @return The read-only view of the ordered entities.
+         */
+        @Nonnull private List<EntityDescriptor> getDescriptorsView() {
+            return descriptorsView;
+        }
+        
+        /**
+         * Get the hash index of the frozen entities by their entity IDs.
+         * @return The hash index of the frozen entities.
+         */
+        @Nonnull private EntityIdIndex getEntityIdIndex() {
+            return entityIdIndex;
+        }
+        
+        /**
+         * Get the version of this store.
+         * @return The version of this store.
+         */
+        private long getVersion() {
+            return version;
+        }
+        
+        /**
+         * Get the criteria indexes over the frozen entities.
+         * @return The criteria indexes over the frozen entities.
+         */
+        @Nonnull private EntityCriteriaIndex getCriteriaIndex() {
+            return criteriaIndex;
+        }
+    }
+    
+    /**
+     * The high-water mark of the rows seen in the delta refresh mode: the latest modification time seen, and the
+     * rows seen with exactly that time. The delta query fetches the rows at or after the mark, hence the rows
+     * modified within the same clock tick as the previous refresh are not missed.
+     */
+    private static final class HighWaterMark {
+        
+        /** The latest modification time seen, null if none. */
+        @Nullable private Timestamp lastModified;
+        
+        /** The row identifiers seen with the latest modification time. */
+        @Nonnull private final Set<Long> idsAtMark = new HashSet<>();
+        
+        /**
+         * Get a copy of this mark.
+         * @return A copy of this mark.
+         */
+        private HighWaterMark copy() {
+            final HighWaterMark mark = new HighWaterMark();
+            mark.lastModified = lastModified;
+            mark.idsAtMark.addAll(idsAtMark);
+            return mark;
+        }
+        
+        /**
+         * Checks whether the given row was already seen with the given modification time at this mark.
+         * @param id The row identifier.
+         * @param modified The modification time of the row, may be null.
+         * @return true if the row was already seen, false otherwise.
+         */
+        private boolean isApplied(final long id, @Nullable final Timestamp modified) {
+            return modified != null && modified.equals(lastModified) && idsAtMark.contains(id);
+        }
+        
+        /**
+         * Moves the mark forward with the given row.
+         * @param id The row identifier.
+         * @param modified The modification time of the row, may be null.
+         */
+        private void update(final long id, @Nullable final Timestamp modified) {
+            if (modified == null) {
+                return;
+            }
+            if (lastModified == null || modified.after(lastModified)) {
+                lastModified = modified;
+                idsAtMark.clear();
+            }
+            if (modified.equals(lastModified)) {
+                idsAtMark.add(id);
+            }
+        }
+        
+        /**
+         * Sets the mark as the parameter for the delta query.
+         * @param statement The statement built from {@link ServiceTableMapping#getDeltaQuery()}.
+         * @throws SQLException If the parameter cannot be set.
+         */
+        private void setParameters(final PreparedStatement statement) throws SQLException {
+            statement.setTimestamp(1, lastModified != null ? lastModified : new Timestamp(0));
+        }
+    }
+    
+    /**
+     * The cursor types for the service queries.
+     */
+    public enum CursorType {
+        
+        /** The cursor may only move forward. */
+        FORWARD_ONLY(ResultSet.TYPE_FORWARD_ONLY),
+        
+        /** The cursor is scrollable but not sensitive to the changes made by others. */
+        SCROLL_INSENSITIVE(ResultSet.TYPE_SCROLL_INSENSITIVE),
+        
+        /** The cursor is scrollable and sensitive to the changes made by others. */
+        SCROLL_SENSITIVE(ResultSet.TYPE_SCROLL_SENSITIVE);
+        
+        /** The corresponding {@link ResultSet} type. */
+        private final int resultSetType;
+        
+        /**
+         * Constructor.
+         * @param type The corresponding {@link ResultSet} type.
+         */
+        private CursorType(final int type) {
+            resultSetType = type;
+        }
+        
+        /**
+         * Get the corresponding {@link ResultSet} type.
+         * @return The corresponding {@link ResultSet} type.
+         */
+        public int getResultSetType() {
+            return resultSetType;
+        }
+    }
+    
+    /**
+     * The parameters for the service queries.
+     */
+    private interface QueryParameters {
+        
+        /**
+         * Sets the parameters to the given statement.
+         * @param statement The statement.
+         * @throws SQLException If the parameters cannot be set.
+         */
+        void setParameters(@Nonnull final PreparedStatement statement) throws SQLException;
+    }
+    
+    /**
+     * Handler for the rows of the service queries.
+     */
+    private interface RowHandler {
+        
+        /**
+         * Handles the current row of the given result set.
+         * @param results The result set pointing to the row to be handled.
+         * @throws SQLException If the columns cannot be read from the result set.
+         */
+        void handleRow(@Nonnull final ResultSet results) throws SQLException;
     }
 }
\ No newline at end of file
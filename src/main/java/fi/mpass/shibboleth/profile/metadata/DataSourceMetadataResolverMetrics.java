@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The statistics of a {@link DataSourceMetadataResolver}. The instance is available from
+ * {@link DataSourceMetadataResolver#getMetrics()}, and can be published as a Spring bean or registered to an MBean
+ * server, see {@link DataSourceMetadataResolver#setRegisterMBean(boolean)}.
+ * 
+ * <p>The resolve path only increments two counters per call. The counters are striped over the threads, so that
+ * the concurrent resolve calls do not contend for them. The latency is measured for one call out of
+ * {@value #RESOLVE_SAMPLE_INTERVAL} per criteria type and thread stripe, to keep the clock reads off the hot
+ * path.</p>
+ */
+public class DataSourceMetadataResolverMetrics implements DataSourceMetadataResolverMetricsMXBean {
+    
+    /** The interval of the sampled resolve latencies, must be a power of two. */
+    public static final int RESOLVE_SAMPLE_INTERVAL = 64;
+    
+    /** The value returned by {@link #startResolve(ResolveType)} for the calls not sampled. */
+    public static final long NOT_SAMPLED = -1L;
+    
+    /** The durations of the refresh phases. */
+    @Nonnull private final DurationHistogram[] phaseDurations;
+    
+    /** The number of resolve calls per criteria type. */
+    @Nonnull private final StripedCounter[] resolveCounts;
+    
+    /** The number of resolve calls with a non-empty result per criteria type. */
+    @Nonnull private final StripedCounter[] resolveHitCounts;
+    
+    /** The sampled latencies of the resolve calls per criteria type. */
+    @Nonnull private final DurationHistogram[] resolveLatencies;
+    
+    /** The number of completed refreshes. */
+    @Nonnull private final AtomicLong refreshCount = new AtomicLong();
+    
+    /** The number of failed refreshes. */
+    @Nonnull private final AtomicLong refreshFailureCount = new AtomicLong();
+    
+    /** The number of skipped refreshes. */
+    @Nonnull private final AtomicLong skippedRefreshCount = new AtomicLong();
+    
+    /** The number of rows fetched by all the refreshes. */
+    @Nonnull private final AtomicLong totalRowsFetched = new AtomicLong();
+    
+    /** The time of the last successful refresh. */
+    private volatile long lastSuccessfulRefreshTime;
+    
+    /** The time of the last failed refresh. */
+    private volatile long lastFailedRefreshTime;
+    
+    /** The number of rows fetched by the last refresh. */
+    private volatile long lastRowsFetched;
+    
+    /** The size of the metadata document serialized by the last refresh. */
+    private volatile long lastMetadataByteSize;
+    
+    /** Constructor. */
+    public DataSourceMetadataResolverMetrics() {
+        phaseDurations = new DurationHistogram[RefreshPhase.values().length];
+        for (int i = 0; i < phaseDurations.length; i++) {
+            phaseDurations[i] = new DurationHistogram();
+        }
+        final int types = ResolveType.values().length;
+        resolveCounts = new StripedCounter[types];
+        resolveHitCounts = new StripedCounter[types];
+        resolveLatencies = new DurationHistogram[types];
+        for (int i = 0; i < types; i++) {
+            resolveCounts[i] = new StripedCounter();
+            resolveHitCounts[i] = new StripedCounter();
+            resolveLatencies[i] = new DurationHistogram();
+        }
+    }
+    
+    /**
+     * Records the duration of the given refresh phase.
+     * @param phase The refresh phase.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordPhase(@Nonnull final RefreshPhase phase, final long nanos) {
+        phaseDurations[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+    
+    /**
+     * Records the number of rows fetched by the ongoing refresh.
+     * @param rows The number of rows.
+     */
+    public void recordRowsFetched(final long rows) {
+        lastRowsFetched = rows;
+        totalRowsFetched.addAndGet(rows);
+    }
+    
+    /**
+     * Records the size of the metadata document serialized by the ongoing refresh.
+     * @param size The size in bytes.
+     */
+    public void recordMetadataByteSize(final long size) {
+        lastMetadataByteSize = size;
+    }
+    
+    /**
+     * Records a successful refresh.
+     * @param time The completion time in milliseconds.
+     */
+    public void recordRefreshSuccess(final long time) {
+        refreshCount.incrementAndGet();
+        lastSuccessfulRefreshTime = time;
+    }
+    
+    /**
+     * Records a failed refresh.
+     * @param time The completion time in milliseconds.
+     */
+    public void recordRefreshFailure(final long time) {
+        refreshCount.incrementAndGet();
+        refreshFailureCount.incrementAndGet();
+        lastFailedRefreshTime = time;
+    }
+    
+    /**
+     * Records a refresh skipped because the change probe found no changes.
+     */
+    public void recordSkippedRefresh() {
+        skippedRefreshCount.incrementAndGet();
+    }
+    
+    /**
+     * Records the start of a resolve call.
+     * @param type The criteria type.
+     * @return The start time in nanoseconds if the call is sampled, {@link #NOT_SAMPLED} otherwise.
+     */
+    public long startResolve(@Nonnull final ResolveType type) {
+        final long calls = resolveCounts[type.ordinal()].increment();
+        return (calls & (RESOLVE_SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : NOT_SAMPLED;
+    }
+    
+    /**
+     * Records the end of a resolve call.
+     * @param type The criteria type.
+     * @param start The value returned by {@link #startResolve(ResolveType)}.
+     * @param hit Whether the result was non-empty.
+     */
+    public void endResolve(@Nonnull final ResolveType type, final long start, final boolean hit) {
+        if (hit) {
+            resolveHitCounts[type.ordinal()].increment();
+        }
+        if (start != NOT_SAMPLED) {
+            resolveLatencies[type.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRefreshFailureCount() {
+        return refreshFailureCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSkippedRefreshCount() {
+        return skippedRefreshCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLastSuccessfulRefreshTime() {
+        return lastSuccessfulRefreshTime;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLastFailedRefreshTime() {
+        return lastFailedRefreshTime;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLastRowsFetched() {
+        return lastRowsFetched;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTotalRowsFetched() {
+        return totalRowsFetched.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLastMetadataByteSize() {
+        return lastMetadataByteSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, DurationHistogram.Snapshot> getRefreshPhaseDurations() {
+        final Map<String, DurationHistogram.Snapshot> snapshots = new LinkedHashMap<>();
+        for (final RefreshPhase phase : RefreshPhase.values()) {
+            snapshots.put(phase.name(), phaseDurations[phase.ordinal()].getSnapshot());
+        }
+        return snapshots;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, Long> getResolveCounts() {
+        return toMap(resolveCounts);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, Long> getResolveHitCounts() {
+        return toMap(resolveHitCounts);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, DurationHistogram.Snapshot> getResolveLatencies() {
+        final Map<String, DurationHistogram.Snapshot> snapshots = new LinkedHashMap<>();
+        for (final ResolveType type : ResolveType.values()) {
+            snapshots.put(type.name(), resolveLatencies[type.ordinal()].getSnapshot());
+        }
+        return snapshots;
+    }
+    
+    /**
+     * Get the values of the given counters keyed by the criteria type names.
+     * @param counters The counters indexed by the criteria type ordinals.
+     * @return The values of the counters keyed by the criteria type names.
+     */
+    private static Map<String, Long> toMap(@Nonnull final StripedCounter[] counters) {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        for (final ResolveType type : ResolveType.values()) {
+            values.put(type.name(), counters[type.ordinal()].sum());
+        }
+        return values;
+    }
+    
+    /**
+     * The phases of the refresh.
+     */
+    public enum RefreshPhase {
+        
+        /** Running the service queries, excluding the time spent in building the entities from the rows. */
+        QUERY,
+        
+        /** Building the entities from the rows and installing them to the backing store. */
+        BUILD,
+        
+        /** Marshalling and serializing the entities to the metadata document. */
+        MARSHAL,
+        
+        /** Parsing and unmarshalling the metadata document. */
+        PARSE;
+    }
+    
+    /**
+     * The criteria types of the resolve calls.
+     */
+    public enum ResolveType {
+        
+        /** The criteria contain an entity ID. */
+        ENTITY_ID,
+        
+        /** The criteria contain an entity role, protocol, binding or endpoint, resolved from the indexes. */
+        INDEXED,
+        
+        /** The criteria do not restrict the entities. */
+        ALL;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.Map;
+
+/**
+ * The management interface for the statistics of a {@link DataSourceMetadataResolver}.
+ */
+public interface DataSourceMetadataResolverMetricsMXBean {
+    
+    /**
+     * Get the number of completed refreshes, including the failed ones.
+     * @return The number of completed refreshes.
+     */
+    long getRefreshCount();
+    
+    /**
+     * Get the number of failed refreshes.
+     * @return The number of failed refreshes.
+     */
+    long getRefreshFailureCount();
+    
+    /**
+     * Get the number of refreshes skipped because the change probe found no changes.
+     * @return The number of skipped refreshes.
+     */
+    long getSkippedRefreshCount();
+    
+    /**
+     * Get the time of the last successful refresh.
+     * @return The time of the last successful refresh in milliseconds, 0 if none.
+     */
+    long getLastSuccessfulRefreshTime();
+    
+    /**
+     * Get the time of the last failed refresh.
+     * @return The time of the last failed refresh in milliseconds, 0 if none.
+     */
+    long getLastFailedRefreshTime();
+    
+    /**
+     * Get the number of rows fetched by the last refresh.
+     * @return The number of rows fetched by the last refresh.
+     */
+    long getLastRowsFetched();
+    
+    /**
+     * Get the number of rows fetched by all the refreshes.
+     * @return The number of rows fetched by all the refreshes.
+     */
+    long getTotalRowsFetched();
+    
+    /**
+     * Get the size of the metadata document serialized by the last refresh.
+     * @return The size in bytes, 0 if the entities were installed directly.
+     */
+    long getLastMetadataByteSize();
+    
+    /**
+     * Get the durations of the refresh phases, in microseconds, keyed by the phase names.
+     * @return The durations of the refresh phases.
+     */
+    Map<String, DurationHistogram.Snapshot> getRefreshPhaseDurations();
+    
+    /**
+     * Get the number of resolve calls per criteria type, keyed by the criteria type names.
+     * @return The number of resolve calls per criteria type.
+     */
+    Map<String, Long> getResolveCounts();
+    
+    /**
+     * Get the number of resolve calls with a non-empty result per criteria type, keyed by the criteria type names.
+     * @return The number of resolve calls with a non-empty result per criteria type.
+     */
+    Map<String, Long> getResolveHitCounts();
+    
+    /**
+     * Get the sampled latencies of the resolve calls, in microseconds, keyed by the criteria type names.
+     * @return The sampled latencies of the resolve calls.
+     */
+    Map<String, DurationHistogram.Snapshot> getResolveLatencies();
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A lock-free histogram for durations, with power-of-two bucket limits. The bucket <code>i</code> counts the
+ * durations less than 2<sup>i</sup> units and not counted by the previous buckets, and the last bucket counts
+ * everything else.
+ */
+public class DurationHistogram {
+    
+    /** The number of buckets. */
+    public static final int BUCKET_COUNT = 32;
+    
+    /** The number of recorded durations per bucket. */
+    @Nonnull private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    
+    /** The number of recorded durations. */
+    @Nonnull private final AtomicLong count = new AtomicLong();
+    
+    /** The sum of the recorded durations. */
+    @Nonnull private final AtomicLong total = new AtomicLong();
+    
+    /** The greatest recorded duration. */
+    @Nonnull private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records the given duration.
+     * @param duration The duration, negative values are recorded as zero.
+     */
+    public void record(final long duration) {
+        final long value = Math.max(0, duration);
+        buckets.incrementAndGet(Math.min(BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(value)));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Get a snapshot of the recorded durations. The snapshot is not atomic with respect to concurrent recordings.
+     * @return A snapshot of the recorded durations.
+     */
+    @Nonnull public Snapshot getSnapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(count.get(), total.get(), max.get(), counts);
+    }
+    
+    /**
+     * An immutable snapshot of a {@link DurationHistogram}, exposed as composite data over JMX.
+     */
+    public static class Snapshot {
+        
+        /** The number of recorded durations. */
+        private final long count;
+        
+        /** The sum of the recorded durations. */
+        private final long total;
+        
+        /** The greatest recorded duration. */
+        private final long max;
+        
+        /** The number of recorded durations per bucket. */
+        @Nonnull private final long[] bucketCounts;
+        
+        /**
+         * Constructor.
+         * @param recorded The number of recorded durations.
+         * @param sum The sum of the recorded durations.
+         * @param greatest The greatest recorded duration.
+         * @param counts The number of recorded durations per bucket.
+         */
+        @ConstructorProperties({"count", "total", "max", "bucketCounts"})
+        public Snapshot(final long recorded, final long sum, final long greatest, @Nonnull final long[] counts) {
+            count = recorded;
+            total = sum;
+            max = greatest;
+            bucketCounts = counts.clone();
+        }
+        
+        /**
+         * Get the number of recorded durations.
+         * @return The number of recorded durations.
+         */
+        public long getCount() {
+            return count;
+        }
+        
+        /**
+         * Get the sum of the recorded durations.
+         * @return The sum of the recorded durations.
+         */
+        public long getTotal() {
+            return total;
+        }
+        
+        /**
+         * Get the greatest recorded duration.
+         * @return The greatest recorded duration.
+         */
+        public long getMax() {
+            return max;
+        }
+        
+        /**
+         * Get the mean of the recorded durations.
+         * @return The mean of the recorded durations, 0 if nothing has been recorded.
+         */
+        public long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+        
+        /**
+         * Get the number of recorded durations per bucket. The bucket <code>i</code> counts the durations less
+         * than 2<sup>i</sup> units.
+         * @return The number of recorded durations per bucket.
+         */
+        @Nonnull public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+    }
+}
@@ -0,0 +1,652 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
+import org.opensaml.saml.metadata.resolver.impl.AbstractMetadataResolver;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+
+/**
+ * A {@link MetadataResolver} implementation that reads the minimal SAML entity configurations from a data source
+ * on demand, one entity at a time. The resolved entities are cached in a bounded cache with a per-entry lifetime,
+ * and the unknown entity IDs in a separate negative cache. Concurrent lookups for the same entity ID are coalesced
+ * into a single query. The activation window of the cached services is checked on every resolution.
+ * 
+ * <p>The services table is read with a {@link ServiceTableMapping}, which can be shared with a
+ * {@link DataSourceMetadataResolver} reading the same tables. As the lookups are run on the threads resolving the
+ * entities, they are bounded by the query timeout.</p>
+ */
+public class DynamicDataSourceMetadataResolver extends AbstractMetadataResolver {
+    
+    /** The default maximum number of the cached entities. */
+    public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+    
+    /** The default lifetime for the cached entities: 10 minutes. */
+    public static final long DEFAULT_CACHE_DURATION = 10 * 60 * 1000L;
+    
+    /** The default maximum number of the cached unknown entity IDs. */
+    public static final int DEFAULT_MAX_NEGATIVE_CACHE_SIZE = 10000;
+
+    /** The default lifetime for the cached unknown entity IDs: 1 minute. */
+    public static final long DEFAULT_NEGATIVE_CACHE_DURATION = 60 * 1000L;
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DynamicDataSourceMetadataResolver.class);
+    
+    /** The data source for the trusted SAML entity configuration. */
+    @Nonnull private DataSource dataSource;
+    
+    /** The maximum number of the cached entities. */
+    private int maxCacheSize;
+    
+    /** The lifetime for the cached entities, in milliseconds. */
+    @Duration private long cacheDuration;
+    
+    /** The maximum number of the cached unknown entity IDs. */
+    private int maxNegativeCacheSize;
+    
+    /** The lifetime for the cached unknown entity IDs, in milliseconds. */
+    @Duration private long negativeCacheDuration;
+    
+    /** The mapping of the services table and the service queries built from it. */
+    @Nonnull private ServiceTableMapping mapping = new ServiceTableMapping();
+    
+    /** The timeout for the database queries, in milliseconds, 0 for no timeout. */
+    @Duration private long queryTimeout;
+    
+    /** The cache for the resolved services. */
+    private Cache<String, List<ServiceEntry>> cache;
+    
+    /** The cache for the unknown entity IDs. */
+    private Cache<String, Boolean> negativeCache;
+    
+    /** The ongoing lookups, keyed by the entity ID. */
+    @Nonnull private final ConcurrentMap<String, FutureTask<List<ServiceEntry>>> pendingLookups;
+    
+    /** The parsed certificates of the services, parsed when a credential is first requested for them. */
+    @Nonnull private final ServiceCertificateCache certificateCache = new ServiceCertificateCache();
+    
+    /** The source of the current time for the start and end times of the services. */
+    @Nonnull private volatile MetadataClock clock = MetadataClock.SYSTEM;
+    
+    /**
+     * Constructor.
+     * @param source The data source for the trusted SAML entity configuration.
+     */
+    public DynamicDataSourceMetadataResolver(final DataSource source) {
+        super();
+        setDataSource(source);
+        maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+        cacheDuration = DEFAULT_CACHE_DURATION;
+        maxNegativeCacheSize = DEFAULT_MAX_NEGATIVE_CACHE_SIZE;
+        negativeCacheDuration = DEFAULT_NEGATIVE_CACHE_DURATION;
+        queryTimeout = DataSourceMetadataResolver.DEFAULT_QUERY_TIMEOUT;
+        pendingLookups = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Set the data source for the trusted SAML entity configuration.
+     * @param source What to set.
+     */
+    public void setDataSource(final DataSource source) {
+        dataSource = Constraint.isNotNull(source, "The data source cannot be null!");
+    }
+    
+    /**
+     * Get the data source for the trusted SAML entity configuration.
+     * @return The data source for the trusted SAML entity configuration.
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+    
+    /**
+     * Set the mapping of the services table. The mapping can be shared with a {@link DataSourceMetadataResolver}
+     * reading the same tables. The table, column and predicate setters of this resolver modify the mapping set here.
+     * 
+     * @param tableMapping What to set.
+     */
+    public void setMapping(@Nonnull final ServiceTableMapping tableMapping) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        mapping = Constraint.isNotNull(tableMapping, "The table mapping cannot be null!");
+    }
+    
+    /**
+     * Get the mapping of the services table.
+     * @return The mapping of the services table.
+     */
+    @Nonnull public ServiceTableMapping getMapping() {
+        return mapping;
+    }
+    
+    /**
+     * Set the table name for the services.
+     * @param table What to set.
+     * @see DataSourceMetadataResolver#setServicesTable(String)
+     */
+    public void setServicesTable(@Nonnull final String table) {
+        mapping.setServicesTable(table);
+    }
+    
+    /**
+     * Get the table name for the services.
+     * @return The table name for the services.
+     */
+    @Nonnull public String getServicesTable() {
+        return mapping.getServicesTable();
+    }
+    
+    /**
+     * Set the column name for the row identifier.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setIdColumn(String)
+     */
+    public void setIdColumn(@Nonnull final String column) {
+        mapping.setIdColumn(column);
+    }
+    
+    /**
+     * Get the column name for the row identifier.
+     * @return The column name for the row identifier.
+     */
+    @Nonnull public String getIdColumn() {
+        return mapping.getIdColumn();
+    }
+    
+    /**
+     * Set the column name for the SAML entity ID.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setEntityIdColumn(String)
+     */
+    public void setEntityIdColumn(@Nonnull final String column) {
+        mapping.setEntityIdColumn(column);
+    }
+    
+    /**
+     * Get the column name for the SAML entity ID.
+     * @return The column name for the SAML entity ID.
+     */
+    @Nonnull public String getEntityIdColumn() {
+        return mapping.getEntityIdColumn();
+    }
+    
+    /**
+     * Set the column name for the ACS URL.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setAcsUrlColumn(String)
+     */
+    public void setAcsUrlColumn(@Nonnull final String column) {
+        mapping.setAcsUrlColumn(column);
+    }
+    
+    /**
+     * Get the column name for the ACS URL.
+     * @return The column name for the ACS URL.
+     */
+    @Nonnull public String getAcsUrlColumn() {
+        return mapping.getAcsUrlColumn();
+    }
+    
+    /**
+     * Set the column name for the start time.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setStartTimeColumn(String)
+     */
+    public void setStartTimeColumn(@Nonnull final String column) {
+        mapping.setStartTimeColumn(column);
+    }
+    
+    /**
+     * Get the column name for the start time.
+     * @return The column name for the start time.
+     */
+    @Nonnull public String getStartTimeColumn() {
+        return mapping.getStartTimeColumn();
+    }
+    
+    /**
+     * Set the column name for the end time.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setEndTimeColumn(String)
+     */
+    public void setEndTimeColumn(@Nonnull final String column) {
+        mapping.setEndTimeColumn(column);
+    }
+    
+    /**
+     * Get the column name for the end time.
+     * @return The column name for the end time.
+     */
+    @Nonnull public String getEndTimeColumn() {
+        return mapping.getEndTimeColumn();
+    }
+    
+    /**
+     * Set the optional column name for the signing certificate.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setSigningCertificateColumn(String)
+     */
+    public void setSigningCertificateColumn(@Nullable final String column) {
+        mapping.setSigningCertificateColumn(column);
+    }
+    
+    /**
+     * Get the optional column name for the signing certificate.
+     * @return The optional column name for the signing certificate.
+     */
+    @Nullable public String getSigningCertificateColumn() {
+        return mapping.getSigningCertificateColumn();
+    }
+    
+    /**
+     * Set the optional column name for the encryption certificate.
+     * @param column What to set.
+     * @see DataSourceMetadataResolver#setEncryptionCertificateColumn(String)
+     */
+    public void setEncryptionCertificateColumn(@Nullable final String column) {
+        mapping.setEncryptionCertificateColumn(column);
+    }
+    
+    /**
+     * Get the optional column name for the encryption certificate.
+     * @return The optional column name for the encryption certificate.
+     */
+    @Nullable public String getEncryptionCertificateColumn() {
+        return mapping.getEncryptionCertificateColumn();
+    }
+    
+    /**
+     * Set the optional predicate for selecting the services.
+     * @param predicate What to set.
+     * @see DataSourceMetadataResolver#setWherePredicate(String)
+     */
+    public void setWherePredicate(@Nullable final String predicate) {
+        mapping.setWherePredicate(predicate);
+    }
+    
+    /**
+     * Get the optional predicate for selecting the services.
+     * @return The optional predicate for selecting the services.
+     */
+    @Nullable public String getWherePredicate() {
+        return mapping.getWherePredicate();
+    }
+    
+    /**
+     * Set the optional table name for the service endpoints.
+     * @param table What to set.
+     * @see DataSourceMetadataResolver#setEndpointTable(String)
+     */
+    public void setEndpointTable(@Nullable final String table) {
+        mapping.setEndpointTable(table);
+    }
+    
+    /**
+     * Get the optional table name for the service endpoints.
+     * @return The optional table name for the service endpoints.
+     */
+    @Nullable public String getEndpointTable() {
+        return mapping.getEndpointTable();
+    }
+    
+    /**
+     * Set the timeout for the database queries. The lookups are run on the threads resolving the entities, hence
+     * the timeout bounds the time a resolution can wait for the data source. Default one minute.
+     * 
+     * @param timeout What to set, in milliseconds, 0 for no timeout.
+     */
+    public void setQueryTimeout(@Duration final long timeout) {
+        queryTimeout = Constraint.isGreaterThanOrEqual(0, timeout, "The query timeout cannot be negative");
+    }
+    
+    /**
+     * Get the timeout for the database queries.
+     * @return The timeout for the database queries, in milliseconds, 0 for no timeout.
+     */
+    @Duration public long getQueryTimeout() {
+        return queryTimeout;
+    }
+    
+    /**
+     * Set the maximum number of the cached entities.
+     * @param size What to set.
+     */
+    public void setMaxCacheSize(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxCacheSize = (int) Constraint.isGreaterThan(0, size, "The maximum cache size must be positive");
+    }
+    
+    /**
+     * Get the maximum number of the cached entities.
+     * @return The maximum number of the cached entities.
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+    
+    /**
+     * Set the lifetime for the cached entities.
+     * @param duration What to set, in milliseconds.
+     */
+    public void setCacheDuration(@Duration final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        cacheDuration = Constraint.isGreaterThan(0, duration, "The cache duration must be positive");
+    }
+    
+    /**
+     * Get the lifetime for the cached entities.
+     * @return The lifetime for the cached entities, in milliseconds.
+     */
+    @Duration public long getCacheDuration() {
+        return cacheDuration;
+    }
+    
+    /**
+     * Set the maximum number of the cached unknown entity IDs.
+     * @param size What to set.
+     */
+    public void setMaxNegativeCacheSize(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxNegativeCacheSize = (int) Constraint.isGreaterThan(0, size, 
+                "The maximum negative cache size must be positive");
+    }
+    
+    /**
+     * Get the maximum number of the cached unknown entity IDs.
+     * @return The maximum number of the cached unknown entity IDs.
+     */
+    public int getMaxNegativeCacheSize() {
+        return maxNegativeCacheSize;
+    }
+    
+    /**
+     * Set the lifetime for the cached unknown entity IDs.
+     * @param duration What to set, in milliseconds.
+     */
+    public void setNegativeCacheDuration(@Duration final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        negativeCacheDuration = Constraint.isGreaterThan(0, duration, 
+                "The negative cache duration must be positive");
+    }
+    
+    /**
+     * Get the lifetime for the cached unknown entity IDs.
+     * @return The lifetime for the cached unknown entity IDs, in milliseconds.
+     */
+    @Duration public long getNegativeCacheDuration() {
+        return negativeCacheDuration;
+    }
+    
+    /**
+     * Set the source of the current time for the start and end times of the services. Default
+     * {@link MetadataClock#SYSTEM}.
+     * @param metadataClock What to set.
+     */
+    public void setClock(@Nonnull final MetadataClock metadataClock) {
+        clock = Constraint.isNotNull(metadataClock, "The clock cannot be null");
+    }
+    
+    /**
+     * Get the source of the current time for the start and end times of the services.
+     * @return The source of the current time for the start and end times of the services.
+     */
+    @Nonnull public MetadataClock getClock() {
+        return clock;
+    }
+    
+    /**
+     * Get the cache for the parsed certificates of the services.
+     * @return The cache for the parsed certificates of the services.
+     * @see DataSourceMetadataResolver#getCertificateCache()
+     */
+    @Nonnull public ServiceCertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void initMetadataResolver() throws ComponentInitializationException {
+        super.initMetadataResolver();
+        cache = CacheBuilder.newBuilder().maximumSize(getMaxCacheSize())
+                .expireAfterWrite(getCacheDuration(), TimeUnit.MILLISECONDS).build();
+        negativeCache = CacheBuilder.newBuilder().maximumSize(getMaxNegativeCacheSize())
+                .expireAfterWrite(getNegativeCacheDuration(), TimeUnit.MILLISECONDS).build();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidateAll();
+        }
+        certificateCache.clear();
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Iterable<EntityDescriptor> resolve(final CriteriaSet criteria) throws ResolverException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final EntityIdCriterion entityIdCriterion = criteria.get(EntityIdCriterion.class);
+        if (entityIdCriterion == null || Strings.isNullOrEmpty(entityIdCriterion.getEntityId())) {
+            log.debug("No entity ID in the criteria, the dynamic resolver does not enumerate the entities");
+            return Collections.emptyList();
+        }
+        final EntityDescriptor entity = lookup(entityIdCriterion.getEntityId());
+        if (entity == null || !isValid(entity)) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(entity);
+    }
+    
+    /**
+     * Looks up the currently active entity for the given entity ID, from the caches or from the data source.
+     * 
+     * @param entityId The entity ID.
+     * @return The entity, or null if no active one was found.
+     * @throws ResolverException If the entity cannot be fetched from the data source.
+     */
+    @Nullable protected EntityDescriptor lookup(@Nonnull final String entityId) throws ResolverException {
+        final long now = clock.currentTimeMillis();
+        for (final ServiceEntry entry : lookupEntries(entityId)) {
+            if (entry.isActive(now)) {
+                return entry.getDescriptor();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Looks up the services for the given entity ID, from the caches or from the data source. Concurrent lookups
+     * for the same entity ID share a single query.
+     * 
+     * @param entityId The entity ID.
+     * @return The services, including the inactive ones, with their filtered entities, or an empty list if none
+     * were found.
+     * @throws ResolverException If the services cannot be fetched from the data source.
+     */
+    @Nonnull protected List<ServiceEntry> lookupEntries(@Nonnull final String entityId) throws ResolverException {
+        final List<ServiceEntry> cached = cache.getIfPresent(entityId);
+        if (cached != null) {
+            return cached;
+        }
+        if (negativeCache.getIfPresent(entityId) != null) {
+            log.trace("Entity {} found from the negative cache", entityId);
+            return Collections.emptyList();
+        }
+        final FutureTask<List<ServiceEntry>> task = new FutureTask<>(new Callable<List<ServiceEntry>>() {
+            public List<ServiceEntry> call() throws Exception {
+                return fetchAndCache(entityId);
+            }
+        });
+        final FutureTask<List<ServiceEntry>> pending = pendingLookups.putIfAbsent(entityId, task);
+        try {
+            if (pending != null) {
+                log.trace("Waiting for the ongoing lookup for {}", entityId);
+                return pending.get();
+            }
+            task.run();
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResolverException("Interrupted while waiting for the entity " + entityId, e);
+        } catch (ExecutionException e) {
+            throw new ResolverException("Could not fetch the entity " + entityId, e.getCause());
+        } finally {
+            if (pending == null) {
+                pendingLookups.remove(entityId, task);
+            }
+        }
+    }
+    
+    /**
+     * Fetches the services for the given entity ID from the data source, runs the configured metadata filter for
+     * them, and stores the result to the corresponding cache. The services retained by the filter are cached with
+     * their filtered entities, so that the filter is run once per fetch.
+     * 
+     * @param entityId The entity ID.
+     * @return The services retained by the filter, with their filtered entities, or an empty list if none were
+     * found.
+     * @throws SQLException If the services cannot be fetched from the data source.
+     * @throws ResolverException If the entities cannot be filtered.
+     */
+    @Nonnull protected List<ServiceEntry> fetchAndCache(@Nonnull final String entityId)
+            throws SQLException, ResolverException {
+        final List<ServiceEntry> fetched = new ArrayList<>(1);
+        final ServiceEntryAssembler assembler = getMapping().newAssembler(false);
+        try (final Connection connection = getDataSource().getConnection();
+                final PreparedStatement statement = prepareStatement(connection, getMapping().getLookupQuery())) {
+            statement.setString(1, entityId);
+            try (final ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    final ServiceEntry entry = assembler.add(results);
+                    if (entry != null) {
+                        fetched.add(entry);
+                    }
+                }
+            }
+        }
+        final ServiceEntry last = assembler.finish();
+        if (last != null) {
+            fetched.add(last);
+        }
+        final List<ServiceEntry> entries = new ArrayList<>(fetched.size());
+        for (final ServiceEntry entry : fetched) {
+            if (getMetadataFilter() == null) {
+                entries.add(entry);
+            } else {
+                final EntityDescriptor filtered = filter(entry.getDescriptor());
+                if (filtered != null) {
+                    entries.add(new ServiceEntry(entry.getId(), filtered, entry.getStartTime(), entry.getEndTime()));
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            log.debug("No entity found for {}", entityId);
+            negativeCache.put(entityId, Boolean.TRUE);
+        } else {
+            log.debug("Fetched {} services for {}", entries.size(), entityId);
+            cache.put(entityId, entries);
+        }
+        return entries;
+    }
+    
+    /**
+     * Prepares the given statement with the query timeout.
+     * 
+     * @param connection The connection to the data source.
+     * @param sql The statement.
+     * @return The prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    PreparedStatement prepareStatement(@Nonnull final Connection connection, @Nonnull final String sql)
+            throws SQLException {
+        return DataSourceMetadataResolver.applyQueryTimeout(connection.prepareStatement(sql), getQueryTimeout());
+    }
+    
+    /**
+     * Runs the configured metadata filter, if any, for the given entity.
+     * 
+     * @param entity The entity, may be null.
+     * @return The filtered entity, or null if it was filtered out.
+     * @throws ResolverException If the entity cannot be marshalled or filtered.
+     */
+    @Nullable protected EntityDescriptor filter(@Nullable final EntityDescriptor entity) throws ResolverException {
+        if (entity == null || getMetadataFilter() == null) {
+            return entity;
+        }
+        final XMLObject metadata;
+        try {
+            XMLObjectSupport.marshall(entity);
+            metadata = getMetadataFilter().filter(entity);
+        } catch (MarshallingException | FilterException e) {
+            throw new ResolverException("Could not filter the entity " + entity.getEntityID(), e);
+        }
+        if (metadata instanceof EntityDescriptor) {
+            metadata.releaseDOM();
+            metadata.releaseChildrenDOM(true);
+            return (EntityDescriptor) metadata;
+        }
+        return null;
+    }
+}
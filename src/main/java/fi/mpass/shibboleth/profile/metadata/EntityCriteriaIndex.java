@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.saml.criterion.BindingCriterion;
+import org.opensaml.saml.criterion.EndpointCriterion;
+import org.opensaml.saml.criterion.EntityRoleCriterion;
+import org.opensaml.saml.criterion.ProtocolCriterion;
+import org.opensaml.saml.saml2.metadata.Endpoint;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Ints;
+
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+
+/**
+ * Secondary indexes over an immutable list of entities, for answering the resolve calls with
+ * {@link EntityRoleCriterion}, {@link ProtocolCriterion}, {@link BindingCriterion} and {@link EndpointCriterion}
+ * without scanning all the entities.
+ * 
+ * <p>Each index maps a key to the sorted positions of the matching entities in the list. An entity matches a
+ * role if it has a role descriptor with the given element name or schema type, a protocol if one of its roles
+ * supports it, a binding if one of its endpoints uses any of the given bindings, and an endpoint if one of its
+ * endpoints has the same location. A role and a protocol given together must match the same role descriptor, so
+ * they are answered from a separate index keyed by both. Combined criteria are answered by intersecting the
+ * positions, starting from the shortest list, so the cost is proportional to the result rather than to the number
+ * of entities. The results keep the order of the entity list.</p>
+ * 
+ * <p>The indexes may also be built with a {@link Builder} from the keys of the entities, without accessing the
+ * entities themselves, so that a lazily built list of entities only builds the ones in the results.</p>
+ */
+public class EntityCriteriaIndex {
+    
+    /** The empty list of positions. */
+    private static final int[] NO_POSITIONS = new int[0];
+    
+    /** The comparator ordering the lists of positions by their length. */
+    private static final Comparator<int[]> BY_LENGTH = new Comparator<int[]>() {
+        public int compare(final int[] first, final int[] second) {
+            return Integer.compare(first.length, second.length);
+        }
+    };
+    
+    /** The indexed entities. */
+    @Nonnull private final List<EntityDescriptor> descriptors;
+    
+    /** The positions of the entities by their entity IDs. */
+    @Nonnull private final Map<String, int[]> entityIds;
+    
+    /** The positions of the entities by their role element names and schema types. */
+    @Nonnull private final Map<QName, int[]> roles;
+    
+    /** The positions of the entities by their supported protocols. */
+    @Nonnull private final Map<String, int[]> protocols;
+    
+    /** The positions of the entities by their role element names and schema types with the supported protocols. */
+    @Nonnull private final Map<Map.Entry<QName, String>, int[]> roleProtocols;
+    
+    /** The positions of the entities by their endpoint bindings. */
+    @Nonnull private final Map<String, int[]> bindings;
+    
+    /** The positions of the entities by their endpoint locations. */
+    @Nonnull private final Map<String, int[]> locations;
+    
+    /**
+     * Constructor.
+     * @param entities The entities to be indexed, must not be modified afterwards.
+     */
+    public EntityCriteriaIndex(@Nonnull final List<EntityDescriptor> entities) {
+        this(entities, indexEntities(entities));
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param entities The indexed entities, must not be modified afterwards.
+     * @param builder The builder containing the keys of the entities.
+     */
+    private EntityCriteriaIndex(@Nonnull final List<EntityDescriptor> entities, @Nonnull final Builder builder) {
+        descriptors = entities;
+        entityIds = toPositions(builder.entityIdPositions);
+        roles = toPositions(builder.rolePositions);
+        protocols = toPositions(builder.protocolPositions);
+        roleProtocols = toPositions(builder.roleProtocolPositions);
+        bindings = toPositions(builder.bindingPositions);
+        locations = toPositions(builder.locationPositions);
+    }
+    
+    /**
+     * Collects the keys of the given entities.
+     * 
+     * @param entities The entities.
+     * @return The builder containing the keys of the entities.
+     */
+    @Nonnull private static Builder indexEntities(@Nonnull final List<EntityDescriptor> entities) {
+        final Builder builder = new Builder();
+        for (int i = 0; i < entities.size(); i++) {
+            final EntityDescriptor entity = entities.get(i);
+            builder.addEntityId(i, entity.getEntityID());
+            for (final RoleDescriptor role : entity.getRoleDescriptors()) {
+                builder.addRole(i, role.getElementQName(), role.getSupportedProtocols());
+                builder.addRole(i, role.getSchemaType(), role.getSupportedProtocols());
+                for (final Endpoint endpoint : role.getEndpoints()) {
+                    builder.addEndpoint(i, endpoint.getBinding(), endpoint.getLocation());
+                }
+            }
+        }
+        return builder;
+    }
+    
+    /**
+     * Checks whether the given criteria contain any of the criteria supported by the indexes, other than the
+     * entity ID.
+     * 
+     * @param criteria The criteria.
+     * @return true if the indexes are needed for resolving the criteria, false otherwise.
+     */
+    public static boolean isIndexed(@Nonnull final CriteriaSet criteria) {
+        return criteria.contains(EntityRoleCriterion.class) || criteria.contains(ProtocolCriterion.class)
+                || criteria.contains(BindingCriterion.class) || criteria.contains(EndpointCriterion.class);
+    }
+    
+    /**
+     * Resolves the entities matching all the supported criteria in the given set, including a non-empty entity ID.
+     * 
+     * @param criteria The criteria.
+     * @return The matching entities in the indexed order, all of them if the criteria contain none of the supported
+     * ones.
+     */
+    @Nonnull public List<EntityDescriptor> resolve(@Nonnull final CriteriaSet criteria) {
+        final List<int[]> postings = new ArrayList<>(5);
+        final EntityIdCriterion entityIdCriterion = criteria.get(EntityIdCriterion.class);
+        if (entityIdCriterion != null && !Strings.isNullOrEmpty(entityIdCriterion.getEntityId())) {
+            postings.add(get(entityIds, entityIdCriterion.getEntityId()));
+        }
+        final EntityRoleCriterion roleCriterion = criteria.get(EntityRoleCriterion.class);
+        final ProtocolCriterion protocolCriterion = criteria.get(ProtocolCriterion.class);
+        if (roleCriterion != null && protocolCriterion != null) {
+            postings.add(get(roleProtocols, roleProtocol(roleCriterion.getRole(), protocolCriterion.getProtocol())));
+        } else if (roleCriterion != null) {
+            postings.add(get(roles, roleCriterion.getRole()));
+        } else if (protocolCriterion != null) {
+            postings.add(get(protocols, protocolCriterion.getProtocol()));
+        }
+        final BindingCriterion bindingCriterion = criteria.get(BindingCriterion.class);
+        if (bindingCriterion != null) {
+            int[] union = NO_POSITIONS;
+            for (final String binding : bindingCriterion.getBindings()) {
+                union = union(union, get(bindings, binding));
+            }
+            postings.add(union);
+        }
+        final EndpointCriterion<?> endpointCriterion = criteria.get(EndpointCriterion.class);
+        if (endpointCriterion != null) {
+            postings.add(get(locations, endpointCriterion.getEndpoint().getLocation()));
+        }
+        if (postings.isEmpty()) {
+            return descriptors;
+        }
+        Collections.sort(postings, BY_LENGTH);
+        final int[] shortest = postings.get(0);
+        final List<EntityDescriptor> result = new ArrayList<>(shortest.length);
+        for (final int position : shortest) {
+            if (containedInAll(postings, position)) {
+                result.add(descriptors.get(position));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Checks whether the given position is contained in all the given lists of positions, except the first one.
+     * 
+     * @param postings The lists of positions.
+     * @param position The position.
+     * @return true if the position is contained in all the lists, false otherwise.
+     */
+    private static boolean containedInAll(@Nonnull final List<int[]> postings, final int position) {
+        for (int i = 1; i < postings.size(); i++) {
+            if (Arrays.binarySearch(postings.get(i), position) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Gets the positions for the given key.
+     * 
+     * @param <KeyType> The type of the keys.
+     * @param index The index.
+     * @param key The key, may be null.
+     * @return The positions for the given key, empty if none.
+     */
+    @Nonnull private static <KeyType> int[] get(@Nonnull final Map<KeyType, int[]> index, 
+            @Nullable final KeyType key) {
+        final int[] positions = key == null ? null : index.get(key);
+        return positions == null ? NO_POSITIONS : positions;
+    }
+    
+    /**
+     * Builds the key for the given role and protocol.
+     * 
+     * @param role The role element name or schema type, may be null.
+     * @param protocol The protocol, may be null.
+     * @return The key, or null if either of the parts is null.
+     */
+    @Nullable private static Map.Entry<QName, String> roleProtocol(@Nullable final QName role,
+            @Nullable final String protocol) {
+        return role == null || protocol == null ? null : new SimpleImmutableEntry<>(role, protocol);
+    }
+    
+    /**
+     * Merges the given sorted lists of positions.
+     * 
+     * @param first The first sorted list of positions.
+     * @param second The second sorted list of positions.
+     * @return The sorted union of the positions.
+     */
+    @Nonnull private static int[] union(@Nonnull final int[] first, @Nonnull final int[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        if (second.length == 0) {
+            return first;
+        }
+        final int[] merged = new int[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < first.length || j < second.length) {
+            final int next;
+            if (j == second.length || i < first.length && first[i] < second[j]) {
+                next = first[i++];
+            } else if (i == first.length || second[j] < first[i]) {
+                next = second[j++];
+            } else {
+                next = first[i++];
+                j++;
+            }
+            merged[size++] = next;
+        }
+        return Arrays.copyOf(merged, size);
+    }
+    
+    /**
+     * Adds the given position for the given key, unless it was already added as the latest one.
+     * 
+     * @param <KeyType> The type of the keys.
+     * @param index The index being built.
+     * @param key The key, ignored if null.
+     * @param position The position.
+     */
+    private static <KeyType> void addPosition(@Nonnull final Map<KeyType, List<Integer>> index,
+            @Nullable final KeyType key, final int position) {
+        if (key == null) {
+            return;
+        }
+        List<Integer> positions = index.get(key);
+        if (positions == null) {
+            positions = new ArrayList<>(1);
+            index.put(key, positions);
+        }
+        if (positions.isEmpty() || positions.get(positions.size() - 1) != position) {
+            positions.add(position);
+        }
+    }
+    
+    /**
+     * Converts the given index being built to the final one.
+     * 
+     * @param <KeyType> The type of the keys.
+     * @param index The index being built.
+     * @return The final index.
+     */
+    @Nonnull private static <KeyType> Map<KeyType, int[]> toPositions(
+            @Nonnull final Map<KeyType, List<Integer>> index) {
+        final Map<KeyType, int[]> result = new HashMap<>(index.size() * 2);
+        for (final Map.Entry<KeyType, List<Integer>> entry : index.entrySet()) {
+            result.put(entry.getKey(), Ints.toArray(entry.getValue()));
+        }
+        return result;
+    }
+    
+    /**
+     * Collects the keys of the entities for the indexes. The keys must be added in the order of the positions of
+     * the entities.
+     */
+    public static final class Builder {
+        
+        /** The positions of the entities by their entity IDs. */
+        @Nonnull private final Map<String, List<Integer>> entityIdPositions = new HashMap<>();
+        
+        /** The positions of the entities by their role element names and schema types. */
+        @Nonnull private final Map<QName, List<Integer>> rolePositions = new HashMap<>();
+        
+        /** The positions of the entities by their supported protocols. */
+        @Nonnull private final Map<String, List<Integer>> protocolPositions = new HashMap<>();
+        
+        /** The positions of the entities by their roles with the supported protocols. */
+        @Nonnull private final Map<Map.Entry<QName, String>, List<Integer>> roleProtocolPositions = new HashMap<>();
+        
+        /** The positions of the entities by their endpoint bindings. */
+        @Nonnull private final Map<String, List<Integer>> bindingPositions = new HashMap<>();
+        
+        /** The positions of the entities by their endpoint locations. */
+        @Nonnull private final Map<String, List<Integer>> locationPositions = new HashMap<>();
+        
+        /**
+         * Adds the entity ID of the entity at the given position.
+         * 
+         * @param position The position of the entity.
+         * @param entityId The entity ID, ignored if null.
+         */
+        public void addEntityId(final int position, @Nullable final String entityId) {
+            addPosition(entityIdPositions, entityId, position);
+        }
+        
+        /**
+         * Adds a role of the entity at the given position, with the protocols it supports.
+         * 
+         * @param position The position of the entity.
+         * @param role The role element name or schema type, ignored if null.
+         * @param supportedProtocols The protocols supported by the role.
+         */
+        public void addRole(final int position, @Nullable final QName role,
+                @Nonnull final Collection<String> supportedProtocols) {
+            addPosition(rolePositions, role, position);
+            for (final String protocol : supportedProtocols) {
+                addPosition(protocolPositions, protocol, position);
+                addPosition(roleProtocolPositions, roleProtocol(role, protocol), position);
+            }
+        }
+        
+        /**
+         * Adds an endpoint of the entity at the given position.
+         * 
+         * @param position The position of the entity.
+         * @param binding The binding of the endpoint, ignored if null.
+         * @param location The location of the endpoint, ignored if null.
+         */
+        public void addEndpoint(final int position, @Nullable final String binding,
+                @Nullable final String location) {
+            addPosition(bindingPositions, binding, position);
+            addPosition(locationPositions, location, position);
+        }
+        
+        /**
+         * Builds the indexes over the given entities from the collected keys.
+         * 
+         * @param entities The entities, in the order of the positions, must not be modified afterwards.
+         * @return The indexes over the entities.
+         */
+        @Nonnull public EntityCriteriaIndex build(@Nonnull final List<EntityDescriptor> entities) {
+            return new EntityCriteriaIndex(entities, this);
+        }
+    }
+}
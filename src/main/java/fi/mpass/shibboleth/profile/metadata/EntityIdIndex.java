@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+/**
+ * An immutable open-addressing hash index from the entity IDs to the entities, for looking up a single entity
+ * without allocating.
+ * 
+ * <p>The keys, their hash codes and the entities are stored in parallel arrays whose length is a power of two at least
+ * twice the number of the entities, and the collisions are resolved by linear probing. The keys are compared with
+ * {@link String#equals(Object)} only when the hash codes match. If several entities share an entity ID, the first
+ * one in the list is indexed.</p>
+ */
+public class EntityIdIndex {
+    
+    /** The empty index. */
+    public static final EntityIdIndex EMPTY = new EntityIdIndex(Collections.<EntityDescriptor>emptyList());
+    
+    /** The entity IDs, null for the free slots. */
+    @Nonnull private final String[] keys;
+    
+    /** The hash codes of the entity IDs in the slots. */
+    @Nonnull private final int[] hashes;
+    
+    /** The entities in the slots of their entity IDs. */
+    @Nonnull private final EntityDescriptor[] values;
+    
+    /** The mask for reducing the hash codes to the slots. */
+    private final int mask;
+    
+    /** The number of the indexed entities. */
+    private final int size;
+    
+    /**
+     * Constructor.
+     * @param descriptors The entities to be indexed.
+     */
+    public EntityIdIndex(@Nonnull final List<EntityDescriptor> descriptors) {
+        final int capacity = Integer.highestOneBit(Math.max(1, descriptors.size()) * 2 - 1) << 1;
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        values = new EntityDescriptor[capacity];
+        mask = capacity - 1;
+        int count = 0;
+        for (final EntityDescriptor descriptor : descriptors) {
+            final String entityId = descriptor.getEntityID();
+            if (entityId == null) {
+                continue;
+            }
+            final int hash = entityId.hashCode();
+            int slot = spread(hash) & mask;
+            while (keys[slot] != null && !(hashes[slot] == hash && keys[slot].equals(entityId))) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == null) {
+                keys[slot] = entityId;
+                hashes[slot] = hash;
+                values[slot] = descriptor;
+                count++;
+            }
+        }
+        size = count;
+    }
+    
+    /**
+     * Get the entity with the given entity ID.
+     * 
+     * @param entityId The entity ID.
+     * @return The entity, or null if not found.
+     */
+    @Nullable public EntityDescriptor get(@Nullable final String entityId) {
+        if (entityId == null) {
+            return null;
+        }
+        final int hash = entityId.hashCode();
+        int slot = spread(hash) & mask;
+        String key = keys[slot];
+        while (key != null) {
+            if (hashes[slot] == hash && key.equals(entityId)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+            key = keys[slot];
+        }
+        return null;
+    }
+    
+    /**
+     * Get the number of the indexed entities.
+     * @return The number of the indexed entities.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Spreads the higher bits of the given hash code to the lower ones, as the slots are selected by the lower bits.
+     * 
+     * @param hash The hash code.
+     * @return The spread hash code.
+     */
+    private static int spread(final int hash) {
+        final int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable table of distinct strings packed as UTF-8 into a single byte array.
+ * 
+ * <p>The strings are referenced by their position in the table. The URLs are typically split to their scheme and
+ * authority prefix and the rest with {@link #splitPoint(String)}, and both parts added separately, so that the
+ * prefixes shared by the URLs of the same host are stored once. The strings are decoded on each call to
+ * {@link #get(int)}; {@link #regionMatches(int, String, int)} compares the ASCII strings without decoding.</p>
+ */
+public final class PackedStringTable {
+    
+    /** The UTF-8 bytes of the strings. */
+    @Nonnull private final byte[] data;
+    
+    /** The start offsets of the strings in the data, followed by the end offset of the last one. */
+    @Nonnull private final int[] offsets;
+    
+    /**
+     * Constructor.
+     * @param bytes The UTF-8 bytes of the strings.
+     * @param stringOffsets The start offsets of the strings, followed by the end offset of the last one.
+     */
+    private PackedStringTable(@Nonnull final byte[] bytes, @Nonnull final int[] stringOffsets) {
+        data = bytes;
+        offsets = stringOffsets;
+    }
+    
+    /**
+     * Get the string at the given position.
+     * 
+     * @param ref The position of the string.
+     * @return The string.
+     */
+    @Nonnull public String get(final int ref) {
+        return new String(data, offsets[ref], offsets[ref + 1] - offsets[ref], StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Checks whether the string at the given position occurs in the given string at the given offset.
+     * 
+     * @param ref The position of the string.
+     * @param value The string to compare with.
+     * @param offset The offset in the string to compare with.
+     * @return The number of the characters matched, or -1 if the string does not occur at the offset.
+     */
+    public int regionMatches(final int ref, @Nonnull final String value, final int offset) {
+        final int start = offsets[ref];
+        final int length = offsets[ref + 1] - start;
+        if (offset + length > value.length()) {
+            return asciiOnly(start, length) ? -1 : decodedRegionMatches(ref, value, offset);
+        }
+        for (int i = 0; i < length; i++) {
+            final byte b = data[start + i];
+            if (b < 0) {
+                return decodedRegionMatches(ref, value, offset);
+            }
+            if (value.charAt(offset + i) != b) {
+                return -1;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Get the number of the strings in the table.
+     * @return The number of the strings.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+    
+    /**
+     * Get the number of the bytes used by the packed strings.
+     * @return The number of the bytes used by the packed strings.
+     */
+    public int getByteSize() {
+        return data.length;
+    }
+    
+    /**
+     * Finds the point where the given URL is split to a shared prefix and the rest: after the first slash
+     * following the scheme and authority, or zero if the string does not look like a URL.
+     * 
+     * @param url The URL.
+     * @return The length of the shared prefix.
+     */
+    public static int splitPoint(@Nonnull final String url) {
+        final int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return 0;
+        }
+        final int slash = url.indexOf('/', scheme + 3);
+        return slash < 0 ? url.length() : slash + 1;
+    }
+    
+    /**
+     * Checks whether the given region of the data only contains ASCII characters.
+     * 
+     * @param start The start offset.
+     * @param length The length of the region.
+     * @return true if the region only contains ASCII characters, false otherwise.
+     */
+    private boolean asciiOnly(final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Checks whether the decoded string at the given position occurs in the given string at the given offset.
+     * 
+     * @param ref The position of the string.
+     * @param value The string to compare with.
+     * @param offset The offset in the string to compare with.
+     * @return The number of the characters matched, or -1 if the string does not occur at the offset.
+     */
+    private int decodedRegionMatches(final int ref, @Nonnull final String value, final int offset) {
+        final String decoded = get(ref);
+        return value.startsWith(decoded, offset) ? decoded.length() : -1;
+    }
+    
+    /**
+     * Collects the distinct strings for a {@link PackedStringTable}. The instances are not thread-safe.
+     */
+    public static final class Builder {
+        
+        /** The positions of the strings added so far. */
+        @Nonnull private final Map<String, Integer> refs = new HashMap<>();
+        
+        /** The UTF-8 bytes of the strings added so far. */
+        @Nonnull private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        
+        /** The start offsets of the strings added so far. */
+        @Nonnull private int[] offsets = new int[16];
+        
+        /**
+         * Adds the given string, unless already added.
+         * 
+         * @param value The string.
+         * @return The position of the string in the table.
+         */
+        public int add(@Nonnull final String value) {
+            final Integer existing = refs.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            final int ref = refs.size();
+            if (ref + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            data.write(bytes, 0, bytes.length);
+            offsets[ref + 1] = data.size();
+            refs.put(value, ref);
+            return ref;
+        }
+        
+        /**
+         * Builds the table of the strings added so far.
+         * @return The table.
+         */
+        @Nonnull public PackedStringTable build() {
+            return new PackedStringTable(data.toByteArray(), Arrays.copyOf(offsets, refs.size() + 1));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * A {@link MetadataChangeProbe} that computes the fingerprint as a digest over all the values returned by the
+ * configured query. By default the query is a cheap aggregate over the services selected by a
+ * {@link ServiceTableMapping}, see {@link ServiceTableMapping#getFingerprintQuery()}. It can also be a select from
+ * a version table, or a projection over all the rows, in which case the fingerprint is a rolling hash over the rows.
+ */
+public class QueryMetadataChangeProbe implements MetadataChangeProbe {
+    
+    /** The digest algorithm used for the fingerprint. */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(QueryMetadataChangeProbe.class);
+    
+    /** The query producing the values for the fingerprint, null if built from the mapping. */
+    @Nullable private final String query;
+    
+    /** The mapping the query is built from, if no query is given. */
+    @Nullable private final ServiceTableMapping mapping;
+    
+    /**
+     * Constructor using the aggregate query over the default mapping of the services table.
+     */
+    public QueryMetadataChangeProbe() {
+        this(new ServiceTableMapping());
+    }
+    
+    /**
+     * Constructor using the aggregate query over the given mapping of the services table. The query follows the
+     * later changes to the mapping.
+     * @param tableMapping The mapping of the services table.
+     */
+    public QueryMetadataChangeProbe(@Nonnull final ServiceTableMapping tableMapping) {
+        mapping = Constraint.isNotNull(tableMapping, "The table mapping cannot be null!");
+        query = null;
+    }
+    
+    /**
+     * Constructor.
+     * @param fingerprintQuery The query producing the values for the fingerprint.
+     */
+    public QueryMetadataChangeProbe(@Nonnull final String fingerprintQuery) {
+        query = Constraint.isNotNull(StringSupport.trimOrNull(fingerprintQuery), 
+                "The fingerprint query cannot be empty!");
+        mapping = null;
+    }
+    
+    /**
+     * Get the query producing the values for the fingerprint.
+     * @return The query producing the values for the fingerprint.
+     */
+    @Nonnull public String getQuery() {
+        return query != null ? query : mapping.getFingerprintQuery();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public String fingerprint(@Nonnull final Connection connection) throws SQLException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("The digest algorithm {} is not supported", DIGEST_ALGORITHM, e);
+            return null;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(getQuery());
+                final ResultSet results = statement.executeQuery()) {
+            final int columns = results.getMetaData().getColumnCount();
+            while (results.next()) {
+                for (int i = 1; i <= columns; i++) {
+                    final String value = results.getString(i);
+                    if (value == null) {
+                        digest.update((byte) 0);
+                    } else {
+                        digest.update((byte) 1);
+                        digest.update(value.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                digest.update((byte) '\n');
+            }
+        }
+        return BaseEncoding.base16().encode(digest.digest());
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+
+/**
+ * Schedules the refreshes of a {@link RefreshableMetadataResolver} on a single thread owned by the scheduler, both
+ * the regular ones and the retries after the failed ones. At most one refresh is pending at a time: scheduling an
+ * earlier refresh cancels the pending one, and scheduling a later one is ignored.
+ */
+public class RefreshScheduler {
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(RefreshScheduler.class);
+    
+    /** The resolver to be refreshed. */
+    @Nonnull private final RefreshableMetadataResolver resolver;
+    
+    /** The lock guarding the executor and the pending refresh. */
+    @Nonnull private final Object lock = new Object();
+    
+    /** The executor running the refreshes, null if not started or stopped. */
+    @Nullable private ScheduledExecutorService executor;
+    
+    /** The refresh pending on the executor, if any. */
+    @Nullable private ScheduledFuture<?> pendingRefresh;
+    
+    /** The task of the refresh pending on the executor, if any. */
+    @Nullable private Runnable pendingTask;
+    
+    /** The time of the refresh pending on the executor, if any. */
+    @Nullable private volatile DateTime nextRefresh;
+    
+    /** The number of the consecutive failed refreshes. */
+    private int consecutiveFailures;
+    
+    /**
+     * Constructor.
+     * @param metadataResolver The resolver to be refreshed.
+     */
+    public RefreshScheduler(@Nonnull final RefreshableMetadataResolver metadataResolver) {
+        resolver = Constraint.isNotNull(metadataResolver, "The resolver cannot be null");
+    }
+    
+    /**
+     * Starts the thread running the refreshes.
+     * @param threadName The name of the thread.
+     */
+    public void start(@Nonnull final String threadName) {
+        synchronized (lock) {
+            if (executor != null) {
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+    
+    /**
+     * Stops the thread running the refreshes and drops the pending refresh.
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            pendingRefresh = null;
+            pendingTask = null;
+            nextRefresh = null;
+        }
+    }
+    
+    /**
+     * Schedules a refresh, unless an earlier one is already pending. A later pending refresh is cancelled.
+     * 
+     * @param delay The delay before the refresh, in milliseconds.
+     */
+    public void schedule(final long delay) {
+        synchronized (lock) {
+            if (executor == null) {
+                log.debug("The refreshes of '{}' are stopped, not scheduling a refresh", resolver.getId());
+                return;
+            }
+            if (pendingRefresh != null) {
+                if (pendingRefresh.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                    log.debug("An earlier refresh of '{}' is already pending, not scheduling another", 
+                            resolver.getId());
+                    return;
+                }
+                pendingRefresh.cancel(false);
+            }
+            final Runnable task = new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        if (pendingTask == this) {
+                            pendingTask = null;
+                            pendingRefresh = null;
+                            nextRefresh = null;
+                        }
+                    }
+                    try {
+                        resolver.refresh();
+                    } catch (ResolverException | RuntimeException e) {
+                        log.error("The refresh of '{}' failed", resolver.getId(), e);
+                    }
+                }
+            };
+            pendingTask = task;
+            pendingRefresh = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+            nextRefresh = new DateTime(ISOChronology.getInstanceUTC()).plus(delay);
+        }
+    }
+    
+    /**
+     * Runs a task other than a refresh on the thread running the refreshes, after the refreshes and the tasks
+     * already due. The task does not affect the pending refresh.
+     * 
+     * @param task The task.
+     */
+    public void execute(@Nonnull final Runnable task) {
+        synchronized (lock) {
+            if (executor == null) {
+                log.debug("The refreshes of '{}' are stopped, not running the task", resolver.getId());
+                return;
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("A task on the refresh thread of '{}' failed", resolver.getId(), e);
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Records a successful refresh, resetting the number of the consecutive failed refreshes.
+     */
+    public void recordSuccess() {
+        synchronized (lock) {
+            consecutiveFailures = 0;
+        }
+    }
+    
+    /**
+     * Records a failed refresh.
+     * @return The number of the consecutive failed refreshes, including this one.
+     */
+    public int recordFailure() {
+        synchronized (lock) {
+            return ++consecutiveFailures;
+        }
+    }
+    
+    /**
+     * Get the time of the pending refresh.
+     * @return The time of the pending refresh, null if none.
+     */
+    @Nullable public DateTime getNextRefresh() {
+        return nextRefresh;
+    }
+    
+    /**
+     * Computes the delay before retrying after the given number of consecutive failed refreshes. The delay is
+     * doubled from the minimum delay for each failure, capped by the maximum delay, and a random jitter of up to
+     * half of it is subtracted, so that the nodes sharing the data source do not retry in step.
+     * 
+     * @param failures The number of the consecutive failed refreshes, at least one.
+     * @param minDelay The delay after the first failure, in milliseconds.
+     * @param maxDelay The maximum delay, in milliseconds.
+     * @return The delay before the retry, in milliseconds.
+     */
+    public static long computeBackoffDelay(final int failures, final long minDelay, final long maxDelay) {
+        final long max = Math.max(minDelay, maxDelay);
+        long delay = Math.max(1, minDelay);
+        for (int i = 1; i < failures && delay < max; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, max);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The upcoming start and end events for a set of services, kept in a priority queue. Checking whether an event
+ * is due is a single volatile read, so that it can be done on every resolution.
+ */
+public class ServiceActivationTimeline {
+    
+    /** A timeline without events. */
+    public static final ServiceActivationTimeline EMPTY = 
+            new ServiceActivationTimeline(Collections.<ServiceEntry>emptyList(), 0);
+    
+    /** The upcoming event times, in milliseconds. */
+    @Nonnull private final PriorityQueue<Long> events;
+    
+    /** The time of the next event, in milliseconds. */
+    private volatile long nextEventTime;
+    
+    /**
+     * Constructor.
+     * 
+     * @param entries The services whose start and end events are tracked.
+     * @param now The current time in milliseconds, only events after it are tracked.
+     */
+    public ServiceActivationTimeline(@Nonnull final Collection<ServiceEntry> entries, final long now) {
+        events = new PriorityQueue<>();
+        for (final ServiceEntry entry : entries) {
+            if (entry.getStartTime() > now) {
+                events.add(entry.getStartTime());
+            }
+            if (entry.getEndTime() > now && entry.getEndTime() != ServiceEntry.NO_END_TIME) {
+                events.add(entry.getEndTime());
+            }
+        }
+        updateNextEventTime();
+    }
+    
+    /**
+     * Checks whether at least one event is due at the given time.
+     * @param now The time in milliseconds.
+     * @return true if at least one event is due, false otherwise.
+     */
+    public boolean isDue(final long now) {
+        return now >= nextEventTime;
+    }
+    
+    /**
+     * Get the time of the next event.
+     * @return The time of the next event in milliseconds, or {@link Long#MAX_VALUE} if there are no events.
+     */
+    public long getNextEventTime() {
+        return nextEventTime;
+    }
+    
+    /**
+     * Removes the events due at the given time.
+     * @param now The time in milliseconds.
+     * @return The number of the removed events.
+     */
+    public synchronized int pollDue(final long now) {
+        int count = 0;
+        while (!events.isEmpty() && events.peek() <= now) {
+            events.poll();
+            count++;
+        }
+        updateNextEventTime();
+        return count;
+    }
+    
+    /**
+     * Updates the time of the next event from the head of the queue.
+     */
+    private void updateNextEventTime() {
+        nextEventTime = events.isEmpty() ? Long.MAX_VALUE : events.peek();
+    }
+}
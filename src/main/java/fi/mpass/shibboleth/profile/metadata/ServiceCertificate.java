@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.security.credential.UsageType;
+
+import com.google.common.io.BaseEncoding;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A single certificate of a service read from the data source, producing a key descriptor for its SP role.
+ * 
+ * <p>The certificate is kept as its base64-encoded DER text, as read from the data source, with the PEM armor and
+ * the whitespace removed. It is neither decoded nor parsed when read: the text is copied as such to the
+ * <code>X509Certificate</code> element of the key descriptor, and parsed only when a credential is first requested
+ * for it, through the {@link ServiceCertificateCache} of the resolver.</p>
+ */
+public class ServiceCertificate {
+    
+    /** The header of the PEM-encoded certificates. */
+    private static final String PEM_HEADER = "-----BEGIN CERTIFICATE-----";
+    
+    /** The footer of the PEM-encoded certificates. */
+    private static final String PEM_FOOTER = "-----END CERTIFICATE-----";
+    
+    /** The use of the certificate, null if unspecified. */
+    @Nullable private final UsageType use;
+    
+    /** The base64-encoded DER certificate. */
+    @Nonnull private final String encoded;
+    
+    /** The SHA-256 fingerprint of the certificate, null until computed. */
+    @Nullable private volatile String fingerprint;
+    
+    /**
+     * Constructor.
+     * 
+     * @param certificateUse The use of the certificate, may be null if unspecified.
+     * @param value The base64-encoded DER certificate, optionally with the PEM armor.
+     */
+    public ServiceCertificate(@Nullable final UsageType certificateUse, @Nonnull final String value) {
+        use = certificateUse == UsageType.UNSPECIFIED ? null : certificateUse;
+        encoded = normalize(Constraint.isNotNull(value, "The certificate cannot be null!"));
+    }
+    
+    /**
+     * Get the use of the certificate.
+     * @return The use of the certificate, null if unspecified.
+     */
+    @Nullable public UsageType getUse() {
+        return use;
+    }
+    
+    /**
+     * Get the base64-encoded DER certificate, without the PEM armor and whitespace.
+     * @return The base64-encoded DER certificate.
+     */
+    @Nonnull public String getEncoded() {
+        return encoded;
+    }
+    
+    /**
+     * Get the SHA-256 fingerprint of the certificate, decoding it on the first call.
+     * 
+     * @return The fingerprint as lowercase hex.
+     * @throws CertificateException If the certificate is not valid base64.
+     */
+    @Nonnull public String getFingerprint() throws CertificateException {
+        String result = fingerprint;
+        if (result == null) {
+            try {
+                result = BaseEncoding.base16().lowerCase().encode(
+                        MessageDigest.getInstance("SHA-256").digest(decode()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new CertificateException("SHA-256 is not available", e);
+            }
+            fingerprint = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Decodes the DER bytes of the certificate.
+     * 
+     * @return The DER bytes of the certificate.
+     * @throws CertificateException If the certificate is not valid base64.
+     */
+    @Nonnull byte[] decode() throws CertificateException {
+        final byte[] der = Base64Support.decode(encoded);
+        if (der == null || der.length == 0) {
+            throw new CertificateException("The certificate is not valid base64");
+        }
+        return der;
+    }
+    
+    /**
+     * Removes the PEM armor and the whitespace from the given certificate. The value is returned as such if there
+     * is nothing to remove.
+     * 
+     * @param value The certificate.
+     * @return The base64-encoded certificate.
+     */
+    @Nonnull private static String normalize(@Nonnull final String value) {
+        String result = value;
+        final int header = result.indexOf(PEM_HEADER);
+        if (header >= 0) {
+            final int footer = result.indexOf(PEM_FOOTER, header);
+            result = result.substring(header + PEM_HEADER.length(), footer < 0 ? result.length() : footer);
+        }
+        for (int i = 0; i < result.length(); i++) {
+            if (Character.isWhitespace(result.charAt(i))) {
+                final StringBuilder builder = new StringBuilder(result.length());
+                for (int j = 0; j < result.length(); j++) {
+                    if (!Character.isWhitespace(result.charAt(j))) {
+                        builder.append(result.charAt(j));
+                    }
+                }
+                return builder.toString();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * The parsed certificates of the services of a single resolver, cached by their SHA-256 fingerprint.
+ * 
+ * <p>The certificates are decoded and parsed only when a credential is first requested for them, and the services
+ * sharing a certificate share a single parsed instance. The cache is owned by the resolver reading the
+ * certificates and cleared when it is destroyed, and is bounded by the number of the parsed certificates.</p>
+ */
+public class ServiceCertificateCache {
+    
+    /** The default maximum number of the parsed certificates cached. */
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    
+    /** The parsed certificates by their fingerprint. */
+    @Nonnull private final Cache<String, X509Certificate> parsed;
+    
+    /** Constructor. */
+    public ServiceCertificateCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param maximumSize The maximum number of the parsed certificates cached.
+     */
+    public ServiceCertificateCache(final int maximumSize) {
+        Constraint.isGreaterThan(0, maximumSize, "The maximum size must be greater than 0");
+        parsed = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+    
+    /**
+     * Get the parsed certificate, parsing it on the first call for any service with the same certificate.
+     * 
+     * @param certificate The certificate.
+     * @return The parsed certificate.
+     * @throws CertificateException If the certificate cannot be decoded or parsed.
+     */
+    @Nonnull public X509Certificate get(@Nonnull final ServiceCertificate certificate) throws CertificateException {
+        Constraint.isNotNull(certificate, "The certificate cannot be null");
+        try {
+            return parsed.get(certificate.getFingerprint(), new Callable<X509Certificate>() {
+                public X509Certificate call() throws CertificateException {
+                    return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                            new ByteArrayInputStream(certificate.decode()));
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CertificateException) {
+                throw (CertificateException) e.getCause();
+            }
+            throw new CertificateException("Could not parse the certificate", e.getCause());
+        }
+    }
+    
+    /**
+     * Get the number of the parsed certificates currently cached.
+     * 
+     * @return The number of the cached parsed certificates.
+     */
+    public long size() {
+        return parsed.size();
+    }
+    
+    /** Removes all the parsed certificates from the cache. */
+    public void clear() {
+        parsed.invalidateAll();
+    }
+}
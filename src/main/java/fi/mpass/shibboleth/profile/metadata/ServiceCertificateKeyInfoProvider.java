@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.AbstractKeyInfoProvider;
+import org.opensaml.xmlsec.keyinfo.impl.KeyInfoResolutionContext;
+import org.opensaml.xmlsec.signature.X509Certificate;
+import org.opensaml.xmlsec.signature.X509Data;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+
+/**
+ * A KeyInfo provider resolving the credentials of the <code>X509Data</code> elements through the parsed certificates
+ * cached by a {@link ServiceCertificateCache}, instead of parsing the certificates for every credential request.
+ * 
+ * <p>The provider is meant to replace the inline X509Data provider of the KeyInfo credential resolver used for the
+ * metadata of the resolver owning the cache, see {@link DataSourceMetadataResolver#getCertificateCache()}. The
+ * first certificate of the <code>X509Data</code> element is used as the entity certificate, as the key descriptors
+ * produced by the resolver contain a single certificate each.</p>
+ */
+public class ServiceCertificateKeyInfoProvider extends AbstractKeyInfoProvider {
+    
+    /** The cache of the parsed certificates. */
+    @Nonnull private final ServiceCertificateCache cache;
+    
+    /**
+     * Constructor.
+     * 
+     * @param certificateCache The cache of the parsed certificates.
+     */
+    public ServiceCertificateKeyInfoProvider(@Nonnull final ServiceCertificateCache certificateCache) {
+        cache = Constraint.isNotNull(certificateCache, "The certificate cache cannot be null");
+    }
+    
+    /** {@inheritDoc} */
+    public boolean handles(@Nonnull final XMLObject keyInfoChild) {
+        return keyInfoChild instanceof X509Data;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Collection<Credential> process(@Nonnull final KeyInfoCredentialResolver resolver,
+            @Nonnull final XMLObject keyInfoChild, @Nullable final CriteriaSet criteriaSet,
+            @Nonnull final KeyInfoResolutionContext kiContext) throws SecurityException {
+        if (!handles(keyInfoChild)) {
+            return null;
+        }
+        final List<java.security.cert.X509Certificate> chain = new ArrayList<>();
+        for (final X509Certificate element : ((X509Data) keyInfoChild).getX509Certificates()) {
+            if (element.getValue() != null) {
+                try {
+                    chain.add(cache.get(new ServiceCertificate(null, element.getValue())));
+                } catch (CertificateException e) {
+                    throw new SecurityException("Could not parse the certificate of the X509Data", e);
+                }
+            }
+        }
+        if (chain.isEmpty()) {
+            return null;
+        }
+        final BasicX509Credential credential = new BasicX509Credential(chain.get(0));
+        credential.setEntityCertificateChain(chain);
+        credential.getCredentialContextSet().add(buildCredentialContext(kiContext));
+        return Collections.<Credential>singletonList(credential);
+    }
+}
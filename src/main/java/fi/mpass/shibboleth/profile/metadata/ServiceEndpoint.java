@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A single assertion consumer service endpoint of a service read from the data source.
+ */
+public class ServiceEndpoint {
+    
+    /** The binding URI. */
+    @Nonnull private final String binding;
+    
+    /** The location URL. */
+    @Nonnull private final String location;
+    
+    /** The endpoint index. */
+    @Nullable private final Integer index;
+    
+    /** Whether this is the default endpoint. */
+    @Nullable private final Boolean isDefault;
+    
+    /**
+     * Constructor.
+     * 
+     * @param bindingUri The binding URI.
+     * @param locationUrl The location URL.
+     * @param endpointIndex The endpoint index, may be null.
+     * @param defaultFlag Whether this is the default endpoint, may be null.
+     */
+    public ServiceEndpoint(@Nonnull final String bindingUri, @Nonnull final String locationUrl,
+            @Nullable final Integer endpointIndex, @Nullable final Boolean defaultFlag) {
+        binding = Constraint.isNotNull(bindingUri, "The binding cannot be null!");
+        location = Constraint.isNotNull(locationUrl, "The location cannot be null!");
+        index = endpointIndex;
+        isDefault = defaultFlag;
+    }
+    
+    /**
+     * Get the binding URI.
+     * @return The binding URI.
+     */
+    @Nonnull public String getBinding() {
+        return binding;
+    }
+    
+    /**
+     * Get the location URL.
+     * @return The location URL.
+     */
+    @Nonnull public String getLocation() {
+        return location;
+    }
+    
+    /**
+     * Get the endpoint index.
+     * @return The endpoint index, may be null.
+     */
+    @Nullable public Integer getIndex() {
+        return index;
+    }
+    
+    /**
+     * Get whether this is the default endpoint.
+     * @return Whether this is the default endpoint, may be null.
+     */
+    @Nullable public Boolean isDefault() {
+        return isDefault;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import com.google.common.collect.ImmutableList;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A single service read from the data source, together with its activation window.
+ * 
+ * <p>The entity descriptor is either given when constructing the service, or built lazily from the entity ID, the
+ * endpoints and the certificates on the first call to {@link #getDescriptor()}, and then kept for the following
+ * calls.</p>
+ */
+public class ServiceEntry {
+    
+    /** The start time for the services without one: always active. */
+    public static final long NO_START_TIME = Long.MIN_VALUE;
+    
+    /** The end time for the services without one: never ending. */
+    public static final long NO_END_TIME = Long.MAX_VALUE;
+    
+    /** The row identifier. */
+    private final long id;
+    
+    /** The entity ID of the service, if the entity descriptor is built lazily. */
+    @Nullable private final String entityId;
+    
+    /** The endpoints of the service, if the entity descriptor is built lazily. */
+    @Nullable private final List<ServiceEndpoint> endpoints;
+    
+    /** The certificates of the service, if the entity descriptor is built lazily. */
+    @Nullable private final List<ServiceCertificate> certificates;
+    
+    /** The entity descriptor for the service, null until built if built lazily. */
+    @Nullable private volatile EntityDescriptor descriptor;
+    
+    /** The time when the service becomes active, in milliseconds. */
+    private final long startTime;
+    
+    /** The time when the service ends, in milliseconds. */
+    private final long endTime;
+    
+    /**
+     * Constructor.
+     * 
+     * @param rowId The row identifier.
+     * @param entityDescriptor The entity descriptor for the service.
+     * @param start The time when the service becomes active, may be null.
+     * @param end The time when the service ends, may be null.
+     */
+    public ServiceEntry(final long rowId, @Nonnull final EntityDescriptor entityDescriptor,
+            @Nullable final Timestamp start, @Nullable final Timestamp end) {
+        this(rowId, entityDescriptor, start == null ? NO_START_TIME : start.getTime(),
+                end == null ? NO_END_TIME : end.getTime());
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param rowId The row identifier.
+     * @param entityDescriptor The entity descriptor for the service.
+     * @param start The time when the service becomes active, in milliseconds, or {@link #NO_START_TIME}.
+     * @param end The time when the service ends, in milliseconds, or {@link #NO_END_TIME}.
+     */
+    public ServiceEntry(final long rowId, @Nonnull final EntityDescriptor entityDescriptor,
+            final long start, final long end) {
+        id = rowId;
+        descriptor = Constraint.isNotNull(entityDescriptor, "The entity descriptor cannot be null!");
+        entityId = null;
+        endpoints = null;
+        certificates = null;
+        startTime = start;
+        endTime = end;
+    }
+    
+    /**
+     * Constructor for a service whose entity descriptor is built lazily.
+     * 
+     * @param rowId The row identifier.
+     * @param serviceEntityId The entity ID of the service.
+     * @param serviceEndpoints The assertion consumer service endpoints of the service.
+     * @param start The time when the service becomes active, in milliseconds, or {@link #NO_START_TIME}.
+     * @param end The time when the service ends, in milliseconds, or {@link #NO_END_TIME}.
+     */
+    public ServiceEntry(final long rowId, @Nonnull final String serviceEntityId,
+            @Nonnull final List<ServiceEndpoint> serviceEndpoints, final long start, final long end) {
+        this(rowId, serviceEntityId, serviceEndpoints, Collections.<ServiceCertificate>emptyList(), start, end);
+    }
+    
+    /**
+     * Constructor for a service with certificates whose entity descriptor is built lazily.
+     * 
+     * @param rowId The row identifier.
+     * @param serviceEntityId The entity ID of the service.
+     * @param serviceEndpoints The assertion consumer service endpoints of the service.
+     * @param serviceCertificates The certificates of the service.
+     * @param start The time when the service becomes active, in milliseconds, or {@link #NO_START_TIME}.
+     * @param end The time when the service ends, in milliseconds, or {@link #NO_END_TIME}.
+     */
+    public ServiceEntry(final long rowId, @Nonnull final String serviceEntityId,
+            @Nonnull final List<ServiceEndpoint> serviceEndpoints,
+            @Nonnull final List<ServiceCertificate> serviceCertificates, final long start, final long end) {
+        id = rowId;
+        entityId = Constraint.isNotNull(serviceEntityId, "The entity ID cannot be null!");
+        endpoints = ImmutableList.copyOf(Constraint.isNotNull(serviceEndpoints, "The endpoints cannot be null!"));
+        certificates = ImmutableList.copyOf(
+                Constraint.isNotNull(serviceCertificates, "The certificates cannot be null!"));
+        startTime = start;
+        endTime = end;
+    }
+    
+    /**
+     * Get the row identifier.
+     * @return The row identifier.
+     */
+    public long getId() {
+        return id;
+    }
+    
+    /**
+     * Get the entity descriptor for the service, building it on the first call if built lazily.
+     * @return The entity descriptor for the service.
+     */
+    @Nonnull public EntityDescriptor getDescriptor() {
+        EntityDescriptor result = descriptor;
+        if (result == null) {
+            synchronized (this) {
+                result = descriptor;
+                if (result == null) {
+                    result = ServiceMetadataSupport.buildEntityDescriptor(entityId, endpoints, certificates);
+                    descriptor = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Builds a new entity descriptor for the service, not shared with the other calls or with
+     * {@link #getDescriptor()}. Used when the descriptor is attached to a parent, such as for marshalling or
+     * filtering, as an OpenSAML object can only have a single parent.
+     * 
+     * @return A new entity descriptor for the service.
+     */
+    @Nonnull public EntityDescriptor buildDescriptor() {
+        return ServiceMetadataSupport.buildEntityDescriptor(getEntityId(), getEndpoints(), getCertificates());
+    }
+    
+    /**
+     * Get the entity ID of the service, without building the entity descriptor.
+     * @return The entity ID of the service.
+     */
+    @Nonnull public String getEntityId() {
+        return entityId != null ? entityId : descriptor.getEntityID();
+    }
+    
+    /**
+     * Get the assertion consumer service endpoints of the service, without building the entity descriptor.
+     * @return The endpoints of the service.
+     */
+    @Nonnull public List<ServiceEndpoint> getEndpoints() {
+        return endpoints != null ? endpoints : ServiceMetadataSupport.getEndpoints(descriptor);
+    }
+    
+    /**
+     * Get the certificates of the service, without building the entity descriptor.
+     * @return The certificates of the service.
+     */
+    @Nonnull public List<ServiceCertificate> getCertificates() {
+        return certificates != null ? certificates : ServiceMetadataSupport.getCertificates(descriptor);
+    }
+    
+    /**
+     * Get the time when the service becomes active.
+     * @return The time when the service becomes active, in milliseconds, or {@link #NO_START_TIME}.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * Get the time when the service ends.
+     * @return The time when the service ends, in milliseconds, or {@link #NO_END_TIME}.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+    
+    /**
+     * Checks whether the service is active at the given time.
+     * @param now The time in milliseconds.
+     * @return true if the service is active, false otherwise.
+     */
+    public boolean isActive(final long now) {
+        return startTime <= now && now < endTime;
+    }
+}
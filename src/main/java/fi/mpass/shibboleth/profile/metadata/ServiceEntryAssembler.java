@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.security.credential.UsageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assembles {@link ServiceEntry}s from a stream of service rows, optionally joined with their endpoint rows. The
+ * rows for a single service must be adjacent, i.e. the rows must be ordered by the service row identifier. Each
+ * service is completed as soon as the first row of the next service is seen, so that only one service is kept
+ * in memory at a time.
+ * 
+ * <p>If a service has no endpoint rows, a single POST-binding endpoint is built from its ACS URL column. The entity
+ * descriptors are built as the services are completed, unless lazy building is requested.</p>
+ * 
+ * <p>The optional signing and encryption certificate columns produce a key descriptor each. The certificates are
+ * not decoded when read, and the same certificate text read for several services is shared between them.</p>
+ */
+public class ServiceEntryAssembler {
+    
+    /** The column name for the endpoint binding. */
+    public static final String COLUMN_ID_BINDING = "binding";
+    
+    /** The column name for the endpoint location. */
+    public static final String COLUMN_ID_LOCATION = "location";
+    
+    /** The column name for the endpoint index. */
+    public static final String COLUMN_ID_ENDPOINT_INDEX = "endpointIndex";
+    
+    /** The column name for the default endpoint flag. */
+    public static final String COLUMN_ID_IS_DEFAULT = "isDefault";
+    
+    /** The column name for the signing certificate. */
+    public static final String COLUMN_ID_SIGNING_CERTIFICATE = "signingCertificate";
+    
+    /** The column name for the encryption certificate. */
+    public static final String COLUMN_ID_ENCRYPTION_CERTIFICATE = "encryptionCertificate";
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ServiceEntryAssembler.class);
+    
+    /** Whether the rows contain the endpoint columns. */
+    private final boolean withEndpoints;
+    
+    /** Whether the rows contain the signing certificate column. */
+    private final boolean withSigningCertificate;
+    
+    /** Whether the rows contain the encryption certificate column. */
+    private final boolean withEncryptionCertificate;
+    
+    /** Whether the entity descriptors are built lazily. */
+    private final boolean lazy;
+    
+    /** The signing certificates read so far, by their text. */
+    @Nonnull private final Map<String, ServiceCertificate> signingCertificates;
+    
+    /** The encryption certificates read so far, by their text. */
+    @Nonnull private final Map<String, ServiceCertificate> encryptionCertificates;
+    
+    /** Whether a service is being assembled. */
+    private boolean pending;
+    
+    /** The row identifier of the service being assembled. */
+    private long id;
+    
+    /** The entity ID of the service being assembled. */
+    @Nullable private String entityId;
+    
+    /** The ACS URL of the service being assembled. */
+    @Nullable private String acsUrl;
+    
+    /** The start time of the service being assembled. */
+    @Nullable private Timestamp startTime;
+    
+    /** The end time of the service being assembled. */
+    @Nullable private Timestamp endTime;
+    
+    /** The endpoints of the service being assembled. */
+    @Nonnull private List<ServiceEndpoint> endpoints;
+    
+    /** The certificates of the service being assembled. */
+    @Nonnull private List<ServiceCertificate> certificates;
+    
+    /**
+     * Constructor.
+     * @param endpointColumns Whether the rows contain the endpoint columns.
+     */
+    public ServiceEntryAssembler(final boolean endpointColumns) {
+        this(endpointColumns, false);
+    }
+    
+    /**
+     * Constructor.
+     * @param endpointColumns Whether the rows contain the endpoint columns.
+     * @param lazyBuild Whether the entity descriptors are built lazily, on the first use.
+     */
+    public ServiceEntryAssembler(final boolean endpointColumns, final boolean lazyBuild) {
+        this(endpointColumns, false, false, lazyBuild);
+    }
+    
+    /**
+     * Constructor.
+     * @param endpointColumns Whether the rows contain the endpoint columns.
+     * @param signingColumn Whether the rows contain the signing certificate column.
+     * @param encryptionColumn Whether the rows contain the encryption certificate column.
+     * @param lazyBuild Whether the entity descriptors are built lazily, on the first use.
+     */
+    public ServiceEntryAssembler(final boolean endpointColumns, final boolean signingColumn,
+            final boolean encryptionColumn, final boolean lazyBuild) {
+        withEndpoints = endpointColumns;
+        withSigningCertificate = signingColumn;
+        withEncryptionCertificate = encryptionColumn;
+        lazy = lazyBuild;
+        signingCertificates = new HashMap<>();
+        encryptionCertificates = new HashMap<>();
+        endpoints = new ArrayList<>();
+        certificates = Collections.emptyList();
+    }
+    
+    /**
+     * Adds the current row of the given result set.
+     * 
+     * @param results The result set pointing to the row to be added.
+     * @return The previous service, if the row started a new one, null otherwise.
+     * @throws SQLException If the columns cannot be read from the result set.
+     */
+    @Nullable public ServiceEntry add(@Nonnull final ResultSet results) throws SQLException {
+        final long rowId = results.getLong(DataSourceMetadataResolver.COLUMN_ID_ID);
+        ServiceEntry completed = null;
+        if (pending && rowId != id) {
+            completed = finish();
+        }
+        if (!pending) {
+            pending = true;
+            id = rowId;
+            entityId = results.getString(DataSourceMetadataResolver.COLUMN_ID_ENTITY_ID);
+            acsUrl = results.getString(DataSourceMetadataResolver.COLUMN_ID_ACS_URL);
+            startTime = results.getTimestamp(DataSourceMetadataResolver.COLUMN_ID_START_TIME);
+            endTime = results.getTimestamp(DataSourceMetadataResolver.COLUMN_ID_END_TIME);
+            endpoints = new ArrayList<>(1);
+            certificates = Collections.emptyList();
+            if (withSigningCertificate) {
+                addCertificate(UsageType.SIGNING, signingCertificates,
+                        results.getString(COLUMN_ID_SIGNING_CERTIFICATE));
+            }
+            if (withEncryptionCertificate) {
+                addCertificate(UsageType.ENCRYPTION, encryptionCertificates,
+                        results.getString(COLUMN_ID_ENCRYPTION_CERTIFICATE));
+            }
+        }
+        if (withEndpoints) {
+            final String binding = results.getString(COLUMN_ID_BINDING);
+            if (binding != null) {
+                final String location = results.getString(COLUMN_ID_LOCATION);
+                final int index = results.getInt(COLUMN_ID_ENDPOINT_INDEX);
+                final Integer endpointIndex = results.wasNull() ? null : index;
+                final boolean flag = results.getBoolean(COLUMN_ID_IS_DEFAULT);
+                final Boolean isDefault = results.wasNull() ? null : flag;
+                endpoints.add(new ServiceEndpoint(binding, location, endpointIndex, isDefault));
+            }
+        }
+        return completed;
+    }
+    
+    /**
+     * Completes the service being assembled.
+     * @return The service, or null if no service was being assembled.
+     */
+    @Nullable public ServiceEntry finish() {
+        if (!pending) {
+            return null;
+        }
+        pending = false;
+        if (endpoints.isEmpty()) {
+            endpoints.add(new ServiceEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, acsUrl, 1, Boolean.TRUE));
+        }
+        if (lazy) {
+            log.debug("Added one service for {}", entityId);
+            return new ServiceEntry(id, entityId, endpoints, certificates, startTime == null 
+                    ? ServiceEntry.NO_START_TIME : startTime.getTime(), 
+                    endTime == null ? ServiceEntry.NO_END_TIME : endTime.getTime());
+        }
+        final ServiceEntry entry = new ServiceEntry(id, 
+                ServiceMetadataSupport.buildEntityDescriptor(entityId, endpoints, certificates), startTime, endTime);
+        log.debug("Added one entity descriptor for {}", entityId);
+        return entry;
+    }
+    
+    /**
+     * Adds a certificate with the given use and text to the service being assembled, reusing the certificate if
+     * the same text was already read for another service.
+     * 
+     * @param use The use of the certificate.
+     * @param read The certificates with the same use read so far, by their text.
+     * @param text The certificate text, may be null.
+     */
+    private void addCertificate(@Nonnull final UsageType use, @Nonnull final Map<String, ServiceCertificate> read,
+            @Nullable final String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return;
+        }
+        ServiceCertificate certificate = read.get(text);
+        if (certificate == null) {
+            certificate = new ServiceCertificate(use, text);
+            read.put(text, certificate);
+        }
+        if (certificates.isEmpty()) {
+            certificates = new ArrayList<>(2);
+        }
+        certificates.add(certificate);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.core.xml.schema.XSBooleanValue;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.impl.AssertionConsumerServiceBuilder;
+import org.opensaml.saml.saml2.metadata.impl.EntityDescriptorBuilder;
+import org.opensaml.saml.saml2.metadata.impl.KeyDescriptorBuilder;
+import org.opensaml.saml.saml2.metadata.impl.SPSSODescriptorBuilder;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.X509Certificate;
+import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.impl.KeyInfoBuilder;
+import org.opensaml.xmlsec.signature.impl.X509CertificateBuilder;
+import org.opensaml.xmlsec.signature.impl.X509DataBuilder;
+
+/**
+ * Helper methods for building the SAML metadata objects for the services read from the data source.
+ */
+public final class ServiceMetadataSupport {
+
+    /** Constructor. */
+    private ServiceMetadataSupport() {
+        // no op
+    }
+    
+    /**
+     * Builds an {@link EntityDescriptor} with a single SP role and a single POST-binding assertion consumer service.
+     * 
+     * @param entityId The SAML entity ID.
+     * @param acsUrl The assertion consumer service URL.
+     * @return The entity descriptor.
+     */
+    @Nonnull public static EntityDescriptor buildEntityDescriptor(@Nonnull final String entityId,
+            @Nonnull final String acsUrl) {
+        return buildEntityDescriptor(entityId, Collections.singletonList(
+                new ServiceEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, acsUrl, 1, Boolean.TRUE)));
+    }
+    
+    /**
+     * Builds an {@link EntityDescriptor} with a single SP role and the given assertion consumer services.
+     * 
+     * @param entityId The SAML entity ID.
+     * @param endpoints The assertion consumer service endpoints.
+     * @return The entity descriptor.
+     */
+    @Nonnull public static EntityDescriptor buildEntityDescriptor(@Nonnull final String entityId,
+            @Nonnull final List<ServiceEndpoint> endpoints) {
+        return buildEntityDescriptor(entityId, endpoints, Collections.<ServiceCertificate>emptyList());
+    }
+    
+    /**
+     * Builds an {@link EntityDescriptor} with a single SP role, the given assertion consumer services and a key
+     * descriptor for each of the given certificates. The certificates are copied to the key descriptors as their
+     * base64 text, without decoding or parsing them.
+     * 
+     * @param entityId The SAML entity ID.
+     * @param endpoints The assertion consumer service endpoints.
+     * @param certificates The certificates.
+     * @return The entity descriptor.
+     */
+    @Nonnull public static EntityDescriptor buildEntityDescriptor(@Nonnull final String entityId,
+            @Nonnull final List<ServiceEndpoint> endpoints, @Nonnull final List<ServiceCertificate> certificates) {
+        final EntityDescriptor entity = new EntityDescriptorBuilder().buildObject();
+        entity.setEntityID(entityId);
+        final SPSSODescriptor descriptor = new SPSSODescriptorBuilder().buildObject();
+        descriptor.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        for (final ServiceCertificate certificate : certificates) {
+            descriptor.getKeyDescriptors().add(buildKeyDescriptor(certificate));
+        }
+        final AssertionConsumerServiceBuilder acsBuilder = new AssertionConsumerServiceBuilder();
+        for (final ServiceEndpoint endpoint : endpoints) {
+            final AssertionConsumerService acs = acsBuilder.buildObject();
+            acs.setBinding(endpoint.getBinding());
+            acs.setLocation(endpoint.getLocation());
+            acs.setIndex(endpoint.getIndex());
+            acs.setIsDefault(endpoint.isDefault());
+            descriptor.getAssertionConsumerServices().add(acs);
+        }
+        entity.getRoleDescriptors().add(descriptor);
+        return entity;
+    }
+    
+    /**
+     * Builds a {@link KeyDescriptor} containing the given certificate.
+     * 
+     * @param certificate The certificate.
+     * @return The key descriptor.
+     */
+    @Nonnull public static KeyDescriptor buildKeyDescriptor(@Nonnull final ServiceCertificate certificate) {
+        final X509Certificate x509Certificate = new X509CertificateBuilder().buildObject();
+        x509Certificate.setValue(certificate.getEncoded());
+        final X509Data x509Data = new X509DataBuilder().buildObject();
+        x509Data.getX509Certificates().add(x509Certificate);
+        final KeyInfo keyInfo = new KeyInfoBuilder().buildObject();
+        keyInfo.getX509Datas().add(x509Data);
+        final KeyDescriptor keyDescriptor = new KeyDescriptorBuilder().buildObject();
+        if (certificate.getUse() != null) {
+            keyDescriptor.setUse(certificate.getUse());
+        }
+        keyDescriptor.setKeyInfo(keyInfo);
+        return keyDescriptor;
+    }
+    
+    /**
+     * Gets the certificates in the key descriptors of the SAML 2.0 SP role of the given {@link EntityDescriptor}.
+     * 
+     * @param entity The entity descriptor.
+     * @return The certificates, empty if the entity has no SAML 2.0 SP role.
+     */
+    @Nonnull public static List<ServiceCertificate> getCertificates(@Nonnull final EntityDescriptor entity) {
+        final SPSSODescriptor descriptor = entity.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+        if (descriptor == null || descriptor.getKeyDescriptors().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<ServiceCertificate> certificates = new ArrayList<>(descriptor.getKeyDescriptors().size());
+        for (final KeyDescriptor keyDescriptor : descriptor.getKeyDescriptors()) {
+            if (keyDescriptor.getKeyInfo() == null) {
+                continue;
+            }
+            for (final X509Data x509Data : keyDescriptor.getKeyInfo().getX509Datas()) {
+                for (final X509Certificate x509Certificate : x509Data.getX509Certificates()) {
+                    if (x509Certificate.getValue() != null) {
+                        certificates.add(new ServiceCertificate(keyDescriptor.getUse(), x509Certificate.getValue()));
+                    }
+                }
+            }
+        }
+        return certificates;
+    }
+    
+    /**
+     * Gets the assertion consumer service endpoints of the SAML 2.0 SP role of the given {@link EntityDescriptor}.
+     * 
+     * @param entity The entity descriptor.
+     * @return The assertion consumer service endpoints, empty if the entity has no SAML 2.0 SP role.
+     */
+    @Nonnull public static List<ServiceEndpoint> getEndpoints(@Nonnull final EntityDescriptor entity) {
+        final SPSSODescriptor descriptor = entity.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+        if (descriptor == null) {
+            return Collections.emptyList();
+        }
+        final List<ServiceEndpoint> endpoints = new ArrayList<>(descriptor.getAssertionConsumerServices().size());
+        for (final AssertionConsumerService acs : descriptor.getAssertionConsumerServices()) {
+            final XSBooleanValue isDefault = acs.isDefaultXSBoolean();
+            endpoints.add(new ServiceEndpoint(acs.getBinding(), acs.getLocation(), acs.getIndex(),
+                    isDefault == null ? null : isDefault.getValue()));
+        }
+        return endpoints;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.security.credential.UsageType;
+
+/**
+ * Reads and writes the services in a compact binary snapshot file.
+ * 
+ * <p>The file starts with a magic number, a format version and the tables of the distinct endpoint bindings and
+ * certificates, followed by the services. Each service consists of its row identifier, start and end times, entity
+ * ID, endpoints and certificates, the bindings and certificates being referenced by their index in the tables. The
+ * strings are stored as UTF-8 prefixed with their length, and null as the length {@value #NULL_LENGTH}, so that a
+ * missing value is not read back as an empty one. The version 1 files, without the certificates, and the version 2
+ * files, without the null marker, are still read.</p>
+ * 
+ * <p>The files are written to a temporary file next to the target and atomically moved in place, so that the
+ * readers never see a partially written snapshot. The files are read through a memory mapping. The same format
+ * is also available as a gzip-compressed byte array, for storing the snapshot in a database.</p>
+ */
+public final class ServiceSnapshotCodec {
+    
+    /** The magic number at the start of the snapshot files. */
+    public static final int MAGIC = 0x4D50534E;
+    
+    /** The current format version. */
+    public static final int VERSION = 3;
+    
+    /** The format version without the certificates. */
+    private static final int VERSION_WITHOUT_CERTIFICATES = 1;
+    
+    /** The format version without the null marker for the strings. */
+    private static final int VERSION_WITHOUT_NULL_MARKER = 2;
+    
+    /** The stored length for the null strings. */
+    private static final int NULL_LENGTH = -1;
+    
+    /** The stored endpoint index for the endpoints without one. */
+    private static final int NO_INDEX = Integer.MIN_VALUE;
+    
+    /** The stored default flag for the endpoints without one. */
+    private static final byte NO_DEFAULT = -1;
+    
+    /** The stored use for the certificates without one. */
+    private static final byte NO_USE = -1;
+
+    /** Constructor. */
+    private ServiceSnapshotCodec() {
+        // no op
+    }
+    
+    /**
+     * Writes the given services to the given file atomically.
+     * 
+     * @param file The snapshot file.
+     * @param entries The services.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(@Nonnull final Path file, @Nonnull final Collection<ServiceEntry> entries)
+            throws IOException {
+        final Path directory = file.toAbsolutePath().getParent();
+        final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                encode(output, entries);
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    /**
+     * Reads the services from the given file.
+     * 
+     * @param file The snapshot file.
+     * @return The services.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    @Nonnull public static List<ServiceEntry> read(@Nonnull final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return decode(buffer);
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                    | NegativeArraySizeException e) {
+                throw new IOException("The snapshot file " + file + " is truncated or corrupted", e);
+            }
+        }
+    }
+    
+    /**
+     * Encodes the given services to a gzip-compressed byte array.
+     * 
+     * @param entries The services.
+     * @return The compressed snapshot.
+     * @throws IOException If the services cannot be encoded.
+     */
+    @Nonnull public static byte[] toCompressedBytes(@Nonnull final Collection<ServiceEntry> entries)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(bytes)))) {
+            encode(output, entries);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Decodes the services from a gzip-compressed byte array.
+     * 
+     * @param compressed The compressed snapshot.
+     * @return The services.
+     * @throws IOException If the bytes are not a valid compressed snapshot.
+     */
+    @Nonnull public static List<ServiceEntry> fromCompressedBytes(@Nonnull final byte[] compressed)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+        try (final InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        try {
+            return decode(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            throw new IOException("The compressed snapshot is truncated or corrupted", e);
+        }
+    }
+    
+    /**
+     * Encodes the given services to the given output.
+     * 
+     * @param output The output.
+     * @param entries The services.
+     * @throws IOException If the output cannot be written.
+     */
+    private static void encode(@Nonnull final DataOutputStream output, 
+            @Nonnull final Collection<ServiceEntry> entries) throws IOException {
+        final Map<String, Integer> bindings = new HashMap<>();
+        final List<String> bindingTable = new ArrayList<>();
+        final Map<String, Integer> certificates = new HashMap<>();
+        final List<String> certificateTable = new ArrayList<>();
+        final List<List<ServiceEndpoint>> endpoints = new ArrayList<>(entries.size());
+        final List<List<ServiceCertificate>> entryCertificates = new ArrayList<>(entries.size());
+        for (final ServiceEntry entry : entries) {
+            final List<ServiceEndpoint> entryEndpoints = entry.getEndpoints();
+            for (final ServiceEndpoint endpoint : entryEndpoints) {
+                if (!bindings.containsKey(endpoint.getBinding())) {
+                    bindings.put(endpoint.getBinding(), bindingTable.size());
+                    bindingTable.add(endpoint.getBinding());
+                }
+            }
+            endpoints.add(entryEndpoints);
+            final List<ServiceCertificate> serviceCertificates = entry.getCertificates();
+            for (final ServiceCertificate certificate : serviceCertificates) {
+                if (!certificates.containsKey(certificate.getEncoded())) {
+                    certificates.put(certificate.getEncoded(), certificateTable.size());
+                    certificateTable.add(certificate.getEncoded());
+                }
+            }
+            entryCertificates.add(serviceCertificates);
+        }
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(bindingTable.size());
+        for (final String binding : bindingTable) {
+            writeString(output, binding);
+        }
+        output.writeInt(certificateTable.size());
+        for (final String certificate : certificateTable) {
+            writeString(output, certificate);
+        }
+        output.writeInt(entries.size());
+        int i = 0;
+        for (final ServiceEntry entry : entries) {
+            output.writeLong(entry.getId());
+            output.writeLong(entry.getStartTime());
+            output.writeLong(entry.getEndTime());
+            writeString(output, entry.getEntityId());
+            final List<ServiceEndpoint> entryEndpoints = endpoints.get(i);
+            output.writeInt(entryEndpoints.size());
+            for (final ServiceEndpoint endpoint : entryEndpoints) {
+                output.writeInt(bindings.get(endpoint.getBinding()));
+                writeString(output, endpoint.getLocation());
+                output.writeInt(endpoint.getIndex() == null ? NO_INDEX : endpoint.getIndex());
+                output.writeByte(endpoint.isDefault() == null ? NO_DEFAULT : endpoint.isDefault() ? 1 : 0);
+            }
+            final List<ServiceCertificate> serviceCertificates = entryCertificates.get(i++);
+            output.writeInt(serviceCertificates.size());
+            for (final ServiceCertificate certificate : serviceCertificates) {
+                output.writeInt(certificates.get(certificate.getEncoded()));
+                output.writeByte(certificate.getUse() == null ? NO_USE : certificate.getUse().ordinal());
+            }
+        }
+    }
+    
+    /**
+     * Decodes the services from the given buffer.
+     * 
+     * @param buffer The buffer.
+     * @return The services.
+     * @throws IOException If the buffer does not contain a valid snapshot.
+     */
+    @Nonnull private static List<ServiceEntry> decode(@Nonnull final ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a service snapshot file");
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION && version != VERSION_WITHOUT_NULL_MARKER && version != VERSION_WITHOUT_CERTIFICATES) {
+            throw new IOException("Unsupported service snapshot version " + version);
+        }
+        final boolean withCertificates = version != VERSION_WITHOUT_CERTIFICATES;
+        final String[] bindings = new String[buffer.getInt()];
+        for (int i = 0; i < bindings.length; i++) {
+            bindings[i] = readRequiredString(buffer, "binding");
+        }
+        final String[] certificateTable = new String[withCertificates ? buffer.getInt() : 0];
+        for (int i = 0; i < certificateTable.length; i++) {
+            certificateTable[i] = readRequiredString(buffer, "certificate");
+        }
+        final int count = buffer.getInt();
+        final List<ServiceEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long id = buffer.getLong();
+            final long startTime = buffer.getLong();
+            final long endTime = buffer.getLong();
+            final String entityId = readRequiredString(buffer, "entity ID");
+            final int endpointCount = buffer.getInt();
+            final List<ServiceEndpoint> endpoints = new ArrayList<>(endpointCount);
+            for (int j = 0; j < endpointCount; j++) {
+                final String binding = bindings[buffer.getInt()];
+                final String location = readRequiredString(buffer, "endpoint location");
+                final int index = buffer.getInt();
+                final byte isDefault = buffer.get();
+                endpoints.add(new ServiceEndpoint(binding, location, index == NO_INDEX ? null : index,
+                        isDefault == NO_DEFAULT ? null : isDefault == 1));
+            }
+            final int certificateCount = withCertificates ? buffer.getInt() : 0;
+            final List<ServiceCertificate> certificates = new ArrayList<>(certificateCount);
+            for (int j = 0; j < certificateCount; j++) {
+                final String certificate = certificateTable[buffer.getInt()];
+                final byte use = buffer.get();
+                certificates.add(new ServiceCertificate(use == NO_USE ? null : UsageType.values()[use], certificate));
+            }
+            entries.add(new ServiceEntry(id, entityId, endpoints, certificates, startTime, endTime));
+        }
+        return entries;
+    }
+    
+    /**
+     * Writes the given string as its length followed by its UTF-8 bytes, or {@link #NULL_LENGTH} if it is null.
+     * 
+     * @param output The output.
+     * @param value The string, may be null.
+     * @throws IOException If the output cannot be written.
+     */
+    private static void writeString(@Nonnull final DataOutputStream output, @Nullable final String value)
+            throws IOException {
+        if (value == null) {
+            output.writeInt(NULL_LENGTH);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+    
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     * 
+     * @param buffer The buffer.
+     * @return The string, null if a null string was written.
+     * @throws IOException If the length of the string is not valid.
+     */
+    @Nullable private static String readString(@Nonnull final ByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid string length " + length + " in the service snapshot");
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)} for a value that cannot be null.
+     * 
+     * @param buffer The buffer.
+     * @param name The name of the value, for the error message.
+     * @return The string.
+     * @throws IOException If a null string was written, or its length is not valid.
+     */
+    @Nonnull private static String readRequiredString(@Nonnull final ByteBuffer buffer, @Nonnull final String name)
+            throws IOException {
+        final String value = readString(buffer);
+        if (value == null) {
+            throw new IOException("The service snapshot contains a null " + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * The mapping of the services table, its optional endpoint table and the predicate selecting the services, and
+ * the service queries built from them. The mapped columns are aliased to their default names in the queries, so
+ * that the rows can be read by a {@link ServiceEntryAssembler} regardless of the mapping. The same mapping can be
+ * shared by several resolvers reading the same tables.
+ * 
+ * <p>The queries are built once for the current mapping, and rebuilt after the mapping is changed.</p>
+ */
+public class ServiceTableMapping {
+    
+    /** The pattern for the valid table and column names, optionally qualified with a schema or alias. */
+    private static final Pattern IDENTIFIER_PATTERN = 
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)?");
+    
+    /** The table name for the services. */
+    @Nonnull private String servicesTable = DataSourceMetadataResolver.TABLE_NAME_SERVICES;
+    
+    /** The column name for the row identifier. */
+    @Nonnull private String idColumn = DataSourceMetadataResolver.COLUMN_ID_ID;
+    
+    /** The column name for the SAML entity ID. */
+    @Nonnull private String entityIdColumn = DataSourceMetadataResolver.COLUMN_ID_ENTITY_ID;
+    
+    /** The column name for the ACS URL. */
+    @Nonnull private String acsUrlColumn = DataSourceMetadataResolver.COLUMN_ID_ACS_URL;
+    
+    /** The column name for the start time. */
+    @Nonnull private String startTimeColumn = DataSourceMetadataResolver.COLUMN_ID_START_TIME;
+    
+    /** The column name for the end time. */
+    @Nonnull private String endTimeColumn = DataSourceMetadataResolver.COLUMN_ID_END_TIME;
+    
+    /** The optional column name for the signing certificate. */
+    @Nullable private String signingCertificateColumn;
+    
+    /** The optional column name for the encryption certificate. */
+    @Nullable private String encryptionCertificateColumn;
+    
+    /** The optional column name for the last modification time. */
+    @Nullable private String lastModifiedColumn;
+    
+    /** The optional table name for the service endpoints. */
+    @Nullable private String endpointTable;
+    
+    /** The optional predicate for selecting the services. */
+    @Nullable private String wherePredicate;
+    
+    /** The cached query for fetching all the rows, reset when the mapping changes. */
+    @Nullable private volatile String fullQuery;
+    
+    /** The cached query for fetching the changed rows, reset when the mapping changes. */
+    @Nullable private volatile String deltaQuery;
+    
+    /** The cached query for fetching the rows of an identifier range, reset when the mapping changes. */
+    @Nullable private volatile String partitionQuery;
+    
+    /** The cached query for the range of the row identifiers, reset when the mapping changes. */
+    @Nullable private volatile String rangeQuery;
+    
+    /** The cached query for fetching the rows of a single entity ID, reset when the mapping changes. */
+    @Nullable private volatile String lookupQuery;
+    
+    /** The cached query for the fingerprint of the services, reset when the mapping changes. */
+    @Nullable private volatile String fingerprintQuery;
+    
+    /**
+     * Set the table name for the services. Default {@value DataSourceMetadataResolver#TABLE_NAME_SERVICES}.
+     * @param table What to set.
+     */
+    public void setServicesTable(@Nonnull final String table) {
+        servicesTable = checkRequiredIdentifier(table, "services table");
+        resetQueries();
+    }
+    
+    /**
+     * Get the table name for the services.
+     * @return The table name for the services.
+     */
+    @Nonnull public String getServicesTable() {
+        return servicesTable;
+    }
+    
+    /**
+     * Set the column name for the row identifier. Default {@value DataSourceMetadataResolver#COLUMN_ID_ID}.
+     * @param column What to set.
+     */
+    public void setIdColumn(@Nonnull final String column) {
+        idColumn = checkRequiredIdentifier(column, "row identifier column");
+        resetQueries();
+    }
+    
+    /**
+     * Get the column name for the row identifier.
+     * @return The column name for the row identifier.
+     */
+    @Nonnull public String getIdColumn() {
+        return idColumn;
+    }
+    
+    /**
+     * Set the column name for the SAML entity ID. Default {@value DataSourceMetadataResolver#COLUMN_ID_ENTITY_ID}.
+     * @param column What to set.
+     */
+    public void setEntityIdColumn(@Nonnull final String column) {
+        entityIdColumn = checkRequiredIdentifier(column, "entity ID column");
+        resetQueries();
+    }
+    
+    /**
+     * Get the column name for the SAML entity ID.
+     * @return The column name for the SAML entity ID.
+     */
+    @Nonnull public String getEntityIdColumn() {
+        return entityIdColumn;
+    }
+    
+    /**
+     * Set the column name for the ACS URL. Default {@value DataSourceMetadataResolver#COLUMN_ID_ACS_URL}.
+     * @param column What to set.
+     */
+    public void setAcsUrlColumn(@Nonnull final String column) {
+        acsUrlColumn = checkRequiredIdentifier(column, "ACS URL column");
+        resetQueries();
+    }
+    
+    /**
+     * Get the column name for the ACS URL.
+     * @return The column name for the ACS URL.
+     */
+    @Nonnull public String getAcsUrlColumn() {
+        return acsUrlColumn;
+    }
+    
+    /**
+     * Set the column name for the start time. Default {@value DataSourceMetadataResolver#COLUMN_ID_START_TIME}.
+     * @param column What to set.
+     */
+    public void setStartTimeColumn(@Nonnull final String column) {
+        startTimeColumn = checkRequiredIdentifier(column, "start time column");
+        resetQueries();
+    }
+    
+    /**
+     * Get the column name for the start time.
+     * @return The column name for the start time.
+     */
+    @Nonnull public String getStartTimeColumn() {
+        return startTimeColumn;
+    }
+    
+    /**
+     * Set the column name for the end time. Default {@value DataSourceMetadataResolver#COLUMN_ID_END_TIME}.
+     * @param column What to set.
+     */
+    public void setEndTimeColumn(@Nonnull final String column) {
+        endTimeColumn = checkRequiredIdentifier(column, "end time column");
+        resetQueries();
+    }
+    
+    /**
+     * Get the column name for the end time.
+     * @return The column name for the end time.
+     */
+    @Nonnull public String getEndTimeColumn() {
+        return endTimeColumn;
+    }
+    
+    /**
+     * Set the optional column name for the signing certificate of the services. If set, the services with a
+     * non-null value get a key descriptor with the signing use. The column contains the base64-encoded DER
+     * certificate, optionally with the PEM armor.
+     * 
+     * @param column What to set.
+     */
+    public void setSigningCertificateColumn(@Nullable final String column) {
+        signingCertificateColumn = checkIdentifier(StringSupport.trimOrNull(column));
+        resetQueries();
+    }
+    
+    /**
+     * Get the optional column name for the signing certificate.
+     * @return The optional column name for the signing certificate.
+     */
+    @Nullable public String getSigningCertificateColumn() {
+        return signingCertificateColumn;
+    }
+    
+    /**
+     * Set the optional column name for the encryption certificate of the services. If set, the services with a
+     * non-null value get a key descriptor with the encryption use. The column contains the base64-encoded DER
+     * certificate, optionally with the PEM armor.
+     * 
+     * @param column What to set.
+     */
+    public void setEncryptionCertificateColumn(@Nullable final String column) {
+        encryptionCertificateColumn = checkIdentifier(StringSupport.trimOrNull(column));
+        resetQueries();
+    }
+    
+    /**
+     * Get the optional column name for the encryption certificate.
+     * @return The optional column name for the encryption certificate.
+     */
+    @Nullable public String getEncryptionCertificateColumn() {
+        return encryptionCertificateColumn;
+    }
+    
+    /**
+     * Set the optional column name for the last modification time of the services. If set, the column is
+     * selected with the alias {@value DataSourceMetadataResolver#COLUMN_ID_LAST_MODIFIED}.
+     * @param column What to set.
+     */
+    public void setLastModifiedColumn(@Nullable final String column) {
+        lastModifiedColumn = checkIdentifier(StringSupport.trimOrNull(column));
+        resetQueries();
+    }
+    
+    /**
+     * Get the optional column name for the last modification time.
+     * @return The optional column name for the last modification time.
+     */
+    @Nullable public String getLastModifiedColumn() {
+        return lastModifiedColumn;
+    }
+    
+    /**
+     * Set the optional table name for the service endpoints. If set, the endpoints are joined with the services in
+     * the queries, ordered by the service row identifier and the endpoint index.
+     * 
+     * @param table What to set.
+     */
+    public void setEndpointTable(@Nullable final String table) {
+        endpointTable = checkIdentifier(StringSupport.trimOrNull(table));
+        resetQueries();
+    }
+    
+    /**
+     * Get the optional table name for the service endpoints.
+     * @return The optional table name for the service endpoints.
+     */
+    @Nullable public String getEndpointTable() {
+        return endpointTable;
+    }
+    
+    /**
+     * Set the optional predicate for selecting the services, e.g. <code>tenant = 'example'</code>. The predicate is
+     * added to the WHERE clause of all the service queries, so that the filtering can use the database indexes. If
+     * the endpoint table is configured, the services table has the alias <code>s</code> and the endpoints table the
+     * alias <code>e</code> in all the queries, the aggregate range and fingerprint queries included. The predicate
+     * cannot contain parameters, statement separators or comments.
+     * 
+     * @param predicate What to set.
+     */
+    public void setWherePredicate(@Nullable final String predicate) {
+        final String trimmed = StringSupport.trimOrNull(predicate);
+        Constraint.isTrue(trimmed == null || isValidPredicate(trimmed), "Invalid where predicate: " + trimmed);
+        wherePredicate = trimmed;
+        resetQueries();
+    }
+    
+    /**
+     * Get the optional predicate for selecting the services.
+     * @return The optional predicate for selecting the services.
+     */
+    @Nullable public String getWherePredicate() {
+        return wherePredicate;
+    }
+    
+    /**
+     * Checks whether the given string is a valid table or column name, optionally qualified with a schema or alias.
+     * @param identifier The string to check.
+     * @return true if the string is a valid table or column name, false otherwise.
+     */
+    public static boolean isValidIdentifier(@Nullable final String identifier) {
+        return identifier != null && IDENTIFIER_PATTERN.matcher(identifier).matches();
+    }
+    
+    /**
+     * Checks whether the given string is an acceptable predicate for the service queries. The predicate cannot
+     * contain parameters, statement separators or comments.
+     * @param predicate The string to check.
+     * @return true if the string is an acceptable predicate, false otherwise.
+     */
+    public static boolean isValidPredicate(@Nullable final String predicate) {
+        return !Strings.isNullOrEmpty(predicate) && !predicate.contains(";") && !predicate.contains("?")
+                && !predicate.contains("--") && !predicate.contains("/*");
+    }
+    
+    /**
+     * Checks that the given optional identifier is valid.
+     * @param identifier The identifier, may be null.
+     * @return The identifier.
+     */
+    @Nullable public static String checkIdentifier(@Nullable final String identifier) {
+        Constraint.isTrue(identifier == null || isValidIdentifier(identifier), "Invalid identifier: " + identifier);
+        return identifier;
+    }
+    
+    /**
+     * Checks that the given required identifier is valid.
+     * @param identifier The identifier.
+     * @param description The description of the identifier for the error message.
+     * @return The trimmed identifier.
+     */
+    @Nonnull private static String checkRequiredIdentifier(@Nullable final String identifier,
+            @Nonnull final String description) {
+        final String trimmed = StringSupport.trimOrNull(identifier);
+        Constraint.isTrue(isValidIdentifier(trimmed), "Invalid " + description + ": " + trimmed);
+        return trimmed;
+    }
+    
+    /**
+     * Resets the cached queries after a change in the mapping.
+     */
+    private void resetQueries() {
+        fullQuery = null;
+        deltaQuery = null;
+        partitionQuery = null;
+        rangeQuery = null;
+        lookupQuery = null;
+        fingerprintQuery = null;
+    }
+    
+    /**
+     * Creates a new assembler for the rows of the service queries.
+     * 
+     * @param lazyBuild Whether the assembled services build their entities only on demand.
+     * @return The new assembler.
+     */
+    @Nonnull public ServiceEntryAssembler newAssembler(final boolean lazyBuild) {
+        return new ServiceEntryAssembler(getEndpointTable() != null, getSigningCertificateColumn() != null,
+                getEncryptionCertificateColumn() != null, lazyBuild);
+    }
+    
+    /**
+     * Get the prefix for the services table columns in the queries.
+     * @return The prefix for the services table columns in the queries, may be empty.
+     */
+    @Nonnull public String getServicePrefix() {
+        return getEndpointTable() != null ? "s." : "";
+    }
+    
+    /**
+     * Builds the list of the columns needed from the services table, and the endpoints table if configured. The
+     * mapped service columns are aliased to their default names.
+     * @return The comma-separated list of the columns needed.
+     */
+    @Nonnull protected String buildServiceColumns() {
+        final String prefix = getServicePrefix();
+        final StringBuilder columns = new StringBuilder();
+        columns.append(prefix).append(getIdColumn()).append(" AS ")
+            .append(DataSourceMetadataResolver.COLUMN_ID_ID).append(", ")
+            .append(prefix).append(getEntityIdColumn()).append(" AS ")
+            .append(DataSourceMetadataResolver.COLUMN_ID_ENTITY_ID).append(", ")
+            .append(prefix).append(getAcsUrlColumn()).append(" AS ")
+            .append(DataSourceMetadataResolver.COLUMN_ID_ACS_URL).append(", ")
+            .append(prefix).append(getStartTimeColumn()).append(" AS ")
+            .append(DataSourceMetadataResolver.COLUMN_ID_START_TIME).append(", ")
+            .append(prefix).append(getEndTimeColumn()).append(" AS ")
+            .append(DataSourceMetadataResolver.COLUMN_ID_END_TIME);
+        if (getLastModifiedColumn() != null) {
+            columns.append(", ").append(prefix).append(getLastModifiedColumn()).append(" AS ")
+                .append(DataSourceMetadataResolver.COLUMN_ID_LAST_MODIFIED);
+        }
+        if (getSigningCertificateColumn() != null) {
+            columns.append(", ").append(prefix).append(getSigningCertificateColumn()).append(" AS ")
+                .append(ServiceEntryAssembler.COLUMN_ID_SIGNING_CERTIFICATE);
+        }
+        if (getEncryptionCertificateColumn() != null) {
+            columns.append(", ").append(prefix).append(getEncryptionCertificateColumn()).append(" AS ")
+                .append(ServiceEntryAssembler.COLUMN_ID_ENCRYPTION_CERTIFICATE);
+        }
+        if (getEndpointTable() != null) {
+            columns.append(", e.").append(ServiceEntryAssembler.COLUMN_ID_BINDING)
+                .append(", e.").append(ServiceEntryAssembler.COLUMN_ID_LOCATION)
+                .append(", e.").append(ServiceEntryAssembler.COLUMN_ID_ENDPOINT_INDEX)
+                .append(", e.").append(ServiceEntryAssembler.COLUMN_ID_IS_DEFAULT);
+        }
+        return columns.toString();
+    }
+    
+    /**
+     * Builds the from clause of the service queries, joining the endpoints table if configured.
+     * @return The from clause of the service queries.
+     */
+    @Nonnull protected String buildFrom() {
+        if (getEndpointTable() == null) {
+            return " from " + getServicesTable();
+        }
+        return " from " + getServicesTable() + " s LEFT JOIN " + getEndpointTable() + " e ON e." 
+                + DataSourceMetadataResolver.COLUMN_ID_SERVICE_ID + " = s." + getIdColumn();
+    }
+    
+    /**
+     * Builds the select clause of the service queries, without conditions and ordering.
+     * @return The select clause of the service queries.
+     */
+    @Nonnull protected String buildSelect() {
+        return "SELECT " + buildServiceColumns() + buildFrom();
+    }
+    
+    /**
+     * Builds the order by clause of the service queries. The rows are always ordered by the row identifier, so that
+     * the services are installed in a stable order, and the joined endpoint rows of each service are adjacent and
+     * ordered by their index.
+     * @return The order by clause of the service queries.
+     */
+    @Nonnull protected String buildOrderBy() {
+        if (getEndpointTable() == null) {
+            return " ORDER BY " + getIdColumn();
+        }
+        return " ORDER BY s." + getIdColumn() + ", e." + ServiceEntryAssembler.COLUMN_ID_ENDPOINT_INDEX;
+    }
+    
+    /**
+     * Builds the where clause of the service queries, combining the configured predicate with the given condition.
+     * @param condition The condition, may be null.
+     * @return The where clause of the service queries, may be empty.
+     */
+    @Nonnull public String buildWhere(@Nullable final String condition) {
+        if (getWherePredicate() == null) {
+            return condition == null ? "" : " WHERE " + condition;
+        }
+        return " WHERE (" + getWherePredicate() + ")" + (condition == null ? "" : " AND (" + condition + ")");
+    }
+    
+    /**
+     * Builds the query for fetching all the rows.
+     * @return The query for fetching all the rows.
+     */
+    @Nonnull protected String buildFullQuery() {
+        return buildSelect() + buildWhere(null) + buildOrderBy();
+    }
+    
+    /**
+     * Builds the query for fetching the rows modified at or after a given time. The last modification time column
+     * must be configured.
+     * @return The query for fetching the rows modified at or after a given time.
+     */
+    @Nonnull protected String buildDeltaQuery() {
+        Constraint.isNotNull(getLastModifiedColumn(), "The delta query requires the last modified column");
+        return buildSelect() + buildWhere(getServicePrefix() + getLastModifiedColumn() + " >= ?") + buildOrderBy();
+    }
+    
+    /**
+     * Builds the query for fetching the rows in an inclusive range of the row identifiers.
+     * @return The query for fetching the rows in a range of the row identifiers.
+     */
+    @Nonnull protected String buildPartitionQuery() {
+        final String prefix = getServicePrefix();
+        return buildSelect() + buildWhere(prefix + getIdColumn() + " >= ? AND " + prefix + getIdColumn() + " <= ?")
+                + buildOrderBy();
+    }
+    
+    /**
+     * Builds the query for the smallest and the greatest row identifier of the services selected by the predicate.
+     * The endpoints table is joined as in the other service queries, so that the predicate may refer to it.
+     * @return The query for the range of the row identifiers.
+     */
+    @Nonnull protected String buildRangeQuery() {
+        final String prefix = getServicePrefix();
+        return "SELECT MIN(" + prefix + getIdColumn() + "), MAX(" + prefix + getIdColumn() + ")" + buildFrom() 
+                + buildWhere(null);
+    }
+    
+    /**
+     * Builds the aggregate query for the fingerprint of the services selected by the predicate: the number of the
+     * services, the range of their row identifiers, the latest start and end times and, if the column is
+     * configured, the latest modification time. Without the last modification time, edits of the existing rows
+     * are not noticed. The endpoints table is joined as in the other service queries, so that the predicate may
+     * refer to it, and the services are then counted by their distinct row identifiers.
+     * @return The query for the fingerprint of the services.
+     */
+    @Nonnull protected String buildFingerprintQuery() {
+        final String prefix = getServicePrefix();
+        final StringBuilder query = new StringBuilder("SELECT ");
+        query.append(getEndpointTable() != null ? "COUNT(DISTINCT " + prefix + getIdColumn() + ")" : "COUNT(*)")
+            .append(", MIN(").append(prefix).append(getIdColumn()).append("), MAX(")
+            .append(prefix).append(getIdColumn()).append("), MAX(")
+            .append(prefix).append(getStartTimeColumn()).append("), MAX(")
+            .append(prefix).append(getEndTimeColumn()).append(")");
+        if (getLastModifiedColumn() != null) {
+            query.append(", MAX(").append(prefix).append(getLastModifiedColumn()).append(")");
+        }
+        query.append(buildFrom()).append(buildWhere(null));
+        return query.toString();
+    }
+    
+    /**
+     * Builds the query for fetching the rows of the services with a single entity ID.
+     * @return The query for fetching the rows of the services with a single entity ID.
+     */
+    @Nonnull protected String buildLookupQuery() {
+        return buildSelect() + buildWhere(getServicePrefix() + getEntityIdColumn() + " = ?") + buildOrderBy();
+    }
+    
+    /**
+     * Builds the query for fetching the rows of the given number of services by their row identifiers.
+     * @param count The number of the row identifiers.
+     * @return The query for fetching the rows of the services.
+     */
+    @Nonnull public String buildTargetedQuery(final int count) {
+        final StringBuilder condition = new StringBuilder();
+        condition.append(getServicePrefix()).append(getIdColumn()).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            condition.append(i == 0 ? "?" : ", ?");
+        }
+        return buildSelect() + buildWhere(condition.append(")").toString()) + buildOrderBy();
+    }
+    
+    /**
+     * Get the query for fetching all the rows, built once for the current mapping.
+     * @return The query for fetching all the rows.
+     */
+    @Nonnull public String getFullQuery() {
+        String query = fullQuery;
+        if (query == null) {
+            query = buildFullQuery();
+            fullQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Get the query for fetching the rows modified at or after a given time, built once for the current mapping.
+     * @return The query for fetching the changed rows.
+     */
+    @Nonnull public String getDeltaQuery() {
+        String query = deltaQuery;
+        if (query == null) {
+            query = buildDeltaQuery();
+            deltaQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Get the query for fetching the rows in a range of the row identifiers, built once for the current mapping.
+     * @return The query for fetching the rows in a range of the row identifiers.
+     */
+    @Nonnull public String getPartitionQuery() {
+        String query = partitionQuery;
+        if (query == null) {
+            query = buildPartitionQuery();
+            partitionQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Get the query for the range of the row identifiers, built once for the current mapping.
+     * @return The query for the range of the row identifiers.
+     */
+    @Nonnull public String getRangeQuery() {
+        String query = rangeQuery;
+        if (query == null) {
+            query = buildRangeQuery();
+            rangeQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Get the query for fetching the rows of the services with a single entity ID, built once for the current
+     * mapping.
+     * @return The query for fetching the rows of the services with a single entity ID.
+     */
+    @Nonnull public String getLookupQuery() {
+        String query = lookupQuery;
+        if (query == null) {
+            query = buildLookupQuery();
+            lookupQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Get the aggregate query for the fingerprint of the services, built once for the current mapping.
+     * @return The query for the fingerprint of the services.
+     */
+    @Nonnull public String getFingerprintQuery() {
+        String query = fingerprintQuery;
+        if (query == null) {
+            query = buildFingerprintQuery();
+            fingerprintQuery = query;
+        }
+        return query;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_LEASE_EXPIRES;
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_LEASE_OWNER;
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_NAME;
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_SNAPSHOT;
+import static fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver.COLUMN_ID_VERSION;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+
+/**
+ * Coordinates the refreshes of the {@link DataSourceMetadataResolver}s sharing a data source through the shared
+ * snapshot table: the node holding the refresh lease publishes the services it fetches as a versioned, compressed
+ * snapshot, and the other nodes install the snapshot when its version changes.
+ */
+public class SharedSnapshotCoordinator {
+    
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(SharedSnapshotCoordinator.class);
+    
+    /** The resolver whose refreshes are coordinated. */
+    @Nonnull private final DataSourceMetadataResolver resolver;
+    
+    /** The table name for the shared snapshot. */
+    @Nonnull private final String table;
+    
+    /** The identifier of this node in the cluster. */
+    @Nonnull private final String nodeId;
+    
+    /** The duration of the refresh lease, in milliseconds. */
+    private final long leaseDuration;
+    
+    /** The version of the shared snapshot published or installed by this node. */
+    private volatile long version = -1;
+    
+    /**
+     * Constructor.
+     * 
+     * @param metadataResolver The resolver whose refreshes are coordinated.
+     * @param snapshotTable The table name for the shared snapshot.
+     * @param node The identifier of this node in the cluster.
+     * @param duration The duration of the refresh lease, in milliseconds.
+     */
+    public SharedSnapshotCoordinator(@Nonnull final DataSourceMetadataResolver metadataResolver,
+            @Nonnull final String snapshotTable, @Nonnull final String node, final long duration) {
+        resolver = Constraint.isNotNull(metadataResolver, "The resolver cannot be null");
+        table = Constraint.isNotNull(snapshotTable, "The snapshot table cannot be null");
+        nodeId = Constraint.isNotNull(node, "The node identifier cannot be null");
+        leaseDuration = duration;
+    }
+    
+    /**
+     * Get the version of the shared snapshot published or installed by this node.
+     * @return The version of the shared snapshot, -1 if none.
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Acquires or renews the refresh lease. The lease times are compared and set with the time of the database,
+     * so that the clocks of the nodes do not need to be in sync.
+     * @return true if this node holds the lease, false if another node does, null if the lease cannot be checked.
+     */
+    @Nullable public Boolean acquireLease() {
+        final String expires = "{fn TIMESTAMPADD(SQL_TSI_SECOND, " + (leaseDuration + 999) / 1000 
+                + ", CURRENT_TIMESTAMP)}";
+        try (final Connection connection = resolver.getDataSource().getConnection()) {
+            try (final PreparedStatement update = resolver.prepareStatement(connection, "UPDATE " + table
+                    + " SET " + COLUMN_ID_LEASE_OWNER + " = ?, " + COLUMN_ID_LEASE_EXPIRES + " = " + expires 
+                    + " WHERE " + COLUMN_ID_NAME + " = ? AND (" + COLUMN_ID_LEASE_OWNER + " IS NULL OR " 
+                    + COLUMN_ID_LEASE_OWNER + " = ? OR " + COLUMN_ID_LEASE_EXPIRES + " < CURRENT_TIMESTAMP)")) {
+                update.setString(1, nodeId);
+                update.setString(2, resolver.getId());
+                update.setString(3, nodeId);
+                if (update.executeUpdate() > 0) {
+                    return Boolean.TRUE;
+                }
+            }
+            try (final PreparedStatement insert = resolver.prepareStatement(connection, "INSERT INTO " + table
+                    + " (" + COLUMN_ID_NAME + ", " + COLUMN_ID_VERSION + ", " + COLUMN_ID_LEASE_OWNER + ", " 
+                    + COLUMN_ID_LEASE_EXPIRES + ") VALUES (?, 0, ?, " + expires + ")")) {
+                insert.setString(1, resolver.getId());
+                insert.setString(2, nodeId);
+                return insert.executeUpdate() > 0;
+            } catch (SQLException e) {
+                if (!isConstraintViolation(e)) {
+                    throw e;
+                }
+                log.debug("The refresh lease for '{}' is held by another node", resolver.getId());
+                return Boolean.FALSE;
+            }
+        } catch (SQLException e) {
+            log.warn("Could not acquire the refresh lease for '{}', refreshing locally", resolver.getId(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Checks whether the given exception, or one chained to it, is an integrity constraint violation, i.e. its
+     * SQL state is of the class 23.
+     * 
+     * @param e The exception.
+     * @return true if the exception is an integrity constraint violation, false otherwise.
+     */
+    private static boolean isConstraintViolation(@Nonnull final SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (next.getSQLState() != null && next.getSQLState().startsWith("23")) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Installs the snapshot published by the lease holder to the resolver, if its version differs from the
+     * installed one.
+     * 
+     * @return true if the snapshot was installed or is unchanged, false if none is available.
+     */
+    public boolean install() {
+        final String select = " FROM " + table + " WHERE " + COLUMN_ID_NAME + " = ?";
+        try (final Connection connection = resolver.getDataSource().getConnection()) {
+            try (final PreparedStatement statement = resolver.prepareStatement(connection, "SELECT " 
+                    + COLUMN_ID_VERSION + select)) {
+                statement.setString(1, resolver.getId());
+                try (final ResultSet results = statement.executeQuery()) {
+                    if (!results.next() || results.getLong(1) == 0) {
+                        log.debug("No shared snapshot published for '{}' yet, refreshing locally", resolver.getId());
+                        return false;
+                    }
+                    if (results.getLong(1) == version) {
+                        resolver.getMetrics().recordSkippedRefresh();
+                        log.debug("The shared snapshot for '{}' is unchanged, version {}", resolver.getId(), 
+                                version);
+                        return true;
+                    }
+                }
+            }
+            try (final PreparedStatement statement = resolver.prepareStatement(connection, "SELECT " 
+                    + COLUMN_ID_VERSION + ", " + COLUMN_ID_SNAPSHOT + select)) {
+                statement.setString(1, resolver.getId());
+                try (final ResultSet results = statement.executeQuery()) {
+                    final byte[] snapshot = results.next() ? results.getBytes(2) : null;
+                    if (snapshot == null) {
+                        return false;
+                    }
+                    final long published = results.getLong(1);
+                    final List<ServiceEntry> entries = ServiceSnapshotCodec.fromCompressedBytes(snapshot);
+                    resolver.installSharedEntries(entries, snapshot.length);
+                    version = published;
+                    log.info("Installed {} services for '{}' from the shared snapshot version {}", entries.size(),
+                            resolver.getId(), published);
+                    return true;
+                }
+            }
+        } catch (SQLException | IOException | ResolverException e) {
+            log.warn("Could not install the shared snapshot for '{}', refreshing locally", resolver.getId(), e);
+            return false;
+        }
+    }
+    
+    /**
+     * Publishes the given services as a new version of the shared snapshot, if this node still holds the lease.
+     * @param entries The services.
+     */
+    public void publish(@Nonnull final Collection<ServiceEntry> entries) {
+        try (final Connection connection = resolver.getDataSource().getConnection()) {
+            final byte[] snapshot = ServiceSnapshotCodec.toCompressedBytes(entries);
+            try (final PreparedStatement update = resolver.prepareStatement(connection, "UPDATE " + table
+                    + " SET " + COLUMN_ID_VERSION + " = " + COLUMN_ID_VERSION + " + 1, " + COLUMN_ID_SNAPSHOT 
+                    + " = ? WHERE " + COLUMN_ID_NAME + " = ? AND " + COLUMN_ID_LEASE_OWNER + " = ?")) {
+                update.setBytes(1, snapshot);
+                update.setString(2, resolver.getId());
+                update.setString(3, nodeId);
+                if (update.executeUpdate() == 0) {
+                    log.warn("The refresh lease for '{}' was lost, not publishing the snapshot", resolver.getId());
+                    return;
+                }
+            }
+            try (final PreparedStatement select = resolver.prepareStatement(connection, "SELECT " 
+                    + COLUMN_ID_VERSION + " FROM " + table + " WHERE " + COLUMN_ID_NAME + " = ?")) {
+                select.setString(1, resolver.getId());
+                try (final ResultSet results = select.executeQuery()) {
+                    if (results.next()) {
+                        version = results.getLong(1);
+                    }
+                }
+            }
+            log.debug("Published {} services for '{}' as the shared snapshot version {}, {} bytes", entries.size(),
+                    resolver.getId(), version, snapshot.length);
+        } catch (SQLException | IOException e) {
+            log.warn("Could not publish the shared snapshot for '{}'", resolver.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.google.common.base.Strings;
+
+/**
+ * Serializes DOM elements to UTF-8 encoded XML through a StAX writer.
+ * 
+ * <p>The document is written directly into a growable buffer that is reused between the calls, without building
+ * an intermediate string or a UTF-16 copy of it, and returned as a view onto the buffer instead of a copy. The
+ * buffer is shrunk back to its initial capacity once released, if it has grown beyond the maximum retained
+ * capacity. The namespace declarations are written as they appear in the DOM, and the declarations in scope from
+ * the ancestors of the serialized element are added to it. The instances are not thread-safe.</p>
+ */
+public class StreamingMetadataSerializer {
+    
+    /** The default initial capacity of the buffer: 64 kilobytes. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 64 * 1024;
+    
+    /** The default maximum capacity of the buffer retained between the calls: one megabyte. */
+    public static final int DEFAULT_MAX_RETAINED_CAPACITY = 1024 * 1024;
+    
+    /** The factory for the StAX writers. */
+    @Nonnull private final XMLOutputFactory outputFactory;
+    
+    /** The buffer reused between the calls. */
+    @Nonnull private final ReusableBuffer buffer;
+    
+    /** The initial capacity of the buffer, in bytes. */
+    private final int initialCapacity;
+    
+    /** The maximum capacity of the buffer retained between the calls, in bytes. */
+    private final int maxRetainedCapacity;
+    
+    /**
+     * Constructor using the {@link #DEFAULT_INITIAL_CAPACITY} and the {@link #DEFAULT_MAX_RETAINED_CAPACITY}.
+     */
+    public StreamingMetadataSerializer() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+    
+    /**
+     * Constructor using the {@link #DEFAULT_MAX_RETAINED_CAPACITY}.
+     * @param capacity The initial capacity of the buffer, in bytes.
+     */
+    public StreamingMetadataSerializer(final int capacity) {
+        this(capacity, Math.max(capacity, DEFAULT_MAX_RETAINED_CAPACITY));
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param capacity The initial capacity of the buffer, in bytes.
+     * @param maxRetained The maximum capacity of the buffer retained between the calls, in bytes.
+     */
+    public StreamingMetadataSerializer(final int capacity, final int maxRetained) {
+        outputFactory = XMLOutputFactory.newInstance();
+        buffer = new ReusableBuffer(capacity);
+        initialCapacity = capacity;
+        maxRetainedCapacity = Math.max(capacity, maxRetained);
+    }
+    
+    /**
+     * Serializes the given element, including an XML declaration, to UTF-8 encoded bytes. The returned contents
+     * are a view onto the reused buffer, valid until the next call to this method or to {@link #release()}.
+     * 
+     * @param element The element.
+     * @return The serialized document.
+     * @throws XMLStreamException If the element cannot be serialized.
+     */
+    @Nonnull public SerializedContents serialize(@Nonnull final Node element) throws XMLStreamException {
+        buffer.reset();
+        final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(buffer, StandardCharsets.UTF_8.name());
+        try {
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            if (element.getNodeType() == Node.ELEMENT_NODE) {
+                writeElement(writer, element, true);
+            } else {
+                writeNode(writer, element);
+            }
+            writer.writeEndDocument();
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+        return new SerializedContents(buffer.array(), buffer.size());
+    }
+    
+    /**
+     * Releases the contents of the previous call, shrinking the buffer back to its initial capacity if it has grown
+     * beyond the maximum retained capacity.
+     */
+    public void release() {
+        buffer.reset();
+        if (buffer.capacity() > maxRetainedCapacity) {
+            buffer.shrink(initialCapacity);
+        }
+    }
+    
+    /**
+     * Get the current capacity of the reused buffer.
+     * @return The current capacity of the buffer, in bytes.
+     */
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+    
+    /**
+     * Writes the given node and its descendants.
+     * 
+     * @param writer The StAX writer.
+     * @param node The node.
+     * @throws XMLStreamException If the node cannot be written.
+     */
+    private void writeNode(@Nonnull final XMLStreamWriter writer, @Nonnull final Node node)
+            throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(writer, node, false);
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writer.writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+                break;
+            default:
+                writeChildren(writer, node);
+        }
+    }
+    
+    /**
+     * Writes the given element, its namespace declarations and attributes, and its children.
+     * 
+     * @param writer The StAX writer.
+     * @param element The element.
+     * @param root Whether the element is the root of the serialized document.
+     * @throws XMLStreamException If the element cannot be written.
+     */
+    private void writeElement(@Nonnull final XMLStreamWriter writer, @Nonnull final Node element,
+            final boolean root) throws XMLStreamException {
+        writer.writeStartElement(Strings.nullToEmpty(element.getPrefix()), localName(element),
+                Strings.nullToEmpty(element.getNamespaceURI()));
+        final Map<String, String> declarations = new LinkedHashMap<>();
+        collectDeclarations(element, declarations);
+        if (root) {
+            for (Node parent = element.getParentNode(); parent != null; parent = parent.getParentNode()) {
+                if (parent.getNodeType() == Node.ELEMENT_NODE) {
+                    collectDeclarations(parent, declarations);
+                }
+            }
+        }
+        for (final Map.Entry<String, String> declaration : declarations.entrySet()) {
+            if (declaration.getKey().isEmpty()) {
+                writer.writeDefaultNamespace(declaration.getValue());
+            } else {
+                writer.writeNamespace(declaration.getKey(), declaration.getValue());
+            }
+        }
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String namespace = attribute.getNamespaceURI();
+            if (namespace == null) {
+                writer.writeAttribute(localName(attribute), attribute.getValue());
+            } else if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespace)) {
+                writer.writeAttribute(Strings.nullToEmpty(attribute.getPrefix()), namespace, localName(attribute),
+                        attribute.getValue());
+            }
+        }
+        writeChildren(writer, element);
+        writer.writeEndElement();
+    }
+    
+    /**
+     * Adds the namespace declarations of the given element to the given map, unless their prefixes are already in
+     * the map.
+     * 
+     * @param element The element.
+     * @param declarations The namespace URIs keyed by their prefixes, the default namespace by an empty string.
+     */
+    private static void collectDeclarations(@Nonnull final Node element,
+            @Nonnull final Map<String, String> declarations) {
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                final String prefix = attribute.getPrefix() == null ? "" : attribute.getLocalName();
+                if (!declarations.containsKey(prefix)) {
+                    declarations.put(prefix, attribute.getValue());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the children of the given node.
+     * 
+     * @param writer The StAX writer.
+     * @param node The node.
+     * @throws XMLStreamException If the children cannot be written.
+     */
+    private void writeChildren(@Nonnull final XMLStreamWriter writer, @Nonnull final Node node)
+            throws XMLStreamException {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            writeNode(writer, child);
+        }
+    }
+    
+    /**
+     * Get the local name of the given node, falling back to the node name for the nodes without namespace support.
+     * 
+     * @param node The node.
+     * @return The local name of the node.
+     */
+    private static String localName(@Nonnull final Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+    
+    /**
+     * A byte array output stream that keeps its grown array between the uses.
+     */
+    private static final class ReusableBuffer extends ByteArrayOutputStream {
+        
+        /**
+         * Constructor.
+         * @param initialCapacity The initial capacity, in bytes.
+         */
+        private ReusableBuffer(final int initialCapacity) {
+            super(initialCapacity);
+        }
+        
+        /**
+         * Get the current capacity.
+         * @return The current capacity, in bytes.
+         */
+        private int capacity() {
+            return buf.length;
+        }
+        
+        /**
+         * Get the internal array, valid until the buffer is written, reset or shrunk.
+         * @return The internal array.
+         */
+        @Nonnull private byte[] array() {
+            return buf;
+        }
+        
+        /**
+         * Replaces the internal array with an empty one of the given capacity.
+         * @param capacity The new capacity, in bytes.
+         */
+        private void shrink(final int capacity) {
+            buf = new byte[capacity];
+            count = 0;
+        }
+    }
+    
+    /**
+     * A read-only view onto the serialized document in the reused buffer.
+     */
+    public static final class SerializedContents {
+        
+        /** The buffer containing the document. */
+        @Nonnull private final byte[] bytes;
+        
+        /** The length of the document, in bytes. */
+        private final int length;
+        
+        /**
+         * Constructor.
+         * 
+         * @param buffer The buffer containing the document.
+         * @param size The length of the document, in bytes.
+         */
+        private SerializedContents(@Nonnull final byte[] buffer, final int size) {
+            bytes = buffer;
+            length = size;
+        }
+        
+        /**
+         * Get the length of the document.
+         * @return The length of the document, in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+        
+        /**
+         * Get a stream over the document, without copying it.
+         * @return The stream over the document.
+         */
+        @Nonnull public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+    }
+}
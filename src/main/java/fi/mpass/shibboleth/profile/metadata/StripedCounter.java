@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A counter striped over cells on separate cache lines, for the counters incremented by many threads at once. The
+ * threads are spread over the cells by their identifiers, so that concurrent increments rarely contend for the same
+ * cell or share a cache line with another cell. Reading the value sums the cells, and is not atomic with respect
+ * to concurrent increments.
+ */
+public class StripedCounter {
+    
+    /** The distance between two cells, in slots, keeping each cell on a separate cache line. */
+    private static final int CELL_SPACING = 16;
+    
+    /** The cells, one slot out of {@link #CELL_SPACING}, starting from the second spacing. */
+    @Nonnull private final AtomicLongArray cells;
+    
+    /** The mask for selecting a cell, the number of the cells minus one. */
+    private final int mask;
+    
+    /** Constructor. */
+    public StripedCounter() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = Integer.highestOneBit(processors);
+        if (stripes < processors) {
+            stripes <<= 1;
+        }
+        cells = new AtomicLongArray((stripes + 1) * CELL_SPACING);
+        mask = stripes - 1;
+    }
+    
+    /**
+     * Increments the counter by one.
+     * 
+     * @return The updated value of the cell of the current thread, not of the counter.
+     */
+    public long increment() {
+        return cells.incrementAndGet((((int) Thread.currentThread().getId() & mask) + 1) * CELL_SPACING);
+    }
+    
+    /**
+     * Get the sum of the cells.
+     * 
+     * @return The value of the counter.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int cell = 1; cell <= mask + 1; cell++) {
+            sum += cells.get(cell * CELL_SPACING);
+        }
+        return sum;
+    }
+}
@@ -34,6 +34,7 @@ import org.springframework.beans.factory.xml.ParserContext;
 import org.w3c.dom.Element;
 
 import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver;
+import fi.mpass.shibboleth.profile.metadata.QueryMetadataChangeProbe;
 import net.shibboleth.idp.profile.spring.relyingparty.metadata.impl.AbstractReloadingMetadataProviderParser;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
@@ -71,5 +72,102 @@ public class DataSourceMetadataProviderParser extends AbstractReloadingMetadataP
             throw new BeanDefinitionParsingException(new Problem("dataSource configuration not found",
                     new Location(parserContext.getReaderContext().getResource())));
         }
+        
+        if (element.hasAttributeNS(null, "directBuild")) {
+            builder.addPropertyValue("directBuild",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "directBuild")));
+        }
+        if (element.hasAttributeNS(null, "deltaRefresh")) {
+            builder.addPropertyValue("deltaRefresh",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "deltaRefresh")));
+        }
+        if (element.hasAttributeNS(null, "fullRefreshInterval")) {
+            builder.addPropertyValue("fullRefreshInterval",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "fullRefreshInterval")));
+        }
+        
+        ServiceTableMappingParserSupport.parseMapping(element, parserContext, builder);
+        
+        if (element.hasAttributeNS(null, "fetchSize")) {
+            builder.addPropertyValue("fetchSize",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "fetchSize")));
+        }
+        if (element.hasAttributeNS(null, "cursorType")) {
+            builder.addPropertyValue("cursorType",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "cursorType")));
+        }
+        if (element.hasAttributeNS(null, "fetchParallelism")) {
+            builder.addPropertyValue("fetchParallelism",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "fetchParallelism")));
+        }
+        if (element.hasAttributeNS(null, "queryTimeout")) {
+            builder.addPropertyValue("queryTimeout",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "queryTimeout")));
+        }
+        if (element.hasAttributeNS(null, "compactStore")) {
+            builder.addPropertyValue("compactStore",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "compactStore")));
+        }
+        if (element.hasAttributeNS(null, "compactCacheSize")) {
+            builder.addPropertyValue("compactCacheSize",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "compactCacheSize")));
+        }
+        
+        ServiceTableMappingParserSupport.parseIdentifier(element, parserContext, builder, "changeLogTable");
+        if (element.hasAttributeNS(null, "changeLogPollInterval")) {
+            builder.addPropertyValue("changeLogPollInterval",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "changeLogPollInterval")));
+        }
+        if (element.hasAttributeNS(null, "changeLogDebounce")) {
+            builder.addPropertyValue("changeLogDebounce",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "changeLogDebounce")));
+        }
+        if (element.hasAttributeNS(null, "purgeChangeLog")) {
+            builder.addPropertyValue("purgeChangeLog",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "purgeChangeLog")));
+        }
+        
+        ServiceTableMappingParserSupport.parseIdentifier(element, parserContext, builder,
+                "sharedSnapshotTable");
+        if (element.hasAttributeNS(null, "nodeId")) {
+            builder.addPropertyValue("nodeId",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "nodeId")));
+        }
+        if (element.hasAttributeNS(null, "leaseDuration")) {
+            builder.addPropertyValue("leaseDuration",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "leaseDuration")));
+        }
+        
+        if (element.hasAttributeNS(null, "snapshotFile")) {
+            builder.addPropertyValue("snapshotFile",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "snapshotFile")));
+        }
+        if (element.hasAttributeNS(null, "registerMBean")) {
+            builder.addPropertyValue("registerMBean",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "registerMBean")));
+        }
+        
+        if (element.hasAttributeNS(null, "changeProbeRef")) {
+            builder.addPropertyReference("changeProbe",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "changeProbeRef")));
+        } else if (element.hasAttributeNS(null, "changeProbeQuery")) {
+            final String query = StringSupport.trimOrNull(element.getAttributeNS(null, "changeProbeQuery"));
+            if (query != null) {
+                final BeanDefinitionBuilder probe = 
+                        BeanDefinitionBuilder.genericBeanDefinition(QueryMetadataChangeProbe.class);
+                probe.addConstructorArgValue(query);
+                builder.addPropertyValue("changeProbe", probe.getBeanDefinition());
+            } else {
+                builder.addPropertyValue("defaultChangeProbe", Boolean.TRUE);
+            }
+        }
+        if (element.hasAttributeNS(null, "maxSkippedRefreshes")) {
+            builder.addPropertyValue("maxSkippedRefreshes",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "maxSkippedRefreshes")));
+        }
+        if (element.hasAttributeNS(null, "maxSkipInterval")) {
+            builder.addPropertyValue("maxSkipInterval",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, "maxSkipInterval")));
+        }
     }
 }
@@ -33,5 +33,7 @@ public class MetadataNamespaceHandler extends BaseSpringNamespaceHandler {
     @Override public void init() {
         registerBeanDefinitionParser(DataSourceMetadataProviderParser.ELEMENT_NAME, 
                 new DataSourceMetadataProviderParser());
+        registerBeanDefinitionParser(DynamicDataSourceMetadataProviderParser.ELEMENT_NAME, 
+                new DynamicDataSourceMetadataProviderParser());
     }
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata.spring;
+
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.parsing.BeanDefinitionParsingException;
+import org.springframework.beans.factory.parsing.Location;
+import org.springframework.beans.factory.parsing.Problem;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+
+import fi.mpass.shibboleth.profile.metadata.ServiceTableMapping;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * Parsing support for the services table mapping attributes shared by the metadata provider parsers in
+ * <code>urn:mpassid:shib3:metadata</code>.
+ */
+public final class ServiceTableMappingParserSupport {
+    
+    /** The attributes for the table and column names of the mapping. */
+    private static final String[] IDENTIFIER_ATTRIBUTES = { "servicesTable", "idColumn", "entityIdColumn", 
+        "acsUrlColumn", "startTimeColumn", "endTimeColumn", "signingCertificateColumn", 
+        "encryptionCertificateColumn", "lastModifiedColumn", "endpointTable", };
+    
+    /** The attribute for the predicate of the mapping. */
+    private static final String PREDICATE_ATTRIBUTE = "wherePredicate";
+    
+    /** The attribute for the reference to a shared mapping bean. */
+    private static final String MAPPING_REF_ATTRIBUTE = "mappingRef";
+    
+    /** Constructor. */
+    private ServiceTableMappingParserSupport() {
+        // no instances
+    }
+
+    /**
+     * Adds the mapping of the services table to the bean definition, either as a reference to a shared
+     * {@link ServiceTableMapping} bean or from the table, column and predicate attributes. The two cannot be
+     * combined, as the attributes would modify the shared mapping.
+     * 
+     * @param element The configuration element.
+     * @param parserContext The parser context.
+     * @param builder The bean definition builder.
+     */
+    public static void parseMapping(final Element element, final ParserContext parserContext,
+            final BeanDefinitionBuilder builder) {
+        if (element.hasAttributeNS(null, MAPPING_REF_ATTRIBUTE)) {
+            for (final String attribute : IDENTIFIER_ATTRIBUTES) {
+                if (element.hasAttributeNS(null, attribute)) {
+                    throw invalidAttribute(parserContext, attribute, "cannot be combined with " 
+                            + MAPPING_REF_ATTRIBUTE);
+                }
+            }
+            if (element.hasAttributeNS(null, PREDICATE_ATTRIBUTE)) {
+                throw invalidAttribute(parserContext, PREDICATE_ATTRIBUTE, "cannot be combined with " 
+                        + MAPPING_REF_ATTRIBUTE);
+            }
+            builder.addPropertyReference("mapping",
+                    StringSupport.trimOrNull(element.getAttributeNS(null, MAPPING_REF_ATTRIBUTE)));
+            return;
+        }
+        for (final String attribute : IDENTIFIER_ATTRIBUTES) {
+            parseIdentifier(element, parserContext, builder, attribute);
+        }
+        if (element.hasAttributeNS(null, PREDICATE_ATTRIBUTE)) {
+            final String predicate = StringSupport.trimOrNull(element.getAttributeNS(null, PREDICATE_ATTRIBUTE));
+            if (predicate != null && !ServiceTableMapping.isValidPredicate(predicate)) {
+                throw invalidAttribute(parserContext, PREDICATE_ATTRIBUTE, predicate);
+            }
+            builder.addPropertyValue(PREDICATE_ATTRIBUTE, predicate);
+        }
+    }
+    
+    /**
+     * Adds the table or column name from the given attribute to the bean definition, if the attribute exists.
+     * 
+     * @param element The configuration element.
+     * @param parserContext The parser context.
+     * @param builder The bean definition builder.
+     * @param attribute The name of the attribute and the property.
+     */
+    public static void parseIdentifier(final Element element, final ParserContext parserContext,
+            final BeanDefinitionBuilder builder, final String attribute) {
+        if (element.hasAttributeNS(null, attribute)) {
+            final String identifier = StringSupport.trimOrNull(element.getAttributeNS(null, attribute));
+            if (identifier != null && !ServiceTableMapping.isValidIdentifier(identifier)) {
+                throw invalidAttribute(parserContext, attribute, identifier);
+            }
+            builder.addPropertyValue(attribute, identifier);
+        }
+    }
+    
+    /**
+     * Logs and builds the exception for an invalid attribute value.
+     * 
+     * @param parserContext The parser context.
+     * @param attribute The name of the attribute.
+     * @param value The invalid value.
+     * @return The exception to be thrown.
+     */
+    public static BeanDefinitionParsingException invalidAttribute(final ParserContext parserContext,
+            final String attribute, final String value) {
+        LoggerFactory.getLogger(ServiceTableMappingParserSupport.class).error("{}: invalid {} configuration: {}",
+                parserContext.getReaderContext().getResource().getDescription(), attribute, value);
+        return new BeanDefinitionParsingException(new Problem("invalid " + attribute + " configuration",
+                new Location(parserContext.getReaderContext().getResource())));
+    }
+}
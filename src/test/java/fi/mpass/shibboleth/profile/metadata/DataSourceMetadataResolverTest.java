@@ -22,28 +22,78 @@
  */
 package fi.mpass.shibboleth.profile.metadata;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.security.cert.X509Certificate;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.hsqldb.jdbc.JDBCDataSource;
 import org.opensaml.core.OpenSAMLInitBaseTestCase;
 import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.criterion.BindingCriterion;
+import org.opensaml.saml.criterion.EndpointCriterion;
+import org.opensaml.saml.criterion.EntityRoleCriterion;
+import org.opensaml.saml.criterion.ProtocolCriterion;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
 import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.impl.AssertionConsumerServiceBuilder;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCriterion;
+import org.opensaml.xmlsec.keyinfo.impl.BasicProviderKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.KeyInfoProvider;
 import org.springframework.context.support.GenericApplicationContext;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import com.google.common.io.ByteStreams;
 
 import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolver;
+import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolverMetrics.RefreshPhase;
+import fi.mpass.shibboleth.profile.metadata.DataSourceMetadataResolverMetrics.ResolveType;
+import fi.mpass.shibboleth.profile.metadata.StreamingMetadataSerializer.SerializedContents;
 import net.shibboleth.ext.spring.config.IdentifiableBeanPostProcessor;
 import net.shibboleth.ext.spring.util.SchemaTypeAwareXMLBeanDefinitionReader;
 import net.shibboleth.idp.saml.metadata.RelyingPartyMetadataProvider;
 import net.shibboleth.idp.testing.DatabaseTestingSupport;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 
 /**
@@ -109,6 +159,985 @@ public class DataSourceMetadataResolverTest extends OpenSAMLInitBaseTestCase {
         assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
     }
     
+    @Test
+    public void testStreamingFetch() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        resolver.setFetchSize(1);
+        insertService(resolver, entityId, acsUrl);
+        insertService(resolver, entityId2, acsUrl2);
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+    }
+
+    @Test
+    public void testDirectBuild() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        resolver.setDirectBuild(true);
+        insertService(resolver, entityId, acsUrl);
+        insertService(resolver, entityId2, acsUrl2);
+        assertExpected(resolver.resolve(criteriaFor(entityId2)).iterator(), 1, new String[] { entityId2 }, new String[] { acsUrl2 });
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+    }
+
+    @Test
+    public void testDeltaRefresh() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        executeUpdate(resolver, "ALTER TABLE mpass_services ADD COLUMN updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP");
+        resolver.setLastModifiedColumn("updated");
+        resolver.setDeltaRefresh(true);
+        insertService(resolver, entityId, acsUrl);
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        insertService(resolver, entityId2, acsUrl2);
+        assertExpected(resolver.resolve(criteriaFor(entityId2)).iterator(), 1, new String[] { entityId2 }, new String[] { acsUrl2 });
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+        final long version = resolver.getBackingStoreVersion();
+        resolver.refresh();
+        Assert.assertEquals(resolver.getBackingStoreVersion(), version);
+        executeUpdate(resolver, "UPDATE mpass_services SET endTime = startTime, updated = CURRENT_TIMESTAMP + "
+                + "INTERVAL '1' SECOND WHERE samlEntityId = '" + entityId + "'");
+        executeUpdate(resolver, "UPDATE mpass_services SET samlAcsUrl = '" + acsUrl2 + "/updated', updated = "
+                + "CURRENT_TIMESTAMP + INTERVAL '1' SECOND WHERE samlEntityId = '" + entityId2 + "'");
+        resolver.refresh();
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId2 },
+                new String[] { acsUrl2 + "/updated" });
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+    }
+
+    @Test
+    public void testDeltaRefreshFullReload() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        final ManualClock clock = new ManualClock(System.currentTimeMillis() + 60000);
+        executeUpdate(resolver, "ALTER TABLE mpass_services ADD COLUMN updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP");
+        resolver.setClock(clock);
+        resolver.setLastModifiedColumn("updated");
+        resolver.setDeltaRefresh(true);
+        insertService(resolver, entityId, acsUrl);
+        insertService(resolver, entityId2, acsUrl2);
+        executeUpdate(resolver, "DELETE FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+        resolver.refresh();
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+        clock.advance(resolver.getFullRefreshInterval());
+        resolver.refresh();
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId2 }, new String[] { acsUrl2 });
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+    }
+
+    @Test
+    public void testChangeProbe() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        resolver.setChangeProbe(new QueryMetadataChangeProbe(resolver.getMapping()));
+        insertService(resolver, entityId, acsUrl);
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 0);
+        resolver.refresh();
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 1);
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        insertService(resolver, entityId2, acsUrl2);
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 1);
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+        resolver.setMaxSkippedRefreshes(1);
+        resolver.refresh();
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 2);
+        resolver.refresh();
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 2);
+        resolver.refresh();
+        Assert.assertEquals(resolver.getSkippedRefreshCount(), 3);
+    }
+
+    @Test
+    public void testEndedService() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        final long now = System.currentTimeMillis();
+        insertService(resolver, entityId, acsUrl, new Timestamp(now - 2000), new Timestamp(now - 1000));
+        insertService(resolver, entityId2, acsUrl2);
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId2 }, new String[] { acsUrl2 });
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+    }
+
+    @Test
+    public void testSerializedActivation() throws Exception {
+        final long now = System.currentTimeMillis();
+        final ManualClock clock = new ManualClock(now);
+        resolver.setClock(clock);
+        resolver.setChangeProbe(new QueryMetadataChangeProbe(resolver.getMapping()));
+        insertService(resolver, entityId, acsUrl, new Timestamp(now - 1000), new Timestamp(now + 1000));
+        resolver.refresh();
+        final long refreshes = resolver.getMetrics().getRefreshCount();
+        assertExpected(resolver.resolve(criteriaFor(entityId)).iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        clock.advance(1100);
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+        Assert.assertEquals(resolver.getMetrics().getRefreshCount(), refreshes);
+    }
+
+    @Test
+    public void testActivationWindow() throws Exception {
+        resolver.setDirectBuild(true);
+        final long now = System.currentTimeMillis();
+        final ManualClock clock = new ManualClock(now);
+        resolver.setClock(clock);
+        insertService(resolver, entityId, acsUrl, new Timestamp(now + 500), new Timestamp(now + 1000));
+        resolver.refresh();
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+        clock.advance(600);
+        assertExpected(resolver.resolve(criteriaFor(entityId)).iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        clock.advance(500);
+        waitForServices(resolver, 0);
+        Assert.assertFalse(resolver.resolve(criteriaFor(entityId)).iterator().hasNext());
+    }
+
+    @Test
+    public void testMultipleEndpoints() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        resolver.setEndpointTable(DataSourceMetadataResolver.TABLE_NAME_ENDPOINTS);
+        insertService(resolver, entityId, acsUrl);
+        insertService(resolver, entityId2, acsUrl2);
+        executeUpdate(resolver, "INSERT INTO mpass_service_endpoints (serviceId, binding, location, endpointIndex, isDefault)"
+                + " SELECT id, '" + SAMLConstants.SAML2_ARTIFACT_BINDING_URI + "', '" + acsUrl + "/artifact', 2, FALSE"
+                + " FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+        executeUpdate(resolver, "INSERT INTO mpass_service_endpoints (serviceId, binding, location, endpointIndex, isDefault)"
+                + " SELECT id, '" + SAMLConstants.SAML2_POST_BINDING_URI + "', '" + acsUrl + "', 1, TRUE"
+                + " FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+        resolver.refresh();
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 }, new String[] { acsUrl, acsUrl2 });
+        final List<AssertionConsumerService> endpoints = resolver.resolveSingle(criteriaFor(entityId))
+                .getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices();
+        Assert.assertEquals(endpoints.size(), 2);
+        Assert.assertTrue(endpoints.get(0).isDefault());
+        Assert.assertEquals(endpoints.get(1).getBinding(), SAMLConstants.SAML2_ARTIFACT_BINDING_URI);
+        Assert.assertEquals(endpoints.get(1).getLocation(), acsUrl + "/artifact");
+        Assert.assertEquals(endpoints.get(1).getIndex(), Integer.valueOf(2));
+        Assert.assertFalse(endpoints.get(1).isDefault());
+        Assert.assertEquals(resolver.resolveSingle(criteriaFor(entityId2))
+                .getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices().size(), 1);
+        
+        final long[] fingerprint = queryLongs(resolver, resolver.getMapping().getFingerprintQuery());
+        Assert.assertEquals(fingerprint[0], 2);
+        resolver.setWherePredicate("e." + ServiceEntryAssembler.COLUMN_ID_BINDING + " = '"
+                + SAMLConstants.SAML2_ARTIFACT_BINDING_URI + "'");
+        final long[] range = queryLongs(resolver, resolver.getMapping().getRangeQuery());
+        Assert.assertEquals(range[0], range[1]);
+        Assert.assertEquals(range[0], fingerprint[1]);
+        Assert.assertEquals(queryLongs(resolver, resolver.getMapping().getFingerprintQuery())[0], 1);
+    }
+
+    @Test
+    public void testAllEntitiesView() throws Exception {
+        insertService(resolver, entityId, acsUrl);
+        final long version = resolver.getBackingStoreVersion();
+        final Iterable<EntityDescriptor> all = resolver.resolve(new CriteriaSet());
+        Assert.assertSame(resolver.resolve(new CriteriaSet()), all);
+        try {
+            ((List<EntityDescriptor>) all).clear();
+            Assert.fail("The view of all the entities must be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        insertService(resolver, entityId + "2", acsUrl + "2");
+        Assert.assertTrue(resolver.getBackingStoreVersion() > version);
+        assertExpected(all.iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        assertExpected(resolver.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId + "2" },
+                new String[] { acsUrl, acsUrl + "2" });
+    }
+    
+    @Test
+    public void testCriteriaIndexes() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        resolver.setEndpointTable(DataSourceMetadataResolver.TABLE_NAME_ENDPOINTS);
+        insertService(resolver, entityId, acsUrl);
+        insertService(resolver, entityId2, acsUrl2);
+        executeUpdate(resolver, "INSERT INTO mpass_service_endpoints (serviceId, binding, location, endpointIndex, isDefault)"
+                + " SELECT id, '" + SAMLConstants.SAML2_ARTIFACT_BINDING_URI + "', '" + acsUrl + "/artifact', 2, FALSE"
+                + " FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+        executeUpdate(resolver, "INSERT INTO mpass_service_endpoints (serviceId, binding, location, endpointIndex, isDefault)"
+                + " SELECT id, '" + SAMLConstants.SAML2_POST_BINDING_URI + "', '" + acsUrl + "', 1, TRUE"
+                + " FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+        resolver.refresh();
+        final CriteriaSet spCriteria = new CriteriaSet(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+        assertExpected(resolver.resolve(spCriteria).iterator(), 2, new String[] { entityId, entityId2 },
+                new String[] { acsUrl, acsUrl2 });
+        Assert.assertFalse(resolver.resolve(new CriteriaSet(
+                new EntityRoleCriterion(IDPSSODescriptor.DEFAULT_ELEMENT_NAME))).iterator().hasNext());
+        assertExpected(resolver.resolve(new CriteriaSet(new ProtocolCriterion(SAMLConstants.SAML20P_NS))).iterator(),
+                2, new String[] { entityId, entityId2 },
+                new String[] { acsUrl, acsUrl2 });
+        final CriteriaSet artifactCriteria = new CriteriaSet(
+                new BindingCriterion(Collections.singletonList(SAMLConstants.SAML2_ARTIFACT_BINDING_URI)));
+        assertExpected(resolver.resolve(artifactCriteria).iterator(), 1, new String[] { entityId }, new String[] { acsUrl });
+        final AssertionConsumerService endpoint = new AssertionConsumerServiceBuilder().buildObject();
+        endpoint.setLocation(acsUrl2);
+        final CriteriaSet endpointCriteria = new CriteriaSet(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME),
+                new EndpointCriterion<>(endpoint));
+        assertExpected(resolver.resolve(endpointCriteria).iterator(), 1, new String[] { entityId2 }, new String[] { acsUrl2 });
+        artifactCriteria.add(new EntityIdCriterion(entityId2));
+        Assert.assertFalse(resolver.resolve(artifactCriteria).iterator().hasNext());
+    }
+    
+    @Test
+    public void testRoleProtocolIndex() throws Exception {
+        final EntityDescriptor entity = 
+                (EntityDescriptor) XMLObjectSupport.buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        entity.setEntityID(entityId);
+        final SPSSODescriptor sp = 
+                (SPSSODescriptor) XMLObjectSupport.buildXMLObject(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        sp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        entity.getRoleDescriptors().add(sp);
+        final IDPSSODescriptor idp = 
+                (IDPSSODescriptor) XMLObjectSupport.buildXMLObject(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML11P_NS);
+        entity.getRoleDescriptors().add(idp);
+        final EntityCriteriaIndex index = new EntityCriteriaIndex(Collections.singletonList(entity));
+        Assert.assertEquals(index.resolve(new CriteriaSet(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME),
+                new ProtocolCriterion(SAMLConstants.SAML20P_NS))).size(), 1);
+        Assert.assertTrue(index.resolve(new CriteriaSet(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME),
+                new ProtocolCriterion(SAMLConstants.SAML11P_NS))).isEmpty());
+        Assert.assertEquals(index.resolve(new CriteriaSet(new ProtocolCriterion(SAMLConstants.SAML11P_NS))).size(), 1);
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        final DataSourceMetadataResolverMetrics metrics = resolver.getMetrics();
+        final long refreshes = metrics.getRefreshCount();
+        insertService(resolver, entityId, acsUrl);
+        Assert.assertEquals(metrics.getRefreshCount(), refreshes + 1);
+        Assert.assertTrue(metrics.getLastSuccessfulRefreshTime() > 0);
+        Assert.assertEquals(metrics.getLastRowsFetched(), 1);
+        Assert.assertTrue(metrics.getLastMetadataByteSize() > 0);
+        Assert.assertTrue(metrics.getRefreshPhaseDurations().get(RefreshPhase.MARSHAL.name()).getCount() > 0);
+        Assert.assertTrue(metrics.getRefreshPhaseDurations().get(RefreshPhase.PARSE.name()).getCount() > 0);
+        resolver.resolve(criteriaFor(entityId));
+        resolver.resolve(criteriaFor(entityId + "2"));
+        resolver.resolve(new CriteriaSet());
+        Assert.assertEquals(metrics.getResolveCounts().get(ResolveType.ENTITY_ID.name()), Long.valueOf(2));
+        Assert.assertEquals(metrics.getResolveHitCounts().get(ResolveType.ENTITY_ID.name()), Long.valueOf(1));
+        Assert.assertEquals(metrics.getResolveCounts().get(ResolveType.ALL.name()), Long.valueOf(1));
+        Assert.assertEquals(metrics.getResolveHitCounts().get(ResolveType.ALL.name()), Long.valueOf(1));
+        final long failures = metrics.getRefreshFailureCount();
+        resolver.setEndpointTable("mpass_missing_endpoints");
+        resolver.refresh();
+        Assert.assertEquals(metrics.getRefreshFailureCount(), failures + 1);
+        Assert.assertTrue(metrics.getLastFailedRefreshTime() > 0);
+    }
+    
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        final DataSourceMetadataResolver registered = new DataSourceMetadataResolver(resolver.getDataSource());
+        registered.setId("mbeanTest");
+        registered.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        registered.setDirectBuild(true);
+        registered.setRegisterMBean(true);
+        registered.initialize();
+        final ObjectName name = new ObjectName(DataSourceMetadataResolver.MBEAN_DOMAIN 
+                + ":type=DataSourceMetadataResolver,name=\"mbeanTest\"");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            Assert.assertTrue(server.isRegistered(name));
+            Assert.assertEquals(server.getAttribute(name, "RefreshCount"), Long.valueOf(1));
+            for (int i = 0; i < DataSourceMetadataResolverMetrics.RESOLVE_SAMPLE_INTERVAL; i++) {
+                registered.resolve(criteriaFor(entityId));
+            }
+            final Object latencies = server.getAttribute(name, "ResolveLatencies");
+            Assert.assertTrue(latencies instanceof TabularData);
+            final CompositeData latency = (CompositeData) ((TabularData) latencies)
+                    .get(new Object[] { ResolveType.ENTITY_ID.name() }).get("value");
+            Assert.assertEquals(latency.get("count"), Long.valueOf(1));
+            Assert.assertTrue(latency.get("bucketCounts") instanceof long[]);
+            final Object phases = server.getAttribute(name, "RefreshPhaseDurations");
+            Assert.assertTrue(phases instanceof TabularData);
+            Assert.assertNotNull(((TabularData) phases).get(new Object[] { RefreshPhase.BUILD.name() }));
+            final TabularData counts = (TabularData) server.getAttribute(name, "ResolveCounts");
+            Assert.assertEquals(counts.get(new Object[] { ResolveType.ENTITY_ID.name() }).get("value"), 
+                    Long.valueOf(DataSourceMetadataResolverMetrics.RESOLVE_SAMPLE_INTERVAL));
+        } finally {
+            registered.destroy();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final File snapshot = File.createTempFile("mpass-services", ".snapshot");
+        snapshot.delete();
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        try {
+            final DataSourceMetadataResolver writer = new DataSourceMetadataResolver(resolver.getDataSource());
+            writer.setId("snapshotWriter");
+            writer.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+            writer.setSnapshotFile(snapshot.getAbsolutePath());
+            writer.initialize();
+            Assert.assertTrue(snapshot.exists());
+            insertService(writer, entityId, acsUrl);
+            final long ended = System.currentTimeMillis() + 60000;
+            insertService(writer, entityId2, acsUrl2, new Timestamp(0), new Timestamp(ended));
+            writer.refresh();
+            writer.destroy();
+            
+            final JDBCDataSource unreachable = new JDBCDataSource();
+            unreachable.setUrl("jdbc:hsqldb:mem:unreachable");
+            final DataSourceMetadataResolver reader = new DataSourceMetadataResolver(unreachable);
+            reader.setId("snapshotReader");
+            reader.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+            reader.setSnapshotFile(snapshot.getAbsolutePath());
+            reader.setFailFastInitialization(true);
+            final ManualClock clock = new ManualClock(System.currentTimeMillis());
+            reader.setClock(clock);
+            reader.initialize();
+            try {
+                assertExpected(reader.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 },
+                        new String[] { acsUrl, acsUrl2 });
+                Assert.assertTrue(reader.getMetrics().getRefreshCount() >= 1);
+                Assert.assertNotNull(reader.getLastRefresh());
+                waitForRefreshes(reader, 2);
+                Assert.assertEquals(reader.getMetrics().getRefreshFailureCount(), 1);
+                Assert.assertNotNull(reader.resolveSingle(criteriaFor(entityId)));
+                clock.advance(ended + 100 - clock.currentTimeMillis());
+                Assert.assertNull(reader.resolveSingle(criteriaFor(entityId2)));
+            } finally {
+                reader.destroy();
+            }
+        } finally {
+            snapshot.delete();
+        }
+    }
+    
+    @Test
+    public void testChangeLog() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        createChangeLog(resolver);
+        final DataSourceMetadataResolver notified = new DataSourceMetadataResolver(resolver.getDataSource());
+        notified.setId("changeLogTest");
+        notified.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        notified.setDirectBuild(true);
+        notified.setChangeLogTable("mpass_service_changes");
+        notified.setChangeLogPollInterval(20);
+        notified.setChangeLogDebounce(50);
+        try {
+            insertService(notified, entityId, acsUrl, new Timestamp(0), null);
+            notified.initialize();
+            assertExpected(notified.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId }, 
+                    new String[] { acsUrl });
+            insertService(notified, entityId2, acsUrl2, new Timestamp(0), null);
+            waitForServices(notified, 2);
+            executeUpdate(notified, "UPDATE mpass_services SET samlAcsUrl = '" + acsUrl2 + "/updated' WHERE "
+                    + "samlEntityId = '" + entityId2 + "'");
+            waitForAcsUrl(notified, entityId2, acsUrl2 + "/updated");
+            executeUpdate(notified, "DELETE FROM mpass_services WHERE samlEntityId = '" + entityId + "'");
+            waitForServices(notified, 1);
+            Assert.assertNotNull(notified.resolveSingle(criteriaFor(entityId2)));
+            Assert.assertEquals(notified.getMetrics().getRefreshCount(), 1);
+            waitForRowCount(notified, "mpass_service_changes", 0);
+        } finally {
+            notified.destroy();
+            executeUpdate(resolver, "DROP TABLE mpass_service_changes CASCADE");
+        }
+    }
+    
+    @Test
+    public void testChangeLogWithFilter() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String excluded = entityId + "/excluded";
+        createChangeLog(resolver);
+        try {
+            for (final boolean directBuild : new boolean[] { true, false }) {
+                final DataSourceMetadataResolver notified = 
+                        new DataSourceMetadataResolver(resolver.getDataSource());
+                notified.setId("changeLogWithFilterTest");
+                notified.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+                notified.setDirectBuild(directBuild);
+                notified.setChangeLogTable("mpass_service_changes");
+                notified.setChangeLogPollInterval(20);
+                notified.setChangeLogDebounce(50);
+                notified.setMetadataFilter(new MetadataFilter() {
+                    public XMLObject filter(final XMLObject metadata) throws FilterException {
+                        final Iterator<EntityDescriptor> descriptors = 
+                                ((EntitiesDescriptor) metadata).getEntityDescriptors().iterator();
+                        while (descriptors.hasNext()) {
+                            if (descriptors.next().getEntityID().equals(excluded)) {
+                                descriptors.remove();
+                            }
+                        }
+                        return metadata;
+                    }
+                });
+                try {
+                    insertService(notified, entityId, acsUrl, new Timestamp(0), null);
+                    notified.initialize();
+                    insertService(notified, excluded, acsUrl, new Timestamp(0), null);
+                    insertService(notified, entityId2, acsUrl, new Timestamp(0), null);
+                    waitForServices(notified, 2);
+                    executeUpdate(notified, "UPDATE mpass_services SET samlAcsUrl = '" + acsUrl + "/updated' WHERE "
+                            + "samlEntityId = '" + entityId2 + "'");
+                    waitForAcsUrl(notified, entityId2, acsUrl + "/updated");
+                    executeUpdate(notified, "UPDATE mpass_services SET samlAcsUrl = '" + acsUrl + "/again' WHERE "
+                            + "samlEntityId = '" + entityId + "'");
+                    waitForAcsUrl(notified, entityId, acsUrl + "/again");
+                    Assert.assertNull(notified.resolveSingle(criteriaFor(excluded)));
+                    assertExpected(notified.resolve(criteriaFor(entityId2)).iterator(), 1, 
+                            new String[] { entityId2 }, new String[] { acsUrl + "/updated" });
+                    Assert.assertEquals(notified.getMetrics().getRefreshCount(), 1);
+                } finally {
+                    notified.destroy();
+                    executeUpdate(resolver, "DELETE FROM mpass_services");
+                    executeUpdate(resolver, "DELETE FROM mpass_service_changes");
+                }
+            }
+        } finally {
+            executeUpdate(resolver, "DROP TABLE mpass_service_changes CASCADE");
+        }
+    }
+    
+    @Test
+    public void testSharedSnapshot() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        executeUpdate(resolver, "CREATE TABLE mpass_metadata_snapshots (name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "version BIGINT NOT NULL, leaseOwner VARCHAR(255), leaseExpires TIMESTAMP, snapshot VARBINARY(1000000))");
+        final DataSourceMetadataResolver leader = initializeNode("leader");
+        final DataSourceMetadataResolver follower = initializeNode("follower");
+        try {
+            insertService(leader, entityId, acsUrl);
+            Assert.assertEquals(leader.getSharedSnapshotVersion(), 2);
+            Assert.assertEquals(follower.getSharedSnapshotVersion(), 1);
+            Assert.assertFalse(follower.resolve(new CriteriaSet()).iterator().hasNext());
+            follower.refresh();
+            Assert.assertEquals(follower.getSharedSnapshotVersion(), 2);
+            assertExpected(follower.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId },
+                    new String[] { acsUrl });
+            insertService(follower, entityId2, acsUrl2);
+            Assert.assertEquals(follower.getSharedSnapshotVersion(), 2);
+            Assert.assertEquals(follower.getMetrics().getTotalRowsFetched(), 0);
+            assertExpected(follower.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId },
+                    new String[] { acsUrl });
+            leader.refresh();
+            follower.refresh();
+            assertExpected(follower.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 },
+                    new String[] { acsUrl, acsUrl2 });
+            executeUpdate(resolver, "UPDATE mpass_services SET samlAcsUrl = '" + acsUrl2 + "/updated' WHERE "
+                    + "samlEntityId = '" + entityId2 + "'");
+            leader.refreshServices(Collections.singleton(getServiceId(resolver, entityId2)));
+            Assert.assertEquals(leader.getSharedSnapshotVersion(), 4);
+            follower.refresh();
+            assertExpected(follower.resolve(new CriteriaSet()).iterator(), 2, new String[] { entityId, entityId2 },
+                    new String[] { acsUrl, acsUrl2 + "/updated" });
+        } finally {
+            leader.destroy();
+            follower.destroy();
+            executeUpdate(resolver, "DROP TABLE mpass_metadata_snapshots");
+        }
+    }
+    
+    @Test
+    public void testSharedSnapshotLease() throws Exception {
+        executeUpdate(resolver, "CREATE TABLE mpass_metadata_snapshots (name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "version BIGINT NOT NULL, leaseOwner VARCHAR(255), leaseExpires TIMESTAMP, snapshot VARBINARY(1000))");
+        executeUpdate(resolver, "CREATE TABLE mpass_broken_snapshots (name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "leaseOwner VARCHAR(255), leaseExpires TIMESTAMP)");
+        try {
+            final SharedSnapshotCoordinator first = 
+                    new SharedSnapshotCoordinator(resolver, "mpass_metadata_snapshots", "first", 60000);
+            final SharedSnapshotCoordinator second = 
+                    new SharedSnapshotCoordinator(resolver, "mpass_metadata_snapshots", "second", 60000);
+            Assert.assertEquals(first.acquireLease(), Boolean.TRUE);
+            Assert.assertEquals(second.acquireLease(), Boolean.FALSE);
+            Assert.assertEquals(first.acquireLease(), Boolean.TRUE);
+            executeUpdate(resolver, "UPDATE mpass_metadata_snapshots SET leaseExpires = "
+                    + "CURRENT_TIMESTAMP - INTERVAL '1' MINUTE");
+            Assert.assertEquals(second.acquireLease(), Boolean.TRUE);
+            Assert.assertEquals(first.acquireLease(), Boolean.FALSE);
+            Assert.assertNull(new SharedSnapshotCoordinator(resolver, "mpass_broken_snapshots", "first", 60000)
+                    .acquireLease());
+        } finally {
+            executeUpdate(resolver, "DROP TABLE mpass_metadata_snapshots");
+            executeUpdate(resolver, "DROP TABLE mpass_broken_snapshots");
+        }
+    }
+    
+    @Test
+    public void testParallelFetch() throws Exception {
+        final List<String> entityIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            entityIds.add(entityId + i);
+            insertService(resolver, entityId + i, acsUrl + i, new Timestamp(0), null);
+        }
+        resolver.refresh();
+        final DataSourceMetadataResolver parallel = new DataSourceMetadataResolver(resolver.getDataSource());
+        parallel.setId("parallelFetchTest");
+        parallel.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        parallel.setFetchParallelism(4);
+        try {
+            parallel.initialize();
+            final List<String> resolved = new ArrayList<>();
+            for (final EntityDescriptor descriptor : parallel.resolve(new CriteriaSet())) {
+                resolved.add(descriptor.getEntityID());
+            }
+            Assert.assertEquals(resolved, entityIds);
+            Assert.assertEquals(parallel.getMetrics().getTotalRowsFetched(), 10);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(parallel.resolveSingle(criteriaFor(entityId + i)), entityId + i, acsUrl + i);
+            }
+            final Iterator<EntityDescriptor> sequential = resolver.resolve(new CriteriaSet()).iterator();
+            for (final String id : resolved) {
+                Assert.assertEquals(sequential.next().getEntityID(), id);
+            }
+        } finally {
+            parallel.destroy();
+        }
+    }
+    
+    @Test
+    public void testRefreshBackoff() throws Exception {
+        final DataSourceMetadataResolver backoff = new DataSourceMetadataResolver(resolver.getDataSource());
+        backoff.setMinRefreshDelay(1000);
+        backoff.setMaxRefreshDelay(10000);
+        for (int i = 0; i < 20; i++) {
+            final long first = backoff.computeBackoffDelay(1);
+            Assert.assertTrue(first >= 500 && first <= 1000, "Unexpected delay " + first);
+            final long third = backoff.computeBackoffDelay(3);
+            Assert.assertTrue(third >= 2000 && third <= 4000, "Unexpected delay " + third);
+            final long capped = backoff.computeBackoffDelay(30);
+            Assert.assertTrue(capped >= 5000 && capped <= 10000, "Unexpected delay " + capped);
+        }
+        final long hour = 60 * 60 * 1000L;
+        final List<Integer> retries = Collections.synchronizedList(new ArrayList<Integer>());
+        final DataSourceMetadataResolver failing = new DataSourceMetadataResolver(resolver.getDataSource()) {
+            protected long computeBackoffDelay(final int failures) {
+                retries.add(failures);
+                return failures < 3 ? 20 : hour;
+            }
+        };
+        failing.setId("refreshBackoffTest");
+        failing.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        failing.setEndpointTable("mpass_missing_endpoints");
+        failing.setQueryTimeout(1000);
+        failing.setMinRefreshDelay(20);
+        failing.setMaxRefreshDelay(hour);
+        try {
+            failing.initialize();
+            waitForNextRefresh(failing, System.currentTimeMillis() + hour / 2);
+            Assert.assertEquals(retries, Arrays.asList(1, 2, 3));
+            Assert.assertEquals(failing.getMetrics().getRefreshFailureCount(), 3);
+            Assert.assertEquals(failing.getMetrics().getRefreshCount(), 3);
+        } finally {
+            failing.destroy();
+        }
+    }
+    
+    @Test
+    public void testStreamingSerializer() throws Exception {
+        final String unicodeEntityId = entityId + "/\u00e4\u00f6\u20ac";
+        insertService(resolver, unicodeEntityId, acsUrl);
+        final EntityDescriptor descriptor = resolver.resolveSingle(criteriaFor(unicodeEntityId));
+        assertEquals(descriptor, unicodeEntityId, acsUrl);
+        final StreamingMetadataSerializer serializer = new StreamingMetadataSerializer(16);
+        final Element element = XMLObjectSupport.marshall(descriptor);
+        final byte[] contents = ByteStreams.toByteArray(serializer.serialize(element).getInputStream());
+        final int capacity = serializer.getCapacity();
+        Assert.assertTrue(capacity >= contents.length);
+        Assert.assertTrue(new String(contents, StandardCharsets.UTF_8).contains(unicodeEntityId));
+        serializer.release();
+        final SerializedContents reused = serializer.serialize(element);
+        Assert.assertEquals(reused.getLength(), contents.length);
+        Assert.assertEquals(ByteStreams.toByteArray(reused.getInputStream()), contents);
+        Assert.assertEquals(serializer.getCapacity(), capacity);
+        final EntityDescriptor parsed = (EntityDescriptor) XMLObjectSupport.unmarshallFromInputStream(
+                XMLObjectProviderRegistrySupport.getParserPool(), reused.getInputStream());
+        assertEquals(parsed, unicodeEntityId, acsUrl);
+        final StreamingMetadataSerializer capped = new StreamingMetadataSerializer(16, 32);
+        Assert.assertEquals(capped.serialize(element).getLength(), contents.length);
+        Assert.assertTrue(capped.getCapacity() >= contents.length);
+        capped.release();
+        Assert.assertEquals(capped.getCapacity(), 16);
+    }
+    
+    @Test
+    public void testResolveSingleFastPath() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            insertService(resolver, entityId + i, acsUrl + i, new Timestamp(0), null);
+        }
+        resolver.refresh();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(resolver.resolveSingle(criteriaFor(new String(entityId + i))), entityId + i, acsUrl + i);
+        }
+        Assert.assertNull(resolver.resolveSingle(criteriaFor(entityId)));
+        final EntityDescriptor first = resolver.resolveSingle(criteriaFor(entityId + 0));
+        final EntityDescriptor second = resolver.resolveSingle(criteriaFor(entityId + 1));
+        final EntityIdIndex index = new EntityIdIndex(Arrays.asList(first, second, second, first));
+        Assert.assertEquals(index.size(), 2);
+        Assert.assertSame(index.get(new String(entityId + 0)), first);
+        Assert.assertSame(index.get(entityId + 1), second);
+        Assert.assertNull(EntityIdIndex.EMPTY.get(entityId));
+    }
+    
+    @Test
+    public void testResolveSingleAllocation() throws Exception {
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("The thread allocation statistics are not available");
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            throw new SkipException("The thread allocation statistics are not enabled");
+        }
+        insertService(resolver, entityId, acsUrl);
+        final CriteriaSet criteria = criteriaFor(entityId);
+        final CriteriaSet missing = criteriaFor(entityId + "/missing");
+        for (int i = 0; i < 50000; i++) {
+            resolver.resolveSingle(criteria);
+            resolver.resolveSingle(missing);
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long baselineStart = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertNotNull(criteria);
+            Assert.assertNull(null);
+        }
+        final long baseline = threads.getThreadAllocatedBytes(threadId) - baselineStart;
+        final long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertNotNull(resolver.resolveSingle(criteria));
+            Assert.assertNull(resolver.resolveSingle(missing));
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - start - baseline;
+        Assert.assertTrue(allocated < 1024, "The resolveSingle fast path allocated " + allocated + " bytes");
+    }
+    
+    @Test
+    public void testCompactStore() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            insertService(resolver, entityId + i, acsUrl + i, new Timestamp(0), null);
+        }
+        insertService(resolver, entityId + "/ended", acsUrl, new Timestamp(0), new Timestamp(1000));
+        final DataSourceMetadataResolver compact = new DataSourceMetadataResolver(resolver.getDataSource());
+        compact.setId("compactStoreTest");
+        compact.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        compact.setCompactStore(true);
+        compact.setCompactCacheSize(2);
+        try {
+            compact.initialize();
+            final CompactServiceStore store = compact.getCompactServiceStore();
+            Assert.assertNotNull(store);
+            Assert.assertEquals(store.size(), 5);
+            Assert.assertEquals(store.getCachedDescriptorCount(), 0);
+            // the shared host prefix, the six entity ID and five location suffixes and the binding
+            Assert.assertEquals(store.getStrings().size(), 13);
+            final AssertionConsumerService endpoint = new AssertionConsumerServiceBuilder().buildObject();
+            endpoint.setLocation(acsUrl + 3);
+            final Iterator<EntityDescriptor> byEndpoint = compact.resolve(new CriteriaSet(
+                    new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME),
+                    new EndpointCriterion<>(endpoint))).iterator();
+            Assert.assertEquals(byEndpoint.next().getEntityID(), entityId + 3);
+            Assert.assertFalse(byEndpoint.hasNext());
+            Assert.assertEquals(store.getCachedDescriptorCount(), 1);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(compact.resolveSingle(criteriaFor(new String(entityId + i))), entityId + i, acsUrl + i);
+            }
+            Assert.assertNull(compact.resolveSingle(criteriaFor(entityId)));
+            Assert.assertNull(compact.resolveSingle(criteriaFor(entityId + "/ended")));
+            Assert.assertTrue(store.getCachedDescriptorCount() <= 2);
+            final Iterator<EntityDescriptor> all = compact.resolve(new CriteriaSet()).iterator();
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(all.next().getEntityID(), entityId + i);
+            }
+            Assert.assertFalse(all.hasNext());
+            final List<EntityDescriptor> sps = new ArrayList<>();
+            for (final EntityDescriptor descriptor : compact.resolve(
+                    new CriteriaSet(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME)))) {
+                sps.add(descriptor);
+            }
+            Assert.assertEquals(sps.size(), 5);
+            Assert.assertTrue(store.getCachedDescriptorCount() <= 2);
+            Assert.assertEquals(compact.resolve(criteriaFor(entityId + 3)).iterator().next().getEntityID(),
+                    entityId + 3);
+        } finally {
+            compact.destroy();
+        }
+    }
+
+    @Test
+    public void testCompactStoreIncrementalModes() throws Exception {
+        for (final boolean deltaRefresh : new boolean[] { true, false }) {
+            final DataSourceMetadataResolver compact = new DataSourceMetadataResolver(resolver.getDataSource());
+            compact.setId("compactStoreIncrementalTest");
+            compact.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+            compact.setCompactStore(true);
+            if (deltaRefresh) {
+                compact.setDeltaRefresh(true);
+                compact.setLastModifiedColumn("lastModified");
+            } else {
+                compact.setChangeLogTable("mpass_service_changes");
+            }
+            try {
+                compact.initialize();
+                Assert.fail("The compact store was combined with an incremental mode");
+            } catch (ComponentInitializationException e) {
+                Assert.assertTrue(e.getMessage().contains("compact store"));
+            } finally {
+                compact.destroy();
+            }
+        }
+    }
+    
+    @Test
+    public void testCompactStoreReregistered() throws Exception {
+        insertService(resolver, entityId, acsUrl + "/ended", new Timestamp(0), new Timestamp(1000));
+        insertService(resolver, entityId, acsUrl, new Timestamp(0), null);
+        resolver.refresh();
+        assertEquals(resolver.resolveSingle(criteriaFor(entityId)), entityId, acsUrl);
+        final DataSourceMetadataResolver compact = new DataSourceMetadataResolver(resolver.getDataSource());
+        compact.setId("compactStoreReregisteredTest");
+        compact.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        compact.setCompactStore(true);
+        try {
+            compact.initialize();
+            Assert.assertEquals(compact.getCompactServiceStore().size(), 1);
+            assertEquals(compact.resolveSingle(criteriaFor(entityId)), entityId, acsUrl);
+        } finally {
+            compact.destroy();
+        }
+    }
+    
+    @Test
+    public void testCertificateColumns() throws Exception {
+        final String pem = new String(Files.readAllBytes(Paths.get(getClass().getResource(
+                "/fi/mpass/shibboleth/profile/metadata/certificate.pem").toURI())), StandardCharsets.US_ASCII);
+        final ServiceCertificate armored = new ServiceCertificate(UsageType.SIGNING, pem);
+        final ServiceCertificate plain = new ServiceCertificate(null, armored.getEncoded());
+        Assert.assertFalse(armored.getEncoded().contains("-"));
+        Assert.assertEquals(plain.getFingerprint(), armored.getFingerprint());
+
+        executeUpdate(resolver, "ALTER TABLE mpass_services ADD COLUMN signingCert VARCHAR(4000)");
+        executeUpdate(resolver, "ALTER TABLE mpass_services ADD COLUMN encryptionCert VARCHAR(4000)");
+        insertService(resolver, entityId, acsUrl, new Timestamp(0), null);
+        insertService(resolver, entityId + "2", acsUrl, new Timestamp(0), null);
+        try (final Connection connection = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE mpass_services SET signingCert = ?, encryptionCert = ? WHERE samlEntityId = ?")) {
+            statement.setString(1, pem);
+            statement.setString(2, armored.getEncoded());
+            statement.setString(3, entityId);
+            statement.executeUpdate();
+        }
+        for (final boolean compactStore : new boolean[] { false, true }) {
+            final DataSourceMetadataResolver certificates = 
+                    new DataSourceMetadataResolver(resolver.getDataSource());
+            certificates.setId("certificateColumnsTest");
+            certificates.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+            certificates.setSigningCertificateColumn("signingCert");
+            certificates.setEncryptionCertificateColumn("encryptionCert");
+            certificates.setDirectBuild(true);
+            certificates.setCompactStore(compactStore);
+            try {
+                certificates.initialize();
+                final List<KeyDescriptor> keyDescriptors = certificates.resolveSingle(criteriaFor(entityId))
+                        .getSPSSODescriptor(SAMLConstants.SAML20P_NS).getKeyDescriptors();
+                Assert.assertEquals(keyDescriptors.size(), 2);
+                Assert.assertEquals(keyDescriptors.get(0).getUse(), UsageType.SIGNING);
+                Assert.assertEquals(keyDescriptors.get(1).getUse(), UsageType.ENCRYPTION);
+                Assert.assertEquals(certificates.getCertificateCache().size(), 0);
+                final KeyInfoCredentialResolver credentialResolver = new BasicProviderKeyInfoCredentialResolver(
+                        Collections.<KeyInfoProvider>singletonList(
+                                new ServiceCertificateKeyInfoProvider(certificates.getCertificateCache())));
+                final Set<X509Certificate> parsed = Collections.newSetFromMap(
+                        new IdentityHashMap<X509Certificate, Boolean>());
+                for (final KeyDescriptor keyDescriptor : keyDescriptors) {
+                    Assert.assertEquals(keyDescriptor.getKeyInfo().getX509Datas().get(0).getX509Certificates()
+                            .get(0).getValue(), armored.getEncoded());
+                    final Credential credential = credentialResolver.resolveSingle(
+                            new CriteriaSet(new KeyInfoCriterion(keyDescriptor.getKeyInfo())));
+                    Assert.assertTrue(credential instanceof X509Credential);
+                    parsed.add(((X509Credential) credential).getEntityCertificate());
+                }
+                Assert.assertEquals(parsed.size(), 1);
+                Assert.assertEquals(certificates.getCertificateCache().size(), 1);
+                Assert.assertSame(certificates.getCertificateCache().get(plain), parsed.iterator().next());
+                Assert.assertTrue(certificates.resolveSingle(criteriaFor(entityId + "2"))
+                        .getSPSSODescriptor(SAMLConstants.SAML20P_NS).getKeyDescriptors().isEmpty());
+            } finally {
+                certificates.destroy();
+            }
+            Assert.assertEquals(certificates.getCertificateCache().size(), 0);
+        }
+        
+        final List<ServiceEndpoint> endpoints = Collections.singletonList(
+                new ServiceEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, acsUrl, 1, Boolean.TRUE));
+        final List<ServiceEntry> decoded = ServiceSnapshotCodec.fromCompressedBytes(
+                ServiceSnapshotCodec.toCompressedBytes(Arrays.asList(new ServiceEntry(1L, entityId, endpoints,
+                        Arrays.asList(armored, plain), ServiceEntry.NO_START_TIME, ServiceEntry.NO_END_TIME))));
+        final List<ServiceCertificate> decodedCertificates = decoded.get(0).getCertificates();
+        Assert.assertEquals(decodedCertificates.size(), 2);
+        Assert.assertEquals(decodedCertificates.get(0).getUse(), UsageType.SIGNING);
+        Assert.assertNull(decodedCertificates.get(1).getUse());
+        Assert.assertEquals(decodedCertificates.get(1).getEncoded(), armored.getEncoded());
+    }
+    
+    @Test
+    public void testSnapshotNullFields() throws Exception {
+        final ServiceCertificate certificate = new ServiceCertificate(null, "MIIB");
+        final List<ServiceEntry> decoded = ServiceSnapshotCodec.fromCompressedBytes(
+                ServiceSnapshotCodec.toCompressedBytes(Arrays.asList(new ServiceEntry(1L, "",
+                        Collections.singletonList(new ServiceEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, acsUrl,
+                                null, null)), Collections.singletonList(certificate),
+                        ServiceEntry.NO_START_TIME, ServiceEntry.NO_END_TIME))));
+        Assert.assertEquals(decoded.size(), 1);
+        Assert.assertEquals(decoded.get(0).getEntityId(), "");
+        Assert.assertNull(decoded.get(0).getEndpoints().get(0).getIndex());
+        Assert.assertNull(decoded.get(0).getEndpoints().get(0).isDefault());
+        Assert.assertNull(decoded.get(0).getCertificates().get(0).getUse());
+        Assert.assertEquals(decoded.get(0).getCertificates().get(0).getEncoded(), "MIIB");
+        
+        final EntityDescriptor noEntityId =
+                (EntityDescriptor) XMLObjectSupport.buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        final byte[] bytes = ServiceSnapshotCodec.toCompressedBytes(Arrays.asList(new ServiceEntry(2L, noEntityId,
+                ServiceEntry.NO_START_TIME, ServiceEntry.NO_END_TIME)));
+        try {
+            ServiceSnapshotCodec.fromCompressedBytes(bytes);
+            Assert.fail("A null entity ID must not be read back as an empty one");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testColumnMapping() throws Exception {
+        final String entityId2 = entityId + "2";
+        final String acsUrl2 = acsUrl + "2";
+        executeUpdate(resolver, "CREATE TABLE tenant_services (serviceKey BIGINT IDENTITY NOT NULL PRIMARY KEY, "
+                + "entity VARCHAR(255) NOT NULL, acs VARCHAR(255), validFrom TIMESTAMP, validUntil TIMESTAMP, "
+                + "tenant VARCHAR(16) NOT NULL)");
+        final DataSourceMetadataResolver mapped = new DataSourceMetadataResolver(resolver.getDataSource());
+        mapped.setId("columnMappingTest");
+        mapped.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        mapped.setServicesTable("tenant_services");
+        mapped.setIdColumn("serviceKey");
+        mapped.setEntityIdColumn("entity");
+        mapped.setAcsUrlColumn("acs");
+        mapped.setStartTimeColumn("validFrom");
+        mapped.setEndTimeColumn("validUntil");
+        mapped.setWherePredicate("tenant = 'a'");
+        try {
+            executeUpdate(resolver, "INSERT INTO tenant_services (entity, acs, validFrom, tenant) VALUES ('"
+                    + entityId + "', '" + acsUrl + "', CURRENT_TIMESTAMP, 'a')");
+            executeUpdate(resolver, "INSERT INTO tenant_services (entity, acs, validFrom, tenant) VALUES ('"
+                    + entityId2 + "', '" + acsUrl2 + "', CURRENT_TIMESTAMP, 'b')");
+            mapped.initialize();
+            assertExpected(mapped.resolve(new CriteriaSet()).iterator(), 1, new String[] { entityId },
+                    new String[] { acsUrl });
+            Assert.assertNull(mapped.resolveSingle(criteriaFor(entityId2)));
+        } finally {
+            mapped.destroy();
+            executeUpdate(resolver, "DROP TABLE tenant_services");
+        }
+    }
+    
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidColumnMapping() throws Exception {
+        resolver.setEntityIdColumn("samlEntityId FROM mpass_services; DROP TABLE mpass_services");
+    }
+    
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidWherePredicate() throws Exception {
+        resolver.setWherePredicate("1 = 1 -- everything");
+    }
+    
+    protected DataSourceMetadataResolver initializeNode(final String nodeId) throws Exception {
+        final DataSourceMetadataResolver node = new DataSourceMetadataResolver(resolver.getDataSource());
+        node.setId("sharedSnapshotTest");
+        node.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        node.setSharedSnapshotTable("mpass_metadata_snapshots");
+        node.setNodeId(nodeId);
+        node.initialize();
+        return node;
+    }
+    
+    protected void waitForServices(final DataSourceMetadataResolver resolver, final int count) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final Iterator<EntityDescriptor> entities = resolver.resolve(new CriteriaSet()).iterator();
+            int size = 0;
+            while (entities.hasNext()) {
+                entities.next();
+                size++;
+            }
+            if (size == count) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Timed out waiting for " + count + " services");
+    }
+    
+    protected void waitForAcsUrl(final DataSourceMetadataResolver resolver, final String entityId,
+            final String acsUrl) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final EntityDescriptor entity = resolver.resolveSingle(criteriaFor(entityId));
+            if (entity != null && acsUrl.equals(entity.getSPSSODescriptor(SAMLConstants.SAML20P_NS)
+                    .getAssertionConsumerServices().get(0).getLocation())) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Timed out waiting for " + acsUrl + " for " + entityId);
+    }
+    
+    protected long getServiceId(final DataSourceMetadataResolver resolver, final String entityId) throws Exception {
+        try (final Connection conn = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = 
+                        conn.prepareStatement("SELECT id FROM mpass_services WHERE samlEntityId = ?")) {
+            statement.setString(1, entityId);
+            try (final ResultSet results = statement.executeQuery()) {
+                Assert.assertTrue(results.next());
+                return results.getLong(1);
+            }
+        }
+    }
+    
+    protected void waitForRowCount(final DataSourceMetadataResolver resolver, final String table, final int count)
+            throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try (final Connection conn = resolver.getDataSource().getConnection();
+                    final PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM " + table);
+                    final ResultSet results = statement.executeQuery()) {
+                results.next();
+                if (results.getInt(1) == count) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Timed out waiting for " + count + " rows in " + table);
+    }
+    
+    protected void waitForRefreshes(final DataSourceMetadataResolver resolver, final long count) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (resolver.getMetrics().getRefreshCount() >= count) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Timed out waiting for " + count + " refreshes");
+    }
+    
+    protected void waitForNextRefresh(final DataSourceMetadataResolver resolver, final long after) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (resolver.getNextRefresh() != null && resolver.getNextRefresh().getMillis() > after) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Timed out waiting for a refresh scheduled after " + after);
+    }
+    
     @SuppressWarnings("unchecked")
     protected <Type> Type getBean(String fileName, Class<Type> claz, GenericApplicationContext context,
             boolean supressValid) {
@@ -128,21 +1157,67 @@ public class DataSourceMetadataResolverTest extends OpenSAMLInitBaseTestCase {
         beanDefinitionReader.loadBeanDefinitions(fileName, BASE_PATH_BEANS + "/beans.xml");
     }
 
+    protected void createChangeLog(final DataSourceMetadataResolver resolver) throws Exception {
+        executeUpdate(resolver, "CREATE TABLE mpass_service_changes (id BIGINT IDENTITY NOT NULL PRIMARY KEY, "
+                + "serviceId BIGINT NOT NULL)");
+        for (final String event : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+            final String row = "DELETE".equals(event) ? "OLD" : "NEW";
+            executeUpdate(resolver, "CREATE TRIGGER mpass_services_" + event.toLowerCase() + " AFTER " + event
+                    + " ON mpass_services REFERENCING " + row + " ROW AS changed FOR EACH ROW"
+                    + " INSERT INTO mpass_service_changes (serviceId) VALUES (changed.id)");
+        }
+    }
+    
     protected void insertService(final DataSourceMetadataResolver resolver, final String entityId, final String acsUrl) throws Exception {
         final String insertResult = "INSERT INTO mpass_services" +
                 " (samlEntityId, samlAcsUrl, startTime) VALUES (?,?,?)";
         try (final Connection conn = resolver.getDataSource().getConnection()) {
-            final PreparedStatement statement = conn.prepareStatement(insertResult, Statement.RETURN_GENERATED_KEYS);
-            statement.setString(1, entityId);
-            statement.setString(2,  acsUrl);
-            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
-            statement.executeUpdate();
-        } catch (Exception e) {
-            throw e;
+            try (final PreparedStatement statement = conn.prepareStatement(insertResult, 
+                    Statement.RETURN_GENERATED_KEYS)) {
+                statement.setString(1, entityId);
+                statement.setString(2,  acsUrl);
+                statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                statement.executeUpdate();
+            }
         }
         resolver.refresh();
     }
     
+    protected void insertService(final DataSourceMetadataResolver resolver, final String entityId, final String acsUrl,
+            final Timestamp startTime, final Timestamp endTime) throws Exception {
+        final String insertResult = "INSERT INTO mpass_services" +
+                " (samlEntityId, samlAcsUrl, startTime, endTime) VALUES (?,?,?,?)";
+        try (final Connection conn = resolver.getDataSource().getConnection()) {
+            try (final PreparedStatement statement = conn.prepareStatement(insertResult)) {
+                statement.setString(1, entityId);
+                statement.setString(2,  acsUrl);
+                statement.setTimestamp(3, startTime);
+                statement.setTimestamp(4, endTime);
+                statement.executeUpdate();
+            }
+        }
+    }
+    
+    protected long[] queryLongs(final DataSourceMetadataResolver source, final String query) throws Exception {
+        try (final Connection connection = source.getDataSource().getConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet resultSet = statement.executeQuery(query)) {
+            Assert.assertTrue(resultSet.next());
+            final long[] values = new long[resultSet.getMetaData().getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = resultSet.getLong(i + 1);
+            }
+            return values;
+        }
+    }
+    
+    protected void executeUpdate(final DataSourceMetadataResolver resolver, final String update) throws Exception {
+        try (final Connection conn = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = conn.prepareStatement(update)) {
+            statement.executeUpdate();
+        }
+    }
+    
     protected void assertEquals(final EntityDescriptor descriptor, final String entityId, final String acsUrl) {
         Assert.assertEquals(descriptor.getEntityID(), entityId);
         final AssertionConsumerService acs = descriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices().get(0);
@@ -163,4 +1238,26 @@ public class DataSourceMetadataResolverTest extends OpenSAMLInitBaseTestCase {
         EntityIdCriterion criterion = new EntityIdCriterion(entityId);
         return new CriteriaSet(criterion);
     }
+    
+    /**
+     * A {@link MetadataClock} that only moves when advanced.
+     */
+    static class ManualClock implements MetadataClock {
+        
+        /** The current time in milliseconds. */
+        private volatile long time;
+        
+        ManualClock(final long start) {
+            time = start;
+        }
+        
+        /** {@inheritDoc} */
+        public long currentTimeMillis() {
+            return time;
+        }
+        
+        void advance(final long millis) {
+            time += millis;
+        }
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.mpass.shibboleth.profile.metadata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensaml.core.OpenSAMLInitBaseTestCase;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.metadata.resolver.filter.FilterException;
+import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.springframework.context.support.GenericApplicationContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.ext.spring.config.IdentifiableBeanPostProcessor;
+import net.shibboleth.ext.spring.util.SchemaTypeAwareXMLBeanDefinitionReader;
+import net.shibboleth.idp.saml.metadata.RelyingPartyMetadataProvider;
+import net.shibboleth.idp.testing.DatabaseTestingSupport;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+
+/**
+ * Unit tests for {@link DynamicDataSourceMetadataResolver}.
+ */
+public class DynamicDataSourceMetadataResolverTest extends OpenSAMLInitBaseTestCase {
+    
+    DynamicDataSourceMetadataResolver resolver;
+    
+    String entityId;
+    String acsUrl;
+    
+    @BeforeMethod
+    public void initTests() throws Exception {
+        entityId = "https://www.example.org/entity";
+        acsUrl = "https://www.example.org/acs";
+        resolver = getResolver();
+        Assert.assertEquals(resolver.getId(), "dynamicDataSourceEntity");
+        Assert.assertEquals(resolver.getMaxCacheSize(), 100);
+        DatabaseTestingSupport.InitializeDataSource(DataSourceMetadataResolverTest.BASE_PATH_STORAGE 
+                + "/ServiceStore.sql", resolver.getDataSource());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        DatabaseTestingSupport.InitializeDataSource(DataSourceMetadataResolverTest.BASE_PATH_STORAGE 
+                + "/DeleteStore.sql", resolver.getDataSource());        
+    }
+    
+    public DynamicDataSourceMetadataResolver getResolver() throws Exception {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().addBeanPostProcessor(new IdentifiableBeanPostProcessor());
+        context.setDisplayName("ApplicationContext: " + DynamicDataSourceMetadataResolver.class);
+        SchemaTypeAwareXMLBeanDefinitionReader beanDefinitionReader =
+                new SchemaTypeAwareXMLBeanDefinitionReader(context);
+        beanDefinitionReader.loadBeanDefinitions(DataSourceMetadataResolverTest.BASE_PATH_BEANS 
+                + "/dynamicDataSourceEntity.xml", DataSourceMetadataResolverTest.BASE_PATH_BEANS + "/beans.xml");
+        context.refresh();
+        return (DynamicDataSourceMetadataResolver) ((RelyingPartyMetadataProvider) 
+                context.getBean("dynamicDataSourceEntity")).getEmbeddedResolver();
+    }
+
+    @Test
+    public void testNoCriteria() throws Exception {
+        insertService(entityId, acsUrl);
+        Assert.assertFalse(resolver.resolve(new CriteriaSet()).iterator().hasNext());
+    }
+
+    @Test
+    public void testOneService() throws Exception {
+        insertService(entityId, acsUrl);
+        assertExpected(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+        Assert.assertNull(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId + "2")));
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        insertService(entityId, acsUrl);
+        assertExpected(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+        deleteServices();
+        assertExpected(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+    }
+
+    @Test
+    public void testNegativeCached() throws Exception {
+        Assert.assertNull(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+        insertService(entityId, acsUrl);
+        Assert.assertNull(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+    }
+    
+    @Test
+    public void testClock() throws Exception {
+        final long now = System.currentTimeMillis();
+        final DataSourceMetadataResolverTest.ManualClock clock = new DataSourceMetadataResolverTest.ManualClock(now);
+        resolver.setClock(clock);
+        executeUpdate("INSERT INTO mpass_services (samlEntityId, samlAcsUrl, startTime, endTime) VALUES ('"
+                + entityId + "', '" + acsUrl + "', '" + new Timestamp(now - 1000) + "', '" + new Timestamp(now + 60000)
+                + "')");
+        assertExpected(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+        clock.advance(61000);
+        Assert.assertNull(resolver.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+    }
+    
+    @Test
+    public void testFilteredCached() throws Exception {
+        final AtomicInteger filtered = new AtomicInteger();
+        final DynamicDataSourceMetadataResolver dynamic = new DynamicDataSourceMetadataResolver(
+                resolver.getDataSource());
+        dynamic.setId("filteredCachedTest");
+        dynamic.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        dynamic.setMetadataFilter(new MetadataFilter() {
+            public XMLObject filter(final XMLObject metadata) throws FilterException {
+                filtered.incrementAndGet();
+                ((EntityDescriptor) metadata).setCacheDuration(60000L);
+                return metadata;
+            }
+        });
+        try {
+            insertService(entityId, acsUrl);
+            dynamic.initialize();
+            final EntityDescriptor entity = dynamic.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId));
+            assertExpected(entity);
+            Assert.assertEquals(entity.getCacheDuration(), Long.valueOf(60000L));
+            Assert.assertSame(dynamic.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)), entity);
+            Assert.assertEquals(filtered.get(), 1);
+        } finally {
+            dynamic.destroy();
+        }
+    }
+    
+    @Test
+    public void testSharedMapping() throws Exception {
+        final String entityId2 = entityId + "2";
+        final ServiceTableMapping mapping = new ServiceTableMapping();
+        mapping.setServicesTable("tenant_services");
+        mapping.setIdColumn("serviceKey");
+        mapping.setEntityIdColumn("entity");
+        mapping.setAcsUrlColumn("acs");
+        mapping.setStartTimeColumn("validFrom");
+        mapping.setEndTimeColumn("validUntil");
+        mapping.setWherePredicate("tenant = 'a'");
+        executeUpdate("CREATE TABLE tenant_services (serviceKey BIGINT IDENTITY NOT NULL PRIMARY KEY, "
+                + "entity VARCHAR(255) NOT NULL, acs VARCHAR(255), validFrom TIMESTAMP, validUntil TIMESTAMP, "
+                + "tenant VARCHAR(16) NOT NULL)");
+        final DynamicDataSourceMetadataResolver dynamic = new DynamicDataSourceMetadataResolver(
+                resolver.getDataSource());
+        dynamic.setId("sharedMappingTest");
+        dynamic.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        dynamic.setMapping(mapping);
+        dynamic.setQueryTimeout(1000);
+        final DataSourceMetadataResolver reloading = new DataSourceMetadataResolver(resolver.getDataSource());
+        reloading.setId("sharedMappingReloadingTest");
+        reloading.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
+        reloading.setMapping(mapping);
+        try {
+            executeUpdate("INSERT INTO tenant_services (entity, acs, validFrom, tenant) VALUES ('"
+                    + entityId + "', '" + acsUrl + "', CURRENT_TIMESTAMP, 'a')");
+            executeUpdate("INSERT INTO tenant_services (entity, acs, validFrom, tenant) VALUES ('"
+                    + entityId2 + "', '" + acsUrl + "', CURRENT_TIMESTAMP, 'b')");
+            dynamic.initialize();
+            reloading.initialize();
+            assertExpected(dynamic.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+            Assert.assertNull(dynamic.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId2)));
+            assertExpected(reloading.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId)));
+            Assert.assertNull(reloading.resolveSingle(DataSourceMetadataResolverTest.criteriaFor(entityId2)));
+        } finally {
+            dynamic.destroy();
+            reloading.destroy();
+            executeUpdate("DROP TABLE tenant_services");
+        }
+    }
+    
+    protected void assertExpected(final EntityDescriptor entity) {
+        Assert.assertNotNull(entity);
+        Assert.assertEquals(entity.getEntityID(), entityId);
+        Assert.assertEquals(entity.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices()
+                .get(0).getLocation(), acsUrl);
+    }
+    
+    protected void insertService(final String entityId, final String acsUrl) throws Exception {
+        try (final Connection conn = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = conn.prepareStatement("INSERT INTO mpass_services" +
+                        " (samlEntityId, samlAcsUrl, startTime) VALUES (?,?,?)")) {
+            statement.setString(1, entityId);
+            statement.setString(2,  acsUrl);
+            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            statement.executeUpdate();
+        }
+    }
+    
+    protected void executeUpdate(final String update) throws Exception {
+        try (final Connection conn = resolver.getDataSource().getConnection();
+                final PreparedStatement statement = conn.prepareStatement(update)) {
+            statement.executeUpdate();
+        }
+    }
+    
+    protected void deleteServices() throws Exception {
+        executeUpdate("DELETE FROM mpass_services");
+    }
+}
@@ -1 +1,2 @@
-DROP TABLE mpass_services;
+DROP TABLE mpass_services;
+DROP TABLE mpass_service_endpoints;
@@ -6,3 +6,38 @@ CREATE TABLE mpass_services (
     endTime TIMESTAMP,
     PRIMARY KEY (id)
 	);
+CREATE TABLE mpass_service_endpoints (
+    id BIGINT AUTO_INCREMENT NOT NULL,
+    serviceId BIGINT NOT NULL,
+    binding VARCHAR(255) NOT NULL,
+    location VARCHAR(255) NOT NULL,
+    endpointIndex INTEGER,
+    isDefault BOOLEAN,
+    PRIMARY KEY (id),
+    INDEX (serviceId)
+	);
+CREATE TABLE mpass_service_changes (
+    id BIGINT AUTO_INCREMENT NOT NULL,
+    serviceId BIGINT NOT NULL,
+    PRIMARY KEY (id)
+	);
+CREATE TRIGGER mpass_services_inserted AFTER INSERT ON mpass_services
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (NEW.id);
+CREATE TRIGGER mpass_services_updated AFTER UPDATE ON mpass_services
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (NEW.id);
+CREATE TRIGGER mpass_services_deleted AFTER DELETE ON mpass_services
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (OLD.id);
+CREATE TRIGGER mpass_service_endpoints_inserted AFTER INSERT ON mpass_service_endpoints
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (NEW.serviceId);
+CREATE TRIGGER mpass_service_endpoints_updated AFTER UPDATE ON mpass_service_endpoints
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (NEW.serviceId);
+CREATE TRIGGER mpass_service_endpoints_deleted AFTER DELETE ON mpass_service_endpoints
+    FOR EACH ROW INSERT INTO mpass_service_changes (serviceId) VALUES (OLD.serviceId);
+CREATE TABLE mpass_metadata_snapshots (
+    name VARCHAR(255) NOT NULL,
+    version BIGINT NOT NULL,
+    leaseOwner VARCHAR(255),
+    leaseExpires TIMESTAMP NULL,
+    snapshot LONGBLOB,
+    PRIMARY KEY (name)
+	);
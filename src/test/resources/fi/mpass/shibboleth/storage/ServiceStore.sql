@@ -5,3 +5,11 @@ CREATE TABLE mpass_services (
     startTime TIMESTAMP NOT NULL,
     endTime TIMESTAMP
 	);
+CREATE TABLE mpass_service_endpoints (
+    id BIGINT IDENTITY NOT NULL PRIMARY KEY,
+    serviceId BIGINT NOT NULL,
+    binding VARCHAR(255) NOT NULL,
+    location VARCHAR(255) NOT NULL,
+    endpointIndex INTEGER,
+    isDefault BOOLEAN
+	);